@@ -5,28 +5,56 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 import com.maciekjanusz.compassproject.R;
+import com.maciekjanusz.compassproject.sensor.MagnetometerCalibration;
 
 public enum AppPreferences {;
 
     public static final String WIDGET_SERVICE_RUNNING = "widget_service_running";
     public static final String SHOW_WIDGET_INFO_PREF = "show_widget_info";
+    /**
+     * Prefix of keys of the magnetometer calibration parameters: 3 offset values followed by
+     * 9 transform values
+     */
+    public static final String MAGNETOMETER_CALIBRATION_PREF = "magnetometer_calibration_";
+    private static final int CALIBRATION_OFFSET_SIZE = 3;
+    private static final int CALIBRATION_TRANSFORM_SIZE = 9;
 
-    public static boolean isMetricSystem(Context context) {
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        String defaultUnitSystemPref = context.getString(R.string.length_unit_default);
-        String unitSystemPref = sharedPreferences
-                .getString(context.getString(R.string.length_unit_list_preference_key), defaultUnitSystemPref);
+    /**
+     * Current settings snapshot, replaced by {@link #snapshotUpdater} whenever they change
+     */
+    private static volatile PreferencesSnapshot snapshot;
+    /**
+     * Held here, as shared preferences keep only weak references to their listeners
+     */
+    private static SnapshotUpdater snapshotUpdater;
 
-        return unitSystemPref.equals(defaultUnitSystemPref);
+    /**
+     * Get snapshot of the user settings. It is read from shared preferences once per process,
+     * and replaced as a whole when any of its settings changes, so this is a single volatile
+     * read - no preferences or resources are touched.
+     */
+    public static PreferencesSnapshot getSnapshot(Context context) {
+        PreferencesSnapshot current = snapshot;
+        return current != null ? current : initSnapshot(context.getApplicationContext());
     }
 
-    public static boolean isDecimalCoordinates(Context context) {
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        String defaultInputModePref = context.getString(R.string.coordinates_input_mode_default);
-        String inputModePref = sharedPreferences.getString(context
-                .getString(R.string.coordinates_input_mode_preference_key), defaultInputModePref);
+    private static synchronized PreferencesSnapshot initSnapshot(Context context) {
+        if (snapshot == null) {
+            SharedPreferences sharedPreferences =
+                    PreferenceManager.getDefaultSharedPreferences(context);
+            snapshotUpdater = new SnapshotUpdater(context);
+            sharedPreferences.registerOnSharedPreferenceChangeListener(snapshotUpdater);
+            snapshot = snapshotUpdater.read(sharedPreferences);
+        }
+        return snapshot;
+    }
+
+    public static boolean isMetricSystem(Context context) {
+        return getSnapshot(context).isMetricSystem();
+    }
 
-        return inputModePref.equals(defaultInputModePref);
+    public static boolean isDecimalCoordinates(Context context) {
+        return getSnapshot(context).isDecimalCoordinates();
     }
 
     public static boolean isWidgetServiceRunning(Context context) {
@@ -34,4 +62,89 @@ public enum AppPreferences {;
                 .getDefaultSharedPreferences(context)
                 .getBoolean(WIDGET_SERVICE_RUNNING, false);
     }
+
+    /**
+     * Load persisted magnetometer calibration parameters into given calibration.
+     * @return false if no calibration has been persisted yet
+     */
+    public static boolean loadMagnetometerCalibration(Context context,
+                                                      MagnetometerCalibration calibration) {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!sharedPreferences.contains(MAGNETOMETER_CALIBRATION_PREF + 0)) {
+            return false;
+        }
+
+        float[] offset = new float[CALIBRATION_OFFSET_SIZE];
+        float[] transform = new float[CALIBRATION_TRANSFORM_SIZE];
+        for (int i = 0; i < CALIBRATION_OFFSET_SIZE; i++) {
+            offset[i] = sharedPreferences.getFloat(MAGNETOMETER_CALIBRATION_PREF + i, 0);
+        }
+        for (int i = 0; i < CALIBRATION_TRANSFORM_SIZE; i++) {
+            transform[i] = sharedPreferences.getFloat(
+                    MAGNETOMETER_CALIBRATION_PREF + (CALIBRATION_OFFSET_SIZE + i), 0);
+        }
+        calibration.setCalibration(offset, transform);
+        return true;
+    }
+
+    /**
+     * Persist parameters of given magnetometer calibration, if it has been calibrated.
+     */
+    public static void saveMagnetometerCalibration(Context context,
+                                                   MagnetometerCalibration calibration) {
+        if (!calibration.isCalibrated()) {
+            return;
+        }
+
+        float[] offset = new float[CALIBRATION_OFFSET_SIZE];
+        float[] transform = new float[CALIBRATION_TRANSFORM_SIZE];
+        calibration.getCalibration(offset, transform);
+
+        SharedPreferences.Editor editor = PreferenceManager
+                .getDefaultSharedPreferences(context)
+                .edit();
+        for (int i = 0; i < CALIBRATION_OFFSET_SIZE; i++) {
+            editor.putFloat(MAGNETOMETER_CALIBRATION_PREF + i, offset[i]);
+        }
+        for (int i = 0; i < CALIBRATION_TRANSFORM_SIZE; i++) {
+            editor.putFloat(MAGNETOMETER_CALIBRATION_PREF + (CALIBRATION_OFFSET_SIZE + i),
+                    transform[i]);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Reads {@link PreferencesSnapshot}, with keys and default values resolved once, and
+     * replaces the shared snapshot when one of its settings changes.
+     */
+    private static class SnapshotUpdater
+            implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+        private final String unitSystemKey;
+        private final String defaultUnitSystem;
+        private final String inputModeKey;
+        private final String defaultInputMode;
+
+        SnapshotUpdater(Context context) {
+            unitSystemKey = context.getString(R.string.length_unit_list_preference_key);
+            defaultUnitSystem = context.getString(R.string.length_unit_default);
+            inputModeKey = context.getString(R.string.coordinates_input_mode_preference_key);
+            defaultInputMode = context.getString(R.string.coordinates_input_mode_default);
+        }
+
+        PreferencesSnapshot read(SharedPreferences sharedPreferences) {
+            String unitSystem = sharedPreferences.getString(unitSystemKey, defaultUnitSystem);
+            String inputMode = sharedPreferences.getString(inputModeKey, defaultInputMode);
+            return new PreferencesSnapshot(unitSystem.equals(defaultUnitSystem),
+                    inputMode.equals(defaultInputMode));
+        }
+
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            // null key if all preferences were cleared
+            if (key == null || key.equals(unitSystemKey) || key.equals(inputModeKey)) {
+                snapshot = read(sharedPreferences);
+            }
+        }
+    }
 }
@@ -0,0 +1,31 @@
+package com.maciekjanusz.compassproject.preferences;
+
+/**
+ * Immutable snapshot of the user settings read on hot paths, such as formatting of navigation
+ * values. Shared process-wide and replaced as a whole when the settings change, see
+ * {@link AppPreferences#getSnapshot(android.content.Context)}.
+ */
+public final class PreferencesSnapshot {
+
+    private final boolean metricSystem;
+    private final boolean decimalCoordinates;
+
+    PreferencesSnapshot(boolean metricSystem, boolean decimalCoordinates) {
+        this.metricSystem = metricSystem;
+        this.decimalCoordinates = decimalCoordinates;
+    }
+
+    /**
+     * @return true if distance and speed are shown in metric units, false for imperial
+     */
+    public boolean isMetricSystem() {
+        return metricSystem;
+    }
+
+    /**
+     * @return true if coordinates are shown and entered as decimal degrees, false for DMS
+     */
+    public boolean isDecimalCoordinates() {
+        return decimalCoordinates;
+    }
+}
@@ -0,0 +1,100 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+/**
+ * Orientation source that low-pass filters raw accelerometer and magnetometer readings with
+ * {@link AdaptiveLowPassFilter} and solves the rotation matrix from them once per fresh
+ * sample pair. Works on every device
+ * supported by the app, so it serves as the fallback when no rotation vector sensor is present.
+ */
+public class AccelMagOrientationSource extends OrientationSource {
+
+    private final Sensor accelerometer;
+    private final Sensor magnetometer;
+
+    private final AdaptiveLowPassFilter accelerometerFilter;
+    private final AdaptiveLowPassFilter magnetometerFilter;
+    private final float[] rotMatR = new float[9];
+    private final float[] rotMatI = new float[9];
+
+    private final SamplePairing samplePairing = new SamplePairing();
+
+    public AccelMagOrientationSource(SensorManager sensorManager) {
+        this(sensorManager, AdaptiveLowPassFilter.DEFAULT_STILL_TIME_CONSTANT,
+                AdaptiveLowPassFilter.DEFAULT_MOVING_TIME_CONSTANT);
+    }
+
+    /**
+     * @param sensorManager sensor manager
+     * @param stillTimeConstant filter time constant used when the device is still, in seconds
+     * @param movingTimeConstant filter time constant used when the device is moving fast,
+     *                           in seconds
+     */
+    public AccelMagOrientationSource(SensorManager sensorManager, float stillTimeConstant,
+                                     float movingTimeConstant) {
+        super(sensorManager);
+        accelerometerFilter = new AdaptiveLowPassFilter(stillTimeConstant, movingTimeConstant);
+        magnetometerFilter = new AdaptiveLowPassFilter(stillTimeConstant, movingTimeConstant);
+        accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return accelerometer != null && magnetometer != null;
+    }
+
+    @Override
+    void register(int samplingPeriod, int maxReportLatencyUs, Handler handler) {
+        synchronized (this) {
+            // filters are not reset here - they start over by themselves after a longer gap,
+            // and keep their state when the sensors are re-registered with different rate
+            samplePairing.reset();
+        }
+        registerSensor(accelerometer, samplingPeriod, maxReportLatencyUs, handler);
+        registerSensor(magnetometer, samplingPeriod, maxReportLatencyUs, handler);
+    }
+
+    @Override
+    protected void onSample(int sensorType, float[] values, long timestamp) {
+        synchronized (this) {
+            boolean paired = false;
+            if (sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
+                // magnetometer low-pass filtering
+                magnetometerFilter.filter(processMagnetometer(values), timestamp);
+                paired = samplePairing.onMagnetometerSample(timestamp);
+            }
+
+            if (sensorType == Sensor.TYPE_ACCELEROMETER) {
+                // accelerometer low-pass filtering
+                accelerometerFilter.filter(values, timestamp);
+                paired = samplePairing.onAccelerometerSample(timestamp);
+            }
+
+            // filters are always updated, but solve only once per fresh accel + mag pair
+            if (!paired) {
+                return;
+            }
+
+            boolean success = OrientationMath
+                    .getRotationMatrix(rotMatR, rotMatI, accelerometerFilter.getValues(),
+                            magnetometerFilter.getValues());
+
+            if (success) {
+                publish(rotMatR, timestamp);
+            }
+        }
+    }
+
+    synchronized void setStalenessWindow(long stalenessWindowNanos) {
+        samplePairing.setStalenessWindow(stalenessWindowNanos);
+    }
+
+    @Override
+    synchronized long getSkippedSolveCount() {
+        return samplePairing.getSkippedSolves();
+    }
+}
@@ -0,0 +1,122 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
+
+/**
+ * Low-pass filter for 3-axis sensor readings, whose smoothing is defined by a time constant
+ * instead of a fixed per-event alpha, so that it behaves the same regardless of the rate at
+ * which the sensor delivers events.
+ * <p>
+ * For every sample, alpha is computed from the time elapsed since the previous sample:
+ * {@code alpha = tau / (tau + dt)}. The time constant tau itself adapts to motion - it goes
+ * from {@link #stillTimeConstant} towards {@link #movingTimeConstant} as the relative distance
+ * between the raw reading and the filtered value grows, so that the output follows fast turns
+ * quickly and stays steady when the device is still.
+ */
+public class AdaptiveLowPassFilter {
+
+    /**
+     * Default time constant used when the device is still, in seconds. Equals to the smoothing
+     * of the former fixed alpha of 0.97 at 100 Hz.
+     */
+    public static final float DEFAULT_STILL_TIME_CONSTANT = 0.3f;
+    /**
+     * Default time constant used when the device is moving fast, in seconds
+     */
+    public static final float DEFAULT_MOVING_TIME_CONSTANT = 0.05f;
+    /**
+     * Relative distance between raw reading and filtered value, at which the filter
+     * is fully switched to {@link #movingTimeConstant}
+     */
+    private static final float MOTION_THRESHOLD = 0.2f;
+    /**
+     * Gaps between samples longer than this (ie. after re-registration) reset the filter
+     */
+    private static final long MAX_GAP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Time step applied to readings that carry the same or an earlier timestamp than the
+     * previous one (batched or reordered events), so that they are still smoothed
+     */
+    private static final long MIN_DT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final float NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final float stillTimeConstant;
+    private final float movingTimeConstant;
+    private final float[] values = new float[3];
+
+    private long lastTimestamp;
+    private boolean initialized;
+
+    public AdaptiveLowPassFilter() {
+        this(DEFAULT_STILL_TIME_CONSTANT, DEFAULT_MOVING_TIME_CONSTANT);
+    }
+
+    /**
+     * @param stillTimeConstant time constant used when the device is still, in seconds
+     * @param movingTimeConstant time constant used when the device is moving fast, in seconds
+     */
+    public AdaptiveLowPassFilter(float stillTimeConstant, float movingTimeConstant) {
+        this.stillTimeConstant = stillTimeConstant;
+        this.movingTimeConstant = movingTimeConstant;
+    }
+
+    /**
+     * Feed the filter with new reading.
+     * @param input raw 3-axis reading
+     * @param timestamp reading timestamp, in nanoseconds
+     */
+    public void filter(float[] input, long timestamp) {
+        long dtNanos = timestamp - lastTimestamp;
+
+        if (!initialized || dtNanos > MAX_GAP_NANOS) {
+            // nothing meaningful to smooth with - start over from the current reading
+            values[0] = input[0];
+            values[1] = input[1];
+            values[2] = input[2];
+            lastTimestamp = timestamp;
+            initialized = true;
+            return;
+        }
+
+        if (dtNanos <= 0) {
+            // don't move the clock backwards, just blend the reading in with a minimal step
+            dtNanos = MIN_DT_NANOS;
+        } else {
+            lastTimestamp = timestamp;
+        }
+
+        float dx = input[0] - values[0];
+        float dy = input[1] - values[1];
+        float dz = input[2] - values[2];
+        float norm = values[0] * values[0] + values[1] * values[1] + values[2] * values[2];
+        float motion = norm > 0
+                ? (float) sqrt((dx * dx + dy * dy + dz * dz) / norm) / MOTION_THRESHOLD
+                : 1;
+        motion = min(motion, 1);
+
+        float timeConstant = stillTimeConstant + (movingTimeConstant - stillTimeConstant) * motion;
+        float dt = dtNanos / NANOS_PER_SECOND;
+        float alpha = timeConstant / (timeConstant + dt);
+
+        values[0] += (1 - alpha) * dx;
+        values[1] += (1 - alpha) * dy;
+        values[2] += (1 - alpha) * dz;
+    }
+
+    /**
+     * Discard the filter state, next reading will be taken as is.
+     */
+    public void reset() {
+        initialized = false;
+    }
+
+    /**
+     * @return filtered values; the array is owned by the filter and must not be modified
+     */
+    public float[] getValues() {
+        return values;
+    }
+}
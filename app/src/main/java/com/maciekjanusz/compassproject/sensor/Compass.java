@@ -2,87 +2,518 @@ package com.maciekjanusz.compassproject.sensor;
 
 import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.lang.Math.*;
 
-public class Compass implements SensorEventListener {
+public class Compass implements OrientationSource.Callback {
+
+    private static final String SENSOR_THREAD_NAME = "CompassSensorThread";
+
+    /**
+     * Axis remapping of the rotation matrix for every display rotation (Surface.ROTATION_*),
+     * so that the orientation is relative to the screen instead of the device natural axes.
+     * Element i of the remapped matrix is REMAP_SIGN[rotation][i] * R[REMAP_INDEX[rotation][i]].
+     */
+    private static final int[][] REMAP_INDEX = new int[4][9];
+    private static final float[][] REMAP_SIGN = new float[4][9];
 
-    private static final float FILTER_ALPHA = 0.97f;
+    static {
+        // device x and y axes in screen coordinates, for every display rotation
+        int[][] axes = {
+                {OrientationMath.AXIS_X, OrientationMath.AXIS_Y},
+                {OrientationMath.AXIS_Y, OrientationMath.AXIS_MINUS_X},
+                {OrientationMath.AXIS_MINUS_X, OrientationMath.AXIS_MINUS_Y},
+                {OrientationMath.AXIS_MINUS_Y, OrientationMath.AXIS_X}
+        };
+        // remap a matrix of (1-based) element indices to find where every element goes
+        float[] indices = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+        float[] remapped = new float[9];
+        for (int rotation = 0; rotation < axes.length; rotation++) {
+            OrientationMath.remapCoordinateSystem(indices, axes[rotation][0], axes[rotation][1],
+                    remapped);
+            for (int i = 0; i < 9; i++) {
+                REMAP_INDEX[rotation][i] = (int) abs(remapped[i]) - 1;
+                REMAP_SIGN[rotation][i] = signum(remapped[i]);
+            }
+        }
+    }
 
+    @Nullable
     private final CompassListener listener;
-    private final SensorManager sensorManager;
-    private final Sensor accelerometer;
-    private final Sensor magnetometer;
+    private final OrientationSource orientationSource;
+    private final OrientationSnapshot snapshot = new OrientationSnapshot();
 
-    private final float[] accelerometerValues = new float[3];
-    private final float[] magnetometerValues = new float[3];
     private final float[] orientation = new float[3];
-    private final float[] rotMatR = new float[9];
-    private final float[] rotMatI = new float[9];
-
-    public Compass(Context context, CompassListener listener) {
-        sensorManager = (SensorManager) context
-                .getSystemService(Context.SENSOR_SERVICE);
-        accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+    private final float[] remappedRotationMatrix = new float[9];
+    /**
+     * Current display rotation, one of Surface.ROTATION_* constants
+     */
+    private volatile int displayRotation = Surface.ROTATION_0;
+
+    /**
+     * If true, sensor events are processed on {@link #sensorThread} instead of the main thread
+     */
+    private boolean backgroundProcessing;
+    private HandlerThread sensorThread;
+    /**
+     * Handler of the thread on which sensor events are delivered, null for the main thread
+     */
+    private Handler sensorHandler;
+    private volatile boolean running;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Set when {@link #deliveryRunnable} is posted to the main thread and not yet executed,
+     * so that at most one delivery is queued at any time
+     */
+    private final AtomicBoolean deliveryPending = new AtomicBoolean();
+    private final Runnable deliveryRunnable = new Runnable() {
+        private final OrientationSnapshot.Orientation reading = new OrientationSnapshot.Orientation();
+
+        @Override
+        public void run() {
+            deliveryPending.set(false);
+            if (listener != null && snapshot.read(reading)) {
+                listener.onCompassStateChanged(reading.getBearing(), reading.getPitch(),
+                        reading.getRoll());
+            }
+        }
+    };
+
+    /**
+     * If true, {@link #samplingRateController} relaxes sensor rate when the device is still
+     */
+    private boolean adaptiveSamplingRate;
+    private final SamplingRateController samplingRateController = new SamplingRateController();
+    @Nullable
+    private SamplingRateController.OnStateChangedListener samplingStateListener;
+    private final Runnable reRegisterRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (running) {
+                orientationSource.unregister();
+                orientationSource.register(samplingRateController.getSamplingPeriod(),
+                        maxReportLatencyUs, sensorHandler);
+            }
+        }
+    };
+    private final Runnable samplingStateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (samplingStateListener != null) {
+                samplingStateListener.onSamplingStateChanged(samplingRateController.getState());
+            }
+        }
+    };
+
+    /**
+     * Maximum sensor event batching latency, in microseconds; 0 if batching is disabled
+     */
+    private int maxReportLatencyUs;
+    /**
+     * Newest rotation matrix of a batched burst, waiting for {@link #catchUpRunnable}
+     */
+    private final float[] pendingRotationMatrix = new float[9];
+    private long pendingTimestamp;
+    private boolean catchUpPending;
+    private volatile long bursts;
+    private volatile long burstEvents;
+    private final Runnable catchUpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            catchUpPending = false;
+            bursts++;
+            solveOrientation(pendingRotationMatrix, pendingTimestamp);
+        }
+    };
+
+    @Nullable
+    private SensorRecorder recorder;
+    /**
+     * Magnetic declination added to every bearing, in degrees
+     */
+    private volatile float declination;
+
+    /**
+     * Number of bearings averaged by {@link #headingSmoother}, 0 if disabled
+     */
+    private int headingSmoothingWindow;
+    @Nullable
+    private HeadingSmoother headingSmoother;
+
+    private final HeadingQualityMonitor qualityMonitor = new HeadingQualityMonitor();
+    @Nullable
+    private HeadingQualityMonitor.OnConfidenceChangedListener confidenceListener;
+    private final Runnable confidenceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (confidenceListener != null) {
+                confidenceListener.onHeadingConfidenceChanged(qualityMonitor.getConfidence());
+            }
+        }
+    };
+
+    /**
+     * Creates compass backed by the best orientation source available on the device,
+     * see {@link #selectOrientationSource(SensorManager)}.
+     */
+    public Compass(Context context, @Nullable CompassListener listener) {
+        this(listener, selectOrientationSource(
+                (SensorManager) context.getSystemService(Context.SENSOR_SERVICE)));
+    }
+
+    /**
+     * Creates compass backed by given orientation source. Only
+     * {@link OrientationSource#isAvailable() available} sources should be passed.
+     * The listener can be null if the orientation is read only from {@link #getSnapshot()}.
+     */
+    public Compass(@Nullable CompassListener listener, OrientationSource orientationSource) {
         this.listener = listener;
+        this.orientationSource = orientationSource;
+        orientationSource.setCallback(this);
+        qualityMonitor.setOnConfidenceChangedListener(
+                new HeadingQualityMonitor.OnConfidenceChangedListener() {
+                    @Override
+                    public void onHeadingConfidenceChanged(
+                            HeadingQualityMonitor.Confidence confidence) {
+                        // called on the sensor thread, listener reads the newest value
+                        mainHandler.removeCallbacks(confidenceRunnable);
+                        mainHandler.post(confidenceRunnable);
+                    }
+                });
+    }
+
+    /**
+     * Picks orientation source in order of preference: fused rotation vector, geomagnetic
+     * rotation vector (no gyroscope needed), and finally the raw accelerometer + magnetometer
+     * readings when neither of the rotation vector sensors is present.
+     * @param sensorManager sensor manager
+     * @return the preferred orientation source that is available on this device
+     */
+    public static OrientationSource selectOrientationSource(SensorManager sensorManager) {
+        OrientationSource source = new RotationVectorOrientationSource(sensorManager,
+                Sensor.TYPE_ROTATION_VECTOR);
+        if (source.isAvailable()) {
+            return source;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            source = new RotationVectorOrientationSource(sensorManager,
+                    Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR);
+            if (source.isAvailable()) {
+                return source;
+            }
+        }
+        return new AccelMagOrientationSource(sensorManager);
     }
 
     public void start() {
-        sensorManager.registerListener(this, accelerometer,
-                SensorManager.SENSOR_DELAY_FASTEST);
-        sensorManager.registerListener(this, magnetometer,
-                SensorManager.SENSOR_DELAY_FASTEST);
+        sensorHandler = null;
+        if (backgroundProcessing) {
+            sensorThread = new HandlerThread(SENSOR_THREAD_NAME, Process.THREAD_PRIORITY_DISPLAY);
+            sensorThread.start();
+            sensorHandler = new Handler(sensorThread.getLooper());
+        }
+        samplingRateController.reset();
+        qualityMonitor.reset();
+        headingSmoother = headingSmoothingWindow > 0
+                ? new HeadingSmoother(headingSmoothingWindow) : null;
+        orientationSource.setQualityMonitor(confidenceListener != null ? qualityMonitor : null);
+        running = true;
+        orientationSource.register(samplingRateController.getSamplingPeriod(),
+                maxReportLatencyUs, sensorHandler);
     }
 
     public void stop() {
-        sensorManager.unregisterListener(this);
+        running = false;
+        orientationSource.unregister();
+        if (sensorHandler != null) {
+            sensorHandler.removeCallbacks(reRegisterRunnable);
+            sensorHandler.removeCallbacks(catchUpRunnable);
+        }
+        mainHandler.removeCallbacks(reRegisterRunnable);
+        mainHandler.removeCallbacks(catchUpRunnable);
+        catchUpPending = false;
+        if (sensorThread != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                sensorThread.quitSafely();
+            } else {
+                sensorThread.quit();
+            }
+            // wait for the dispatch in flight, if any: the snapshot and the solve state have
+            // a single writer, which must be gone before the compass is started again
+            try {
+                sensorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sensorThread = null;
+        }
+        mainHandler.removeCallbacks(samplingStateRunnable);
+        mainHandler.removeCallbacks(confidenceRunnable);
+        mainHandler.removeCallbacks(deliveryRunnable);
+        deliveryPending.set(false);
     }
 
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        synchronized (this) {
-            if (event.sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
-                // magnetometer low-pass filtering
-                magnetometerValues[0] = FILTER_ALPHA * magnetometerValues[0]
-                        + (1 - FILTER_ALPHA) * event.values[0];
-                magnetometerValues[1] = FILTER_ALPHA * magnetometerValues[1]
-                        + (1 - FILTER_ALPHA) * event.values[1];
-                magnetometerValues[2] = FILTER_ALPHA * magnetometerValues[2]
-                        + (1 - FILTER_ALPHA) * event.values[2];
+    public void onRotationMatrix(float[] rotationMatrix, long timestamp) {
+        if (maxReportLatencyUs > 0) {
+            // batched events are delivered in bursts, all within a single message of the sensor
+            // thread looper - keep only the newest matrix and solve it once the burst is over
+            System.arraycopy(rotationMatrix, 0, pendingRotationMatrix, 0,
+                    pendingRotationMatrix.length);
+            pendingTimestamp = timestamp;
+            burstEvents++;
+            if (!catchUpPending) {
+                catchUpPending = true;
+                (sensorHandler != null ? sensorHandler : mainHandler).post(catchUpRunnable);
             }
+        } else {
+            solveOrientation(rotationMatrix, timestamp);
+        }
+    }
 
-            if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-                // accelerometer low-pass filtering
-                accelerometerValues[0] = FILTER_ALPHA * accelerometerValues[0]
-                        + (1 - FILTER_ALPHA) * event.values[0];
-                accelerometerValues[1] = FILTER_ALPHA * accelerometerValues[1]
-                        + (1 - FILTER_ALPHA) * event.values[1];
-                accelerometerValues[2] = FILTER_ALPHA * accelerometerValues[2]
-                        + (1 - FILTER_ALPHA) * event.values[2];
+    private void solveOrientation(float[] rotationMatrix, long timestamp) {
+        int rotation = displayRotation;
+        if (rotation != Surface.ROTATION_0) {
+            int[] index = REMAP_INDEX[rotation];
+            float[] sign = REMAP_SIGN[rotation];
+            for (int i = 0; i < 9; i++) {
+                remappedRotationMatrix[i] = sign[i] * rotationMatrix[index[i]];
             }
+            rotationMatrix = remappedRotationMatrix;
+        }
+        OrientationMath.getOrientation(rotationMatrix, orientation);
+        float bearing = (float) toDegrees(orientation[0]);
+        float pitch = (float) toDegrees(orientation[1]);
+        float roll = (float) toDegrees(orientation[2]);
+        bearing = (bearing + declination + 360f) % 360f;
+        if (headingSmoother != null) {
+            bearing = headingSmoother.add(bearing);
+        }
 
-            boolean success = SensorManager
-                    .getRotationMatrix(rotMatR, rotMatI, accelerometerValues, magnetometerValues);
+        snapshot.publish(bearing, pitch, roll, timestamp);
 
-            if (success) {
-                SensorManager.getOrientation(rotMatR, orientation);
-                float bearing = (float) toDegrees(orientation[0]);
-                float pitch = (float) toDegrees(orientation[1]);
-                float roll = (float) toDegrees(orientation[2]);
-                bearing = (bearing + 360f) % 360f;
+        if (adaptiveSamplingRate && samplingRateController.onHeading(bearing, timestamp)) {
+            // re-register on the sensor thread, not from within this callback
+            (sensorHandler != null ? sensorHandler : mainHandler).post(reRegisterRunnable);
+            mainHandler.post(samplingStateRunnable);
+        }
 
+        if (listener != null) {
+            if (backgroundProcessing) {
+                // hand over to the main thread; if a delivery is already queued, it will pick
+                // up the values published above, so nothing more is posted
+                if (deliveryPending.compareAndSet(false, true)) {
+                    mainHandler.post(deliveryRunnable);
+                }
+            } else {
                 listener.onCompassStateChanged(bearing, pitch, roll);
             }
         }
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    /**
+     * Enable or disable processing of sensor events on a dedicated background thread.
+     * When enabled, {@link CompassListener} is still called on the main thread, but only with
+     * the newest orientation - intermediate values produced while the main thread was busy
+     * are dropped. Takes effect on next {@link #start()}.
+     * @param backgroundProcessing true to process sensor events on a background thread
+     */
+    public void setBackgroundProcessing(boolean backgroundProcessing) {
+        this.backgroundProcessing = backgroundProcessing;
+    }
+
+    /**
+     * Enable or disable adaptive sampling rate: when enabled, sensors are re-registered with
+     * a relaxed rate while the device is stationary, and with the fast rate again once it moves.
+     * Takes effect on next {@link #start()}.
+     * @param adaptiveSamplingRate true to enable adaptive sampling rate
+     */
+    public void setAdaptiveSamplingRate(boolean adaptiveSamplingRate) {
+        this.adaptiveSamplingRate = adaptiveSamplingRate;
+    }
+
+    /**
+     * @return controller deciding on the sampling rate, for configuration and current state
+     */
+    public SamplingRateController getSamplingRateController() {
+        return samplingRateController;
+    }
+
+    /**
+     * Set listener notified on the main thread about every sampling rate transition.
+     * @param samplingStateListener listener, or null to remove
+     */
+    public void setOnSamplingStateChangedListener(
+            @Nullable SamplingRateController.OnStateChangedListener samplingStateListener) {
+        this.samplingStateListener = samplingStateListener;
+    }
+
+    /**
+     * Set listener notified on the main thread whenever the heading confidence changes, e.g.
+     * because of magnetic interference. Heading quality is monitored only while there is
+     * a listener; takes effect on next {@link #start()}.
+     * @param confidenceListener listener, or null to stop monitoring
+     */
+    public void setOnHeadingConfidenceChangedListener(
+            @Nullable HeadingQualityMonitor.OnConfidenceChangedListener confidenceListener) {
+        this.confidenceListener = confidenceListener;
+    }
+
+    /**
+     * @return current heading confidence; always {@link HeadingQualityMonitor.Confidence#HIGH}
+     * when heading quality is not monitored
+     */
+    public HeadingQualityMonitor.Confidence getHeadingConfidence() {
+        return qualityMonitor.getConfidence();
+    }
+
+    /**
+     * Enable hardware batching of sensor events: the sensor hub collects events in its FIFO and
+     * reports them at most after given latency, which lets the application processor sleep in
+     * the meantime. Every burst of batched events is processed in one pass and only its final
+     * orientation is published. Requires API 19, ignored on older platforms.
+     * Takes effect on next {@link #start()}.
+     * @param maxReportLatencyUs maximum report latency, in microseconds; 0 disables batching
+     */
+    public void setBatching(int maxReportLatencyUs) {
+        this.maxReportLatencyUs = maxReportLatencyUs;
+    }
+
+    /**
+     * @return number of batched bursts processed so far
+     */
+    public long getBurstCount() {
+        return bursts;
+    }
+
+    /**
+     * @return number of rotation matrices received in batched bursts so far; divided by
+     * {@link #getBurstCount()} it gives the average burst size
+     */
+    public long getBurstEventCount() {
+        return burstEvents;
+    }
+
+    /**
+     * Set calibration applied to magnetometer readings, and continuously refitted from them.
+     * Has effect only with orientation sources using raw magnetometer readings; rotation
+     * vector sensors are calibrated by the platform. Must be set before {@link #start()}.
+     * @param magnetometerCalibration calibration, or null to use raw magnetometer readings
+     */
+    public void setMagnetometerCalibration(
+            @Nullable MagnetometerCalibration magnetometerCalibration) {
+        orientationSource.setMagnetometerCalibration(magnetometerCalibration);
+    }
+
+    /**
+     * @return true if the orientation source applies (and refits) the magnetometer calibration
+     */
+    public boolean appliesMagnetometerCalibration() {
+        return orientationSource.appliesMagnetometerCalibration();
+    }
+
+    /**
+     * Enable smoothing of the final bearing with a moving circular average, which is cheaper
+     * than filtering the raw sensor readings and handles the wrap at north. Pitch and roll are
+     * not smoothed. Takes effect on next {@link #start()}.
+     * @param windowSize number of most recent bearings averaged; 0 disables smoothing
+     */
+    public void setHeadingSmoothing(int windowSize) {
+        this.headingSmoothingWindow = windowSize;
+    }
+
+    /**
+     * Set rotation of the display the orientation is shown on. Bearing, pitch and roll are then
+     * relative to the screen axes, e.g. bearing is the direction the top of the screen points to,
+     * also in landscape and with the device tilted.
+     * @param displayRotation one of Surface.ROTATION_* constants, as returned by
+     *                        {@link android.view.Display#getRotation()}
+     */
+    public void setDisplayRotation(int displayRotation) {
+        this.displayRotation = displayRotation;
+    }
+
+    /**
+     * Set magnetic declination, to report bearing relative to true north instead of magnetic
+     * north. See {@link DeclinationProvider}.
+     * @param declination declination in degrees, positive east; 0 for magnetic north
+     */
+    public void setDeclination(float declination) {
+        this.declination = declination;
+    }
+
+    /**
+     * Start recording raw sensor events received by this compass into given file.
+     * @param file file to record to, overwritten if exists
+     * @param maxBytes maximum size of the recording, in bytes
+     * @throws IOException if the file cannot be created
+     */
+    public void startRecording(File file, int maxBytes) throws IOException {
+        stopRecording();
+        recorder = new SensorRecorder(file, maxBytes);
+        orientationSource.setRecorder(recorder);
+    }
+
+    /**
+     * Stop recording started with {@link #startRecording(File, int)}.
+     * @throws IOException if the recording cannot be written
+     */
+    public void stopRecording() throws IOException {
+        if (recorder != null) {
+            orientationSource.setRecorder(null);
+            recorder.close();
+            recorder = null;
+        }
+    }
+
+    /**
+     * @return snapshot holding the newest orientation, readable from any thread
+     */
+    public OrientationSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public OrientationSource getOrientationSource() {
+        return orientationSource;
+    }
+
+    /**
+     * Set maximum distance between timestamps of accelerometer and magnetometer samples
+     * that can be paired for a single orientation solve. Has effect only with
+     * {@link AccelMagOrientationSource}.
+     * @param stalenessWindowNanos staleness window, in nanoseconds
+     */
+    public void setStalenessWindow(long stalenessWindowNanos) {
+        if (orientationSource instanceof AccelMagOrientationSource) {
+            ((AccelMagOrientationSource) orientationSource).setStalenessWindow(stalenessWindowNanos);
+        }
+    }
+
+    /**
+     * @return number of orientation solves performed since this compass was created
+     */
+    public long getSolveCount() {
+        return orientationSource.getSolveCount();
+    }
 
+    /**
+     * @return number of sensor events that did not trigger an orientation solve, because they
+     * did not complete a fresh accelerometer + magnetometer pair
+     */
+    public long getSkippedSolveCount() {
+        return orientationSource.getSkippedSolveCount();
     }
 
     public interface CompassListener {
@@ -94,4 +525,4 @@ public class Compass implements SensorEventListener {
          */
         void onCompassStateChanged(float bearing, float pitch, float roll);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,304 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.maciekjanusz.compassproject.preferences.AppPreferences.loadMagnetometerCalibration;
+import static com.maciekjanusz.compassproject.preferences.AppPreferences.saveMagnetometerCalibration;
+
+/**
+ * Process-wide owner of the single {@link Compass} shared by all its consumers, so that
+ * the sensors are registered once no matter how many screens and overlays show the orientation.
+ * Consumers {@link #subscribe(Profile, HeadingQualityMonitor.OnConfidenceChangedListener)
+ * subscribe} with a {@link Profile}; the compass is started with the first subscription,
+ * reconfigured to satisfy the most demanding of the active profiles, and stopped when the last
+ * subscription is cancelled. Must be used on the main thread.
+ * <p>
+ * The hub also keeps the compass corrected to true north, with declination at the last known
+ * location: taken from the platform when the compass starts, and updated with every location
+ * the app receives, e.g. during navigation. The correction does not depend on navigation
+ * running, so every consumer sees bearing relative to the same north at all times.
+ */
+public class CompassHub {
+
+    /**
+     * Minimum interval between two saves of the magnetometer calibration refitted while running
+     */
+    private static final long CALIBRATION_SAVE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static CompassHub instance;
+
+    private final Context context;
+    private final Compass compass;
+    private final MagnetometerCalibration magnetometerCalibration = new MagnetometerCalibration();
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private final DeclinationProvider declinationProvider = new DeclinationProvider();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // calibration is saved as it is refitted, not only on stop, as the process may be killed
+    private long lastCalibrationSaveMillis;
+    private boolean calibrationSaveScheduled;
+    private final Runnable calibrationUpdatedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (calibrationSaveScheduled) {
+                return;
+            }
+            long remaining = lastCalibrationSaveMillis + CALIBRATION_SAVE_INTERVAL_MILLIS
+                    - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                saveCalibration();
+            } else {
+                calibrationSaveScheduled = true;
+                mainHandler.postDelayed(saveCalibrationRunnable, remaining);
+            }
+        }
+    };
+    private final Runnable saveCalibrationRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveCalibration();
+        }
+    };
+
+    // configuration the compass is currently running with
+    private boolean running;
+    private int maxReportLatencyUs;
+    private boolean adaptiveSamplingRate;
+    private boolean headingQualityMonitored;
+
+    private final HeadingQualityMonitor.OnConfidenceChangedListener confidenceListener =
+            new HeadingQualityMonitor.OnConfidenceChangedListener() {
+                @Override
+                public void onHeadingConfidenceChanged(
+                        HeadingQualityMonitor.Confidence confidence) {
+                    for (int i = 0; i < subscriptions.size(); i++) {
+                        Subscription subscription = subscriptions.get(i);
+                        if (subscription.confidenceListener != null) {
+                            subscription.confidenceListener.onHeadingConfidenceChanged(confidence);
+                        }
+                    }
+                }
+            };
+
+    public static synchronized CompassHub getInstance(Context context) {
+        if (instance == null) {
+            instance = new CompassHub(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CompassHub(Context context) {
+        this.context = context;
+        compass = new Compass(context, null);
+        // keep sensor processing off the main thread, which is busy with layout & drawing
+        compass.setBackgroundProcessing(true);
+        // calibration is neither refitted nor saved with sources calibrated by the platform
+        if (compass.appliesMagnetometerCalibration()) {
+            loadMagnetometerCalibration(context, magnetometerCalibration);
+            magnetometerCalibration.setOnCalibrationUpdatedListener(
+                    new MagnetometerCalibration.OnCalibrationUpdatedListener() {
+                        @Override
+                        public void onCalibrationUpdated(MagnetometerCalibration calibration) {
+                            // called on the sensor thread
+                            mainHandler.post(calibrationUpdatedRunnable);
+                        }
+                    });
+            compass.setMagnetometerCalibration(magnetometerCalibration);
+        }
+    }
+
+    /**
+     * Start receiving orientation. The orientation is read from the {@link #getCompass()
+     * compass} snapshot; throttling described by the profile is up to the consumer,
+     * e.g. through an {@code OrientationFrameSampler}.
+     * @param profile requirements of the consumer
+     * @param confidenceListener listener of heading confidence changes, or null if the consumer
+     *                           does not show heading quality
+     * @return subscription to be passed to {@link #unsubscribe(Subscription)}
+     */
+    public Subscription subscribe(Profile profile,
+            @Nullable HeadingQualityMonitor.OnConfidenceChangedListener confidenceListener) {
+        Subscription subscription = new Subscription(profile, confidenceListener);
+        subscriptions.add(subscription);
+        update();
+        if (confidenceListener != null) {
+            confidenceListener.onHeadingConfidenceChanged(compass.getHeadingConfidence());
+        }
+        return subscription;
+    }
+
+    /**
+     * Cancel a subscription; the sensors are unregistered along with the last one.
+     */
+    public void unsubscribe(Subscription subscription) {
+        if (subscriptions.remove(subscription)) {
+            update();
+        }
+    }
+
+    private void update() {
+        if (subscriptions.isEmpty()) {
+            if (running) {
+                compass.stop();
+                running = false;
+                if (compass.appliesMagnetometerCalibration()) {
+                    saveCalibration();
+                }
+            }
+            return;
+        }
+
+        // batch no longer and relax rate only if every consumer allows it
+        int latency = Integer.MAX_VALUE;
+        boolean adaptive = true;
+        boolean monitored = false;
+        for (int i = 0; i < subscriptions.size(); i++) {
+            Subscription subscription = subscriptions.get(i);
+            latency = Math.min(latency, subscription.profile.getMaxReportLatencyUs());
+            adaptive &= subscription.profile.isAdaptiveSamplingRate();
+            monitored |= subscription.confidenceListener != null;
+        }
+
+        if (running && latency == maxReportLatencyUs && adaptive == adaptiveSamplingRate
+                && monitored == headingQualityMonitored) {
+            return;
+        }
+        // sensor configuration takes effect on start only
+        if (running) {
+            compass.stop();
+        }
+        maxReportLatencyUs = latency;
+        adaptiveSamplingRate = adaptive;
+        headingQualityMonitored = monitored;
+        compass.setBatching(latency);
+        compass.setAdaptiveSamplingRate(adaptive);
+        compass.setOnHeadingConfidenceChangedListener(monitored ? confidenceListener : null);
+        if (!running) {
+            updateDeclination();
+        }
+        compass.start();
+        running = true;
+    }
+
+    private void saveCalibration() {
+        mainHandler.removeCallbacks(saveCalibrationRunnable);
+        calibrationSaveScheduled = false;
+        lastCalibrationSaveMillis = SystemClock.uptimeMillis();
+        saveMagnetometerCalibration(context, magnetometerCalibration);
+    }
+
+    /**
+     * Correct the compass to true north at given location.
+     * @param location device location
+     */
+    public void setLocation(Location location) {
+        compass.setDeclination(declinationProvider.getDeclination(location.getLatitude(),
+                location.getLongitude(), location.getTime()));
+    }
+
+    /**
+     * Correct the compass with the last location known to the platform, from any provider
+     * and any application; no location request is made.
+     */
+    private void updateDeclination() {
+        LocationManager locationManager =
+                (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        Location location;
+        try {
+            location = locationManager.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER);
+        } catch (SecurityException e) {
+            // location permission not granted (yet), declination stays as it was
+            return;
+        }
+        if (location != null) {
+            setLocation(location);
+        }
+    }
+
+    /**
+     * @return the shared compass; it must not be started or stopped directly
+     */
+    public Compass getCompass() {
+        return compass;
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Requirements of a single consumer of the orientation.
+     */
+    public static class Profile {
+
+        /**
+         * No throttling, fastest sensor rate - for readouts the user looks at while moving
+         * the device.
+         */
+        public static final Profile RESPONSIVE = new Profile(0, 0, false);
+        /**
+         * At most 10 updates per second, batched and relaxed sensor rate - for long-living,
+         * small views such as the overlay widget.
+         */
+        public static final Profile LOW_RATE = new Profile(100,
+                (int) TimeUnit.MILLISECONDS.toMicros(100), true);
+
+        private final long minDeliveryIntervalMillis;
+        private final int maxReportLatencyUs;
+        private final boolean adaptiveSamplingRate;
+
+        /**
+         * @param minDeliveryIntervalMillis minimum interval between two deliveries, in
+         *                                  milliseconds; 0 delivers every frame
+         * @param maxReportLatencyUs acceptable sensor batching latency, in microseconds,
+         *                           see {@link Compass#setBatching(int)}
+         * @param adaptiveSamplingRate true if sensor rate can be relaxed while the device is
+         *                             still, see {@link Compass#setAdaptiveSamplingRate(boolean)}
+         */
+        public Profile(long minDeliveryIntervalMillis, int maxReportLatencyUs,
+                       boolean adaptiveSamplingRate) {
+            this.minDeliveryIntervalMillis = minDeliveryIntervalMillis;
+            this.maxReportLatencyUs = maxReportLatencyUs;
+            this.adaptiveSamplingRate = adaptiveSamplingRate;
+        }
+
+        public long getMinDeliveryIntervalMillis() {
+            return minDeliveryIntervalMillis;
+        }
+
+        public int getMaxReportLatencyUs() {
+            return maxReportLatencyUs;
+        }
+
+        public boolean isAdaptiveSamplingRate() {
+            return adaptiveSamplingRate;
+        }
+    }
+
+    public static class Subscription {
+
+        private final Profile profile;
+        @Nullable
+        private final HeadingQualityMonitor.OnConfidenceChangedListener confidenceListener;
+
+        private Subscription(Profile profile,
+                @Nullable HeadingQualityMonitor.OnConfidenceChangedListener confidenceListener) {
+            this.profile = profile;
+            this.confidenceListener = confidenceListener;
+        }
+
+        public Profile getProfile() {
+            return profile;
+        }
+    }
+}
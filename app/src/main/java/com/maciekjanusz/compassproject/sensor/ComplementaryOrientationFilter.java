@@ -0,0 +1,216 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Math.atan2;
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+
+/**
+ * Complementary orientation filter: gyroscope angular rates are integrated into the rotation
+ * matrix for short-term orientation, while the drift of the integration is removed by slowly
+ * rotating the estimate towards a reference orientation (ie. one solved from accelerometer and
+ * magnetometer). Gyroscope is trusted for about {@link #timeConstant} seconds, the reference
+ * beyond that - so the output follows fast rotations without lag, but does not pick up the
+ * magnetometer noise.
+ * <p>
+ * Rotation matrices are 3x3, row-major, in the convention of
+ * {@link android.hardware.SensorManager#getRotationMatrix} (device to world coordinates).
+ * The filter is pure Java and does not allocate after construction.
+ */
+public class ComplementaryOrientationFilter {
+
+    /**
+     * Default time constant of the drift correction, in seconds
+     */
+    public static final float DEFAULT_TIME_CONSTANT = 1f;
+    /**
+     * Gaps between gyroscope samples longer than this are not integrated
+     */
+    private static final long MAX_GAP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final float NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Angle below which rotation vector is treated as zero
+     */
+    private static final double EPSILON = 1e-9;
+
+    private final float timeConstant;
+
+    private final float[] rotation = new float[9];
+    private final float[] delta = new float[9];
+    private final float[] product = new float[9];
+
+    private long lastGyroTimestamp;
+    private long lastCorrectionTimestamp;
+    private boolean initialized;
+
+    public ComplementaryOrientationFilter() {
+        this(DEFAULT_TIME_CONSTANT);
+    }
+
+    /**
+     * @param timeConstant time constant of the drift correction, in seconds
+     */
+    public ComplementaryOrientationFilter(float timeConstant) {
+        this.timeConstant = timeConstant;
+    }
+
+    /**
+     * Integrate gyroscope angular rates. Ignored until the first reference is provided.
+     * @param angularRate angular rates around device x, y, z axes, in rad/s
+     * @param timestamp sample timestamp, in nanoseconds
+     */
+    public void integrate(float[] angularRate, long timestamp) {
+        long dtNanos = timestamp - lastGyroTimestamp;
+        lastGyroTimestamp = timestamp;
+        if (!initialized || dtNanos <= 0 || dtNanos > MAX_GAP_NANOS) {
+            return;
+        }
+
+        float dt = dtNanos / NANOS_PER_SECOND;
+        rotationFromVector(angularRate[0] * dt, angularRate[1] * dt, angularRate[2] * dt, delta);
+        // angular rates are in device coordinates, hence the right-hand multiplication
+        multiply(rotation, delta, product);
+        System.arraycopy(product, 0, rotation, 0, rotation.length);
+        orthonormalize(rotation);
+    }
+
+    /**
+     * Correct the estimate towards given reference orientation. The first reference
+     * initializes the filter.
+     * @param reference reference rotation matrix
+     * @param timestamp reference timestamp, in nanoseconds
+     */
+    public void correct(float[] reference, long timestamp) {
+        long dtNanos = timestamp - lastCorrectionTimestamp;
+        lastCorrectionTimestamp = timestamp;
+        if (!initialized || dtNanos > MAX_GAP_NANOS) {
+            System.arraycopy(reference, 0, rotation, 0, rotation.length);
+            initialized = true;
+            return;
+        }
+        if (dtNanos <= 0) {
+            return;
+        }
+
+        // error rotation from the estimate to the reference, in device coordinates: R^T * ref
+        multiplyTransposed(rotation, reference, product);
+        // its axis * sin(angle), from the skew-symmetric part
+        float x = (product[7] - product[5]) / 2f;
+        float y = (product[2] - product[6]) / 2f;
+        float z = (product[3] - product[1]) / 2f;
+        float cosAngle = (product[0] + product[4] + product[8] - 1f) / 2f;
+        double sinAngle = sqrt(x * x + y * y + z * z);
+        if (sinAngle < EPSILON) {
+            return;
+        }
+        double angle = atan2(sinAngle, cosAngle);
+
+        // rotate by a fraction of the error, as a first order low-pass with the time constant
+        float dt = dtNanos / NANOS_PER_SECOND;
+        double scale = (dt / (timeConstant + dt)) * angle / sinAngle;
+        rotationFromVector((float) (x * scale), (float) (y * scale), (float) (z * scale), delta);
+        multiply(rotation, delta, product);
+        System.arraycopy(product, 0, rotation, 0, rotation.length);
+        orthonormalize(rotation);
+    }
+
+    /**
+     * Discard the estimate, filter waits for a new reference.
+     */
+    public void reset() {
+        initialized = false;
+    }
+
+    /**
+     * @return true once the filter has been initialized with a reference
+     */
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * @return current rotation matrix estimate; the array is owned by the filter and must not
+     * be modified
+     */
+    public float[] getRotationMatrix() {
+        return rotation;
+    }
+
+    /**
+     * Rodrigues' formula: rotation matrix for rotation by |v| radians around v.
+     */
+    private static void rotationFromVector(float x, float y, float z, float[] out) {
+        double angle = sqrt(x * x + y * y + z * z);
+        double a;
+        double b;
+        if (angle < EPSILON) {
+            a = 1;
+            b = 0.5;
+        } else {
+            a = sin(angle) / angle;
+            b = (1 - cos(angle)) / (angle * angle);
+        }
+        float xx = x * x, yy = y * y, zz = z * z;
+        float xy = x * y, xz = x * z, yz = y * z;
+
+        out[0] = (float) (1 - b * (yy + zz));
+        out[1] = (float) (b * xy - a * z);
+        out[2] = (float) (b * xz + a * y);
+        out[3] = (float) (b * xy + a * z);
+        out[4] = (float) (1 - b * (xx + zz));
+        out[5] = (float) (b * yz - a * x);
+        out[6] = (float) (b * xz - a * y);
+        out[7] = (float) (b * yz + a * x);
+        out[8] = (float) (1 - b * (xx + yy));
+    }
+
+    /**
+     * out = a * b
+     */
+    private static void multiply(float[] a, float[] b, float[] out) {
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                out[row * 3 + col] = a[row * 3] * b[col]
+                        + a[row * 3 + 1] * b[3 + col]
+                        + a[row * 3 + 2] * b[6 + col];
+            }
+        }
+    }
+
+    /**
+     * out = a^T * b
+     */
+    private static void multiplyTransposed(float[] a, float[] b, float[] out) {
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                out[row * 3 + col] = a[row] * b[col]
+                        + a[3 + row] * b[3 + col]
+                        + a[6 + row] * b[6 + col];
+            }
+        }
+    }
+
+    /**
+     * Gram-Schmidt on the rows, to keep the integrated matrix a proper rotation.
+     */
+    private static void orthonormalize(float[] m) {
+        float n = (float) (1 / sqrt(m[0] * m[0] + m[1] * m[1] + m[2] * m[2]));
+        m[0] *= n;
+        m[1] *= n;
+        m[2] *= n;
+        float d = m[0] * m[3] + m[1] * m[4] + m[2] * m[5];
+        m[3] -= d * m[0];
+        m[4] -= d * m[1];
+        m[5] -= d * m[2];
+        n = (float) (1 / sqrt(m[3] * m[3] + m[4] * m[4] + m[5] * m[5]));
+        m[3] *= n;
+        m[4] *= n;
+        m[5] *= n;
+        // third row is the cross product of the first two
+        m[6] = m[1] * m[5] - m[2] * m[4];
+        m[7] = m[2] * m[3] - m[0] * m[5];
+        m[8] = m[0] * m[4] - m[1] * m[3];
+    }
+}
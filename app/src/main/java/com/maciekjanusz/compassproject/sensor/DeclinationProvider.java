@@ -0,0 +1,65 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import android.hardware.GeomagneticField;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Math.floor;
+
+/**
+ * Provides magnetic declination - the angle between magnetic and true north - for correcting
+ * compass bearing to true north. Declination is evaluated from the World Magnetic Model
+ * coefficients bundled with the platform ({@link GeomagneticField}), and cached per
+ * {@link #TILE_SIZE_DEGREES} lat/lon tile and per day, so the spherical harmonic model is
+ * evaluated only when the device crosses to another tile.
+ */
+public class DeclinationProvider {
+
+    /**
+     * Size of the cache tile, in degrees. Declination changes by less than a degree over
+     * a tile almost everywhere outside polar regions.
+     */
+    private static final double TILE_SIZE_DEGREES = 1;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private boolean cached;
+    private long tileLat;
+    private long tileLon;
+    private long day;
+    private float declination;
+
+    /**
+     * @param latitude latitude, in degrees
+     * @param longitude longitude, in degrees
+     * @param timeMillis time for which the declination is evaluated, in milliseconds since epoch
+     * @return magnetic declination, in degrees; positive when magnetic north is east of true north
+     */
+    public synchronized float getDeclination(double latitude, double longitude, long timeMillis) {
+        long lat = (long) floor(latitude / TILE_SIZE_DEGREES);
+        long lon = (long) floor(longitude / TILE_SIZE_DEGREES);
+        long currentDay = timeMillis / DAY_MILLIS;
+
+        if (!cached || lat != tileLat || lon != tileLon || currentDay != day) {
+            // evaluate at the tile center, so the value does not depend on the entry point
+            float centerLat = (float) ((lat + 0.5) * TILE_SIZE_DEGREES);
+            float centerLon = (float) ((lon + 0.5) * TILE_SIZE_DEGREES);
+            declination = computeDeclination(centerLat, centerLon, currentDay * DAY_MILLIS);
+            tileLat = lat;
+            tileLon = lon;
+            day = currentDay;
+            cached = true;
+        }
+        return declination;
+    }
+
+    /**
+     * Evaluate the geomagnetic model, called on cache miss only.
+     * @param latitude latitude, in degrees
+     * @param longitude longitude, in degrees
+     * @param timeMillis time, in milliseconds since epoch
+     * @return magnetic declination, in degrees
+     */
+    float computeDeclination(float latitude, float longitude, long timeMillis) {
+        return new GeomagneticField(latitude, longitude, 0, timeMillis).getDeclination();
+    }
+}
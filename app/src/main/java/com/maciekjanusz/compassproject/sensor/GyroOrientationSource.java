@@ -0,0 +1,106 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+/**
+ * Orientation source that integrates gyroscope readings for short-term orientation and corrects
+ * their drift with the orientation solved from accelerometer and magnetometer, using
+ * {@link ComplementaryOrientationFilter}. The accel + mag reference needs only light smoothing,
+ * so the needle follows fast rotations without the lag of {@link AccelMagOrientationSource}.
+ * A rotation matrix is published for every gyroscope event.
+ */
+public class GyroOrientationSource extends OrientationSource {
+
+    /**
+     * Reference filter time constants, in seconds - much shorter than in
+     * {@link AccelMagOrientationSource}, the complementary filter does the rest of the smoothing
+     */
+    private static final float REFERENCE_STILL_TIME_CONSTANT = 0.1f;
+    private static final float REFERENCE_MOVING_TIME_CONSTANT = 0.02f;
+
+    private final Sensor accelerometer;
+    private final Sensor magnetometer;
+    private final Sensor gyroscope;
+
+    private final AdaptiveLowPassFilter accelerometerFilter =
+            new AdaptiveLowPassFilter(REFERENCE_STILL_TIME_CONSTANT, REFERENCE_MOVING_TIME_CONSTANT);
+    private final AdaptiveLowPassFilter magnetometerFilter =
+            new AdaptiveLowPassFilter(REFERENCE_STILL_TIME_CONSTANT, REFERENCE_MOVING_TIME_CONSTANT);
+    private final SamplePairing samplePairing = new SamplePairing();
+    private final ComplementaryOrientationFilter orientationFilter;
+
+    private final float[] referenceR = new float[9];
+    private final float[] referenceI = new float[9];
+
+    public GyroOrientationSource(SensorManager sensorManager) {
+        this(sensorManager, ComplementaryOrientationFilter.DEFAULT_TIME_CONSTANT);
+    }
+
+    /**
+     * @param sensorManager sensor manager
+     * @param timeConstant time constant of the drift correction, in seconds
+     */
+    public GyroOrientationSource(SensorManager sensorManager, float timeConstant) {
+        super(sensorManager);
+        orientationFilter = new ComplementaryOrientationFilter(timeConstant);
+        accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return accelerometer != null && magnetometer != null && gyroscope != null;
+    }
+
+    @Override
+    void register(int samplingPeriod, int maxReportLatencyUs, Handler handler) {
+        synchronized (this) {
+            samplePairing.reset();
+        }
+        registerSensor(accelerometer, samplingPeriod, maxReportLatencyUs, handler);
+        registerSensor(magnetometer, samplingPeriod, maxReportLatencyUs, handler);
+        registerSensor(gyroscope, samplingPeriod, maxReportLatencyUs, handler);
+    }
+
+    @Override
+    protected void onSample(int sensorType, float[] values, long timestamp) {
+        synchronized (this) {
+            switch (sensorType) {
+                case Sensor.TYPE_GYROSCOPE:
+                    orientationFilter.integrate(values, timestamp);
+                    if (orientationFilter.isInitialized()) {
+                        publish(orientationFilter.getRotationMatrix(), timestamp);
+                    }
+                    break;
+                case Sensor.TYPE_ACCELEROMETER:
+                    accelerometerFilter.filter(values, timestamp);
+                    if (samplePairing.onAccelerometerSample(timestamp)) {
+                        correct(timestamp);
+                    }
+                    break;
+                case Sensor.TYPE_MAGNETIC_FIELD:
+                    magnetometerFilter.filter(processMagnetometer(values), timestamp);
+                    if (samplePairing.onMagnetometerSample(timestamp)) {
+                        correct(timestamp);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void correct(long timestamp) {
+        boolean success = OrientationMath.getRotationMatrix(referenceR, referenceI,
+                accelerometerFilter.getValues(), magnetometerFilter.getValues());
+        if (success) {
+            orientationFilter.correct(referenceR, timestamp);
+        }
+    }
+
+    @Override
+    synchronized long getSkippedSolveCount() {
+        return samplePairing.getSkippedSolves();
+    }
+}
@@ -0,0 +1,204 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import android.hardware.SensorManager;
+
+import static java.lang.Math.asin;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
+import static java.lang.Math.toDegrees;
+
+/**
+ * Estimates how far the compass heading can be trusted. Magnetic interference - steel, magnets,
+ * speakers - distorts the field measured by the magnetometer, which shows as magnitude out of
+ * the range of Earth's field, or magnitude and inclination (angle between the field and the
+ * horizontal plane) that change while they should stay constant regardless of device attitude.
+ * Both are tracked over a sliding window of magnetometer readings, and combined with
+ * the accuracy reported by the sensor into a {@link Confidence} level.
+ */
+public class HeadingQualityMonitor {
+
+    public enum Confidence {
+        // order follows SensorManager.SENSOR_STATUS_* constants
+        UNRELIABLE, LOW, MEDIUM, HIGH
+    }
+
+    /**
+     * Number of magnetometer readings in the sliding window
+     */
+    private static final int WINDOW_SIZE = 64;
+    /**
+     * Minimum number of readings before the window statistics are taken into account
+     */
+    private static final int MIN_SAMPLES = 16;
+    /**
+     * Range of Earth's magnetic field magnitude, in micro Tesla
+     */
+    private static final float MIN_FIELD = 20f;
+    private static final float MAX_FIELD = 70f;
+    /**
+     * Magnitude standard deviation above which the confidence is lowered, in micro Tesla
+     */
+    private static final float MEDIUM_MAGNITUDE_DEVIATION = 2f;
+    private static final float LOW_MAGNITUDE_DEVIATION = 5f;
+    /**
+     * Inclination standard deviation above which the confidence is lowered, in degrees
+     */
+    private static final float MEDIUM_INCLINATION_DEVIATION = 2f;
+    private static final float LOW_INCLINATION_DEVIATION = 5f;
+    /**
+     * Hysteresis of the window statistics: to raise the confidence, deviations must drop below
+     * their thresholds scaled by this ratio, and the field magnitude must be within its range
+     * narrowed by {@link #RECOVERY_FIELD_MARGIN}. Keeps the confidence from flapping while
+     * the statistics hover around a threshold.
+     */
+    private static final float RECOVERY_DEVIATION_RATIO = 0.75f;
+    private static final float RECOVERY_FIELD_MARGIN = 2f;
+
+    private final RollingStatistics magnitude = new RollingStatistics(WINDOW_SIZE);
+    private final RollingStatistics inclination = new RollingStatistics(WINDOW_SIZE);
+
+    /**
+     * Direction of gravity in device coordinates, taken from the newest rotation matrix
+     */
+    private float upX, upY, upZ;
+    private boolean hasUp;
+    private Confidence accuracyConfidence = Confidence.HIGH;
+    private volatile Confidence confidence = Confidence.HIGH;
+    private OnConfidenceChangedListener listener;
+
+    /**
+     * Process single magnetometer reading.
+     * @param values calibrated magnetometer reading, in micro Tesla
+     */
+    public void onMagneticField(float[] values) {
+        float x = values[0], y = values[1], z = values[2];
+        float norm = (float) sqrt(x * x + y * y + z * z);
+        magnitude.add(norm);
+        if (hasUp && norm > 0) {
+            // field pointing below the horizon has positive inclination
+            float sine = -(x * upX + y * upY + z * upZ) / norm;
+            inclination.add((float) toDegrees(asin(max(-1f, min(1f, sine)))));
+        }
+        update();
+    }
+
+    /**
+     * Update device attitude used for inclination, from a rotation matrix as returned by
+     * {@link SensorManager#getRotationMatrix}.
+     * @param rotationMatrix 3x3 rotation matrix
+     */
+    public void onRotationMatrix(float[] rotationMatrix) {
+        // third row of the matrix is the world's up axis expressed in device coordinates
+        upX = rotationMatrix[6];
+        upY = rotationMatrix[7];
+        upZ = rotationMatrix[8];
+        hasUp = true;
+    }
+
+    /**
+     * @param accuracy magnetometer accuracy, one of SensorManager.SENSOR_STATUS_* constants
+     */
+    public void onAccuracyChanged(int accuracy) {
+        if (accuracy < SensorManager.SENSOR_STATUS_UNRELIABLE) {
+            // e.g. SENSOR_STATUS_NO_CONTACT, not applicable to magnetometer
+            return;
+        }
+        accuracyConfidence = Confidence.values()[min(accuracy, Confidence.HIGH.ordinal())];
+        update();
+    }
+
+    private void update() {
+        Confidence current = evaluate(false);
+        if (current.compareTo(confidence) >= 0) {
+            // not worse, but only raised when the statistics are clear of the thresholds
+            Confidence recovered = evaluate(true);
+            current = recovered.compareTo(confidence) > 0 ? recovered : confidence;
+        }
+        if (current != confidence) {
+            confidence = current;
+            if (listener != null) {
+                listener.onHeadingConfidenceChanged(current);
+            }
+        }
+    }
+
+    /**
+     * @param recovering true to evaluate with the stricter thresholds required to raise
+     *                   the confidence
+     */
+    private Confidence evaluate(boolean recovering) {
+        Confidence result = accuracyConfidence;
+        float ratio = recovering ? RECOVERY_DEVIATION_RATIO : 1f;
+        float margin = recovering ? RECOVERY_FIELD_MARGIN : 0f;
+        if (magnitude.getCount() >= MIN_SAMPLES) {
+            float mean = magnitude.getMean();
+            if (mean < MIN_FIELD / 2 + margin || mean > MAX_FIELD * 2 - margin) {
+                return Confidence.UNRELIABLE;
+            }
+            if (mean < MIN_FIELD + margin || mean > MAX_FIELD - margin) {
+                result = lower(result, Confidence.LOW);
+            }
+            result = lower(result, fromDeviation(magnitude.getStandardDeviation(),
+                    MEDIUM_MAGNITUDE_DEVIATION * ratio, LOW_MAGNITUDE_DEVIATION * ratio));
+        }
+        if (inclination.getCount() >= MIN_SAMPLES) {
+            result = lower(result, fromDeviation(inclination.getStandardDeviation(),
+                    MEDIUM_INCLINATION_DEVIATION * ratio, LOW_INCLINATION_DEVIATION * ratio));
+        }
+        return result;
+    }
+
+    private static Confidence fromDeviation(float deviation, float medium, float low) {
+        if (deviation > low) {
+            return Confidence.LOW;
+        }
+        return deviation > medium ? Confidence.MEDIUM : Confidence.HIGH;
+    }
+
+    private static Confidence lower(Confidence a, Confidence b) {
+        return a.ordinal() < b.ordinal() ? a : b;
+    }
+
+    /**
+     * Clear the sliding windows and the reported accuracy. The listener is notified if
+     * the confidence goes back to {@link Confidence#HIGH}, so no stale warning is shown.
+     */
+    public void reset() {
+        magnitude.reset();
+        inclination.reset();
+        hasUp = false;
+        accuracyConfidence = Confidence.HIGH;
+        update();
+    }
+
+    public Confidence getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * @return mean magnetic field magnitude over the window, in micro Tesla
+     */
+    public float getFieldMagnitude() {
+        return magnitude.getMean();
+    }
+
+    /**
+     * @return mean inclination over the window, in degrees
+     */
+    public float getInclination() {
+        return inclination.getMean();
+    }
+
+    /**
+     * Set listener called on the thread processing sensor events, whenever confidence changes.
+     * @param listener listener, or null to remove
+     */
+    public void setOnConfidenceChangedListener(OnConfidenceChangedListener listener) {
+        this.listener = listener;
+    }
+
+    public interface OnConfidenceChangedListener {
+        void onHeadingConfidenceChanged(Confidence confidence);
+    }
+}
@@ -0,0 +1,110 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import static java.lang.Math.atan2;
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+import static java.lang.Math.toDegrees;
+import static java.lang.Math.toRadians;
+
+/**
+ * Moving average of headings over a window of the most recent values, calculated with circular
+ * statistics: every heading is a unit vector, and the mean heading is the direction of their sum.
+ * Unlike averaging the angles as scalars, this handles the wrap at north (mean of 359 and 1
+ * degrees is 0, not 180). Running sums of the vector components make every update constant time;
+ * they are recomputed from the window each time it wraps around, so that floating point error
+ * does not accumulate.
+ */
+public class HeadingSmoother {
+
+    private final float[] sines;
+    private final float[] cosines;
+    private int index;
+    private int count;
+    private double sumSin;
+    private double sumCos;
+
+    /**
+     * @param size number of most recent headings averaged
+     */
+    public HeadingSmoother(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        sines = new float[size];
+        cosines = new float[size];
+    }
+
+    /**
+     * Add heading to the window, replacing the oldest one if the window is full.
+     * @param heading heading, in degrees
+     * @return mean heading of the window, in 0:360 format
+     */
+    public float add(float heading) {
+        double radians = toRadians(heading);
+        float sine = (float) sin(radians);
+        float cosine = (float) cos(radians);
+
+        if (count == sines.length) {
+            sumSin -= sines[index];
+            sumCos -= cosines[index];
+        } else {
+            count++;
+        }
+        sines[index] = sine;
+        cosines[index] = cosine;
+        sumSin += sine;
+        sumCos += cosine;
+
+        index++;
+        if (index == sines.length) {
+            index = 0;
+            resynchronize();
+        }
+        return getMeanHeading();
+    }
+
+    private void resynchronize() {
+        sumSin = 0;
+        sumCos = 0;
+        for (int i = 0; i < count; i++) {
+            sumSin += sines[i];
+            sumCos += cosines[i];
+        }
+    }
+
+    public void reset() {
+        index = 0;
+        count = 0;
+        sumSin = 0;
+        sumCos = 0;
+    }
+
+    /**
+     * @return number of headings in the window
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean heading of the window, in 0:360 format; 0 if the window is empty or
+     * the headings cancel each other out
+     */
+    public float getMeanHeading() {
+        float mean = (float) toDegrees(atan2(sumSin, sumCos));
+        return (mean + 360f) % 360f;
+    }
+
+    /**
+     * @return circular variance of the window, from 0 for identical headings to 1 for headings
+     * spread evenly around the circle
+     */
+    public float getCircularVariance() {
+        if (count == 0) {
+            return 0;
+        }
+        double resultantLength = sqrt(sumSin * sumSin + sumCos * sumCos) / count;
+        return (float) (1 - Math.min(1, resultantLength));
+    }
+}
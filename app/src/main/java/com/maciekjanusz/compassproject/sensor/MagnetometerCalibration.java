@@ -0,0 +1,391 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.pow;
+import static java.lang.Math.sqrt;
+
+/**
+ * Online hard & soft iron calibration of the magnetometer.
+ * <p>
+ * Undisturbed, the magnetometer readings of a rotating device lie on a sphere centered at zero.
+ * Hard iron (magnetized parts around the sensor) shifts the sphere, soft iron (ferrous parts
+ * bending the field, ie. a car body) deforms it into an ellipsoid. Every accepted sample adds
+ * its row of the ellipsoid equation
+ * {@code a x^2 + b y^2 + c z^2 + 2f yz + 2g xz + 2h xy + 2p x + 2q y + 2r z = 1}
+ * to the least squares normal equations, so the statistics take constant memory and no sample
+ * history is stored. Every {@link #FIT_INTERVAL} samples the ellipsoid is refitted from these
+ * statistics, and the older ones are partially forgotten, so the calibration follows changes of
+ * the environment.
+ * <p>
+ * The fit results in an offset and a symmetric 3x3 transform mapping the ellipsoid back onto
+ * a sphere; the hot path applies them with {@link #apply(float[], float[])}.
+ */
+public class MagnetometerCalibration {
+
+    private static final int PARAMETERS = 9;
+    /**
+     * Accepted samples between two fits
+     */
+    private static final int FIT_INTERVAL = 100;
+    /**
+     * Minimum weight of accumulated samples needed for a fit
+     */
+    private static final int MIN_SAMPLES = 300;
+    /**
+     * Samples closer than this to the last accepted one are ignored, so that the statistics
+     * are not dominated by periods when the device is still, in uT
+     */
+    private static final float MIN_SAMPLE_DISTANCE = 2f;
+    /**
+     * Weight of old statistics kept after every fit
+     */
+    private static final double FORGET_FACTOR = 0.95;
+    /**
+     * Maximum ratio between the longest and shortest ellipsoid axis - anything more skewed
+     * comes from insufficient rotation coverage rather than from real soft iron
+     */
+    private static final double MAX_AXIS_RATIO = 3;
+    /**
+     * Samples are scaled down by this for better conditioning of the normal equations
+     */
+    private static final double SCALE = 50;
+    private static final int JACOBI_SWEEPS = 50;
+
+    // running sufficient statistics: sum of d * d^T and sum of d, for design rows d
+    private final double[] normalMatrix = new double[PARAMETERS * PARAMETERS];
+    private final double[] normalVector = new double[PARAMETERS];
+    private double sampleWeight;
+    private int samplesSinceFit;
+    private final float[] lastSample = new float[3];
+    private boolean hasLastSample;
+
+    // work arrays
+    private final double[] design = new double[PARAMETERS];
+    private final double[] system = new double[PARAMETERS * (PARAMETERS + 1)];
+    private final double[] solution = new double[PARAMETERS];
+    private final double[] quadric = new double[9];
+    private final double[] inverse = new double[9];
+    private final double[] center = new double[3];
+    private final double[] eigenvectors = new double[9];
+
+    // current correction: out = transform * (raw - offset)
+    private final float[] offset = new float[3];
+    private final float[] transform = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+    private volatile boolean calibrated;
+
+    private OnCalibrationUpdatedListener listener;
+
+    /**
+     * Accumulate raw magnetometer reading and refit the calibration when due.
+     * @param values raw magnetometer reading, in uT
+     */
+    public void addSample(float[] values) {
+        float x = values[0];
+        float y = values[1];
+        float z = values[2];
+        if (hasLastSample) {
+            float dx = x - lastSample[0];
+            float dy = y - lastSample[1];
+            float dz = z - lastSample[2];
+            if (dx * dx + dy * dy + dz * dz < MIN_SAMPLE_DISTANCE * MIN_SAMPLE_DISTANCE) {
+                return;
+            }
+        }
+        lastSample[0] = x;
+        lastSample[1] = y;
+        lastSample[2] = z;
+        hasLastSample = true;
+
+        double u = x / SCALE;
+        double v = y / SCALE;
+        double w = z / SCALE;
+        design[0] = u * u;
+        design[1] = v * v;
+        design[2] = w * w;
+        design[3] = 2 * v * w;
+        design[4] = 2 * u * w;
+        design[5] = 2 * u * v;
+        design[6] = 2 * u;
+        design[7] = 2 * v;
+        design[8] = 2 * w;
+
+        synchronized (this) {
+            for (int i = 0; i < PARAMETERS; i++) {
+                normalVector[i] += design[i];
+                // symmetric, fill the upper triangle only
+                for (int j = i; j < PARAMETERS; j++) {
+                    normalMatrix[i * PARAMETERS + j] += design[i] * design[j];
+                }
+            }
+            sampleWeight++;
+        }
+
+        if (++samplesSinceFit >= FIT_INTERVAL) {
+            samplesSinceFit = 0;
+            if (fit() && listener != null) {
+                listener.onCalibrationUpdated(this);
+            }
+        }
+    }
+
+    /**
+     * Apply current calibration to raw reading. Returns the reading unchanged until the first
+     * successful fit (or until calibration is loaded with {@link #setCalibration}).
+     * @param raw raw magnetometer reading
+     * @param out calibrated reading output, 3 elements
+     */
+    public void apply(float[] raw, float[] out) {
+        float x = raw[0] - offset[0];
+        float y = raw[1] - offset[1];
+        float z = raw[2] - offset[2];
+        out[0] = transform[0] * x + transform[1] * y + transform[2] * z;
+        out[1] = transform[3] * x + transform[4] * y + transform[5] * z;
+        out[2] = transform[6] * x + transform[7] * y + transform[8] * z;
+    }
+
+    /**
+     * Fit the ellipsoid to the statistics accumulated so far and update the calibration
+     * if the fit is valid.
+     * @return true if the calibration has been updated
+     */
+    public synchronized boolean fit() {
+        if (sampleWeight < MIN_SAMPLES) {
+            return false;
+        }
+        boolean updated = solveEllipsoid();
+
+        // partially forget the old statistics
+        for (int i = 0; i < normalMatrix.length; i++) {
+            normalMatrix[i] *= FORGET_FACTOR;
+        }
+        for (int i = 0; i < PARAMETERS; i++) {
+            normalVector[i] *= FORGET_FACTOR;
+        }
+        sampleWeight *= FORGET_FACTOR;
+        return updated;
+    }
+
+    private boolean solveEllipsoid() {
+        // augmented system [N | b], lower triangle mirrored from the upper one
+        int columns = PARAMETERS + 1;
+        for (int i = 0; i < PARAMETERS; i++) {
+            for (int j = 0; j < PARAMETERS; j++) {
+                system[i * columns + j] = i <= j
+                        ? normalMatrix[i * PARAMETERS + j]
+                        : normalMatrix[j * PARAMETERS + i];
+            }
+            system[i * columns + PARAMETERS] = normalVector[i];
+        }
+        if (!gaussianElimination(system, PARAMETERS, solution)) {
+            return false;
+        }
+
+        // quadric matrix A and linear term b of u^T A u + 2 b^T u = 1
+        quadric[0] = solution[0];
+        quadric[4] = solution[1];
+        quadric[8] = solution[2];
+        quadric[5] = quadric[7] = solution[3];
+        quadric[2] = quadric[6] = solution[4];
+        quadric[1] = quadric[3] = solution[5];
+        if (!invert3x3(quadric, inverse)) {
+            return false;
+        }
+
+        // center c = -A^-1 b, and (u - c)^T A (u - c) = 1 + c^T A c
+        double k = 1;
+        for (int i = 0; i < 3; i++) {
+            center[i] = -(inverse[i * 3] * solution[6] + inverse[i * 3 + 1] * solution[7]
+                    + inverse[i * 3 + 2] * solution[8]);
+        }
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                k += center[i] * quadric[i * 3 + j] * center[j];
+            }
+        }
+        if (k <= 0) {
+            return false;
+        }
+        for (int i = 0; i < 9; i++) {
+            quadric[i] /= k;
+        }
+
+        // eigen decomposition of the normalized quadric, its eigenvalues are 1 / axis^2
+        jacobiEigen(quadric, eigenvectors);
+        double l0 = quadric[0];
+        double l1 = quadric[4];
+        double l2 = quadric[8];
+        double minEigen = Math.min(l0, Math.min(l1, l2));
+        double maxEigen = Math.max(l0, Math.max(l1, l2));
+        if (minEigen <= 0 || maxEigen / minEigen > MAX_AXIS_RATIO * MAX_AXIS_RATIO) {
+            return false;
+        }
+
+        // transform = r * sqrt(A): maps the ellipsoid onto a sphere of radius r, the geometric
+        // mean of the axes, so that the field strength is preserved
+        double radius = pow(l0 * l1 * l2, -1.0 / 6);
+        double s0 = radius * sqrt(l0);
+        double s1 = radius * sqrt(l1);
+        double s2 = radius * sqrt(l2);
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                transform[i * 3 + j] = (float) (eigenvectors[i * 3] * s0 * eigenvectors[j * 3]
+                        + eigenvectors[i * 3 + 1] * s1 * eigenvectors[j * 3 + 1]
+                        + eigenvectors[i * 3 + 2] * s2 * eigenvectors[j * 3 + 2]);
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            offset[i] = (float) (center[i] * SCALE);
+        }
+        calibrated = true;
+        return true;
+    }
+
+    /**
+     * Solves n x n system given as augmented row-major matrix, with partial pivoting.
+     * The matrix is destroyed.
+     */
+    private static boolean gaussianElimination(double[] m, int n, double[] out) {
+        int columns = n + 1;
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (abs(m[row * columns + col]) > abs(m[pivot * columns + col])) {
+                    pivot = row;
+                }
+            }
+            if (abs(m[pivot * columns + col]) < 1e-12) {
+                return false;
+            }
+            if (pivot != col) {
+                for (int j = col; j < columns; j++) {
+                    double tmp = m[col * columns + j];
+                    m[col * columns + j] = m[pivot * columns + j];
+                    m[pivot * columns + j] = tmp;
+                }
+            }
+            for (int row = col + 1; row < n; row++) {
+                double factor = m[row * columns + col] / m[col * columns + col];
+                for (int j = col; j < columns; j++) {
+                    m[row * columns + j] -= factor * m[col * columns + j];
+                }
+            }
+        }
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = m[row * columns + n];
+            for (int j = row + 1; j < n; j++) {
+                sum -= m[row * columns + j] * out[j];
+            }
+            out[row] = sum / m[row * columns + row];
+        }
+        return true;
+    }
+
+    private static boolean invert3x3(double[] m, double[] out) {
+        double c00 = m[4] * m[8] - m[5] * m[7];
+        double c01 = m[5] * m[6] - m[3] * m[8];
+        double c02 = m[3] * m[7] - m[4] * m[6];
+        double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+        if (abs(det) < 1e-12) {
+            return false;
+        }
+        double invDet = 1 / det;
+        out[0] = c00 * invDet;
+        out[1] = (m[2] * m[7] - m[1] * m[8]) * invDet;
+        out[2] = (m[1] * m[5] - m[2] * m[4]) * invDet;
+        out[3] = c01 * invDet;
+        out[4] = (m[0] * m[8] - m[2] * m[6]) * invDet;
+        out[5] = (m[2] * m[3] - m[0] * m[5]) * invDet;
+        out[6] = c02 * invDet;
+        out[7] = (m[1] * m[6] - m[0] * m[7]) * invDet;
+        out[8] = (m[0] * m[4] - m[1] * m[3]) * invDet;
+        return true;
+    }
+
+    /**
+     * Cyclic Jacobi eigenvalue algorithm for symmetric 3x3 matrix. On return, the diagonal of
+     * m holds the eigenvalues and the columns of v the corresponding eigenvectors.
+     */
+    private static void jacobiEigen(double[] m, double[] v) {
+        v[0] = v[4] = v[8] = 1;
+        v[1] = v[2] = v[3] = v[5] = v[6] = v[7] = 0;
+        for (int sweep = 0; sweep < JACOBI_SWEEPS; sweep++) {
+            double off = m[1] * m[1] + m[2] * m[2] + m[5] * m[5];
+            if (off < 1e-24) {
+                return;
+            }
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    double apq = m[p * 3 + q];
+                    if (abs(apq) < 1e-30) {
+                        continue;
+                    }
+                    double theta = (m[q * 3 + q] - m[p * 3 + p]) / (2 * apq);
+                    double t = (theta >= 0 ? 1 : -1) / (abs(theta) + sqrt(theta * theta + 1));
+                    double c = 1 / sqrt(t * t + 1);
+                    double s = t * c;
+                    // m = J^T m J, v = v J
+                    for (int k = 0; k < 3; k++) {
+                        double mkp = m[k * 3 + p];
+                        double mkq = m[k * 3 + q];
+                        m[k * 3 + p] = c * mkp - s * mkq;
+                        m[k * 3 + q] = s * mkp + c * mkq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double mpk = m[p * 3 + k];
+                        double mqk = m[q * 3 + k];
+                        m[p * 3 + k] = c * mpk - s * mqk;
+                        m[q * 3 + k] = s * mpk + c * mqk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double vkp = v[k * 3 + p];
+                        double vkq = v[k * 3 + q];
+                        v[k * 3 + p] = c * vkp - s * vkq;
+                        v[k * 3 + q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if a calibration has been fitted or loaded
+     */
+    public boolean isCalibrated() {
+        return calibrated;
+    }
+
+    /**
+     * Copy current calibration parameters, ie. for persisting them.
+     * @param offset hard iron offset output, 3 elements, in uT
+     * @param transform soft iron transform output, 3x3 row-major
+     */
+    public synchronized void getCalibration(float[] offset, float[] transform) {
+        System.arraycopy(this.offset, 0, offset, 0, 3);
+        System.arraycopy(this.transform, 0, transform, 0, 9);
+    }
+
+    /**
+     * Load previously persisted calibration parameters. Must not be called while the
+     * calibration is being applied to sensor readings.
+     * @param offset hard iron offset, 3 elements, in uT
+     * @param transform soft iron transform, 3x3 row-major
+     */
+    public synchronized void setCalibration(float[] offset, float[] transform) {
+        System.arraycopy(offset, 0, this.offset, 0, 3);
+        System.arraycopy(transform, 0, this.transform, 0, 9);
+        calibrated = true;
+    }
+
+    /**
+     * Set listener called whenever {@link #addSample(float[])} refits the calibration, on
+     * the thread adding the samples.
+     * @param listener listener, or null to remove
+     */
+    public void setOnCalibrationUpdatedListener(OnCalibrationUpdatedListener listener) {
+        this.listener = listener;
+    }
+
+    public interface OnCalibrationUpdatedListener {
+        void onCalibrationUpdated(MagnetometerCalibration calibration);
+    }
+}
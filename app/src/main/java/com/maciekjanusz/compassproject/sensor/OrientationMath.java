@@ -0,0 +1,233 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import static java.lang.Math.asin;
+import static java.lang.Math.atan2;
+import static java.lang.Math.sqrt;
+
+/**
+ * Pure Java, allocation-free equivalents of the {@link android.hardware.SensorManager} static
+ * functions used to solve the device orientation. Results are written into caller-provided
+ * arrays and follow the conventions of the framework implementation, so that the orientation
+ * math can be run, tested and profiled on the JVM.
+ * Only 3x3 (9 element) matrices are supported.
+ */
+public enum OrientationMath {;
+
+    /**
+     * Standard gravity, in m/s^2
+     */
+    private static final float GRAVITY_EARTH = 9.80665f;
+    /**
+     * Gravity norm (squared) below which the device is considered to be in free fall
+     */
+    private static final float FREE_FALL_GRAVITY_SQUARED = 0.01f * GRAVITY_EARTH * GRAVITY_EARTH;
+    /**
+     * Minimum norm of gravity x geomagnetic cross product, below which the device is considered
+     * to be close to the magnetic pole (or the field is missing) and no solution is found
+     */
+    private static final float MIN_CROSS_PRODUCT_NORM = 0.1f;
+
+    // axis identifiers, same values as SensorManager.AXIS_* constants
+    public static final int AXIS_X = 1;
+    public static final int AXIS_Y = 2;
+    public static final int AXIS_Z = 3;
+    public static final int AXIS_MINUS_X = AXIS_X | 0x80;
+    public static final int AXIS_MINUS_Y = AXIS_Y | 0x80;
+    public static final int AXIS_MINUS_Z = AXIS_Z | 0x80;
+
+    /**
+     * Equivalent of {@link android.hardware.SensorManager#getRotationMatrix}: computes the
+     * rotation matrix transforming vectors from device to world coordinates (x - east,
+     * y - north, z - up) and the inclination matrix.
+     *
+     * @param r rotation matrix output, 9 elements, may be null
+     * @param i inclination matrix output, 9 elements, may be null
+     * @param gravity gravity vector in device coordinates (ie. from accelerometer)
+     * @param geomagnetic geomagnetic field vector in device coordinates
+     * @return true on success, false if the device is in free fall or close to magnetic pole
+     */
+    public static boolean getRotationMatrix(float[] r, float[] i,
+                                            float[] gravity, float[] geomagnetic) {
+        float ax = gravity[0];
+        float ay = gravity[1];
+        float az = gravity[2];
+
+        float normSqA = ax * ax + ay * ay + az * az;
+        if (normSqA < FREE_FALL_GRAVITY_SQUARED) {
+            return false;
+        }
+
+        float ex = geomagnetic[0];
+        float ey = geomagnetic[1];
+        float ez = geomagnetic[2];
+        // east = geomagnetic x gravity
+        float hx = ey * az - ez * ay;
+        float hy = ez * ax - ex * az;
+        float hz = ex * ay - ey * ax;
+        float normH = (float) sqrt(hx * hx + hy * hy + hz * hz);
+        if (normH < MIN_CROSS_PRODUCT_NORM) {
+            return false;
+        }
+
+        float invH = 1f / normH;
+        hx *= invH;
+        hy *= invH;
+        hz *= invH;
+        float invA = 1f / (float) sqrt(normSqA);
+        ax *= invA;
+        ay *= invA;
+        az *= invA;
+        // north = up x east
+        float mx = ay * hz - az * hy;
+        float my = az * hx - ax * hz;
+        float mz = ax * hy - ay * hx;
+
+        if (r != null) {
+            r[0] = hx;
+            r[1] = hy;
+            r[2] = hz;
+            r[3] = mx;
+            r[4] = my;
+            r[5] = mz;
+            r[6] = ax;
+            r[7] = ay;
+            r[8] = az;
+        }
+
+        if (i != null) {
+            // compute the inclination matrix by projecting the geomagnetic
+            // vector onto the Z (gravity) and X (horizontal component of geomagnetic) axes
+            float invE = 1f / (float) sqrt(ex * ex + ey * ey + ez * ez);
+            float c = (ex * mx + ey * my + ez * mz) * invE;
+            float s = (ex * ax + ey * ay + ez * az) * invE;
+            i[0] = 1;
+            i[1] = 0;
+            i[2] = 0;
+            i[3] = 0;
+            i[4] = c;
+            i[5] = s;
+            i[6] = 0;
+            i[7] = -s;
+            i[8] = c;
+        }
+        return true;
+    }
+
+    /**
+     * Equivalent of {@link android.hardware.SensorManager#getInclination}.
+     * @param i inclination matrix, as computed by {@link #getRotationMatrix}
+     * @return geomagnetic inclination angle, in radians
+     */
+    public static float getInclination(float[] i) {
+        return (float) atan2(i[5], i[4]);
+    }
+
+    /**
+     * Equivalent of {@link android.hardware.SensorManager#getOrientation}.
+     * @param r rotation matrix
+     * @param values output: azimuth (-pi:pi), pitch (-pi/2:pi/2) and roll (-pi:pi), in radians
+     * @return values array
+     */
+    public static float[] getOrientation(float[] r, float[] values) {
+        values[0] = (float) atan2(r[1], r[4]);
+        values[1] = (float) asin(-r[7]);
+        values[2] = (float) atan2(-r[6], r[8]);
+        return values;
+    }
+
+    /**
+     * Equivalent of {@link android.hardware.SensorManager#getRotationMatrixFromVector}. Accepts
+     * rotation vectors of 3 values (scalar component is derived), or more (only first 4 are
+     * used), regardless of platform version.
+     * @param r rotation matrix output, 9 elements
+     * @param rotationVector rotation vector, as reported by rotation vector sensors
+     */
+    public static void getRotationMatrixFromVector(float[] r, float[] rotationVector) {
+        float q1 = rotationVector[0];
+        float q2 = rotationVector[1];
+        float q3 = rotationVector[2];
+        float q0;
+        if (rotationVector.length >= 4) {
+            q0 = rotationVector[3];
+        } else {
+            q0 = 1 - q1 * q1 - q2 * q2 - q3 * q3;
+            q0 = q0 > 0 ? (float) sqrt(q0) : 0;
+        }
+
+        float sqQ1 = 2 * q1 * q1;
+        float sqQ2 = 2 * q2 * q2;
+        float sqQ3 = 2 * q3 * q3;
+        float q1q2 = 2 * q1 * q2;
+        float q3q0 = 2 * q3 * q0;
+        float q1q3 = 2 * q1 * q3;
+        float q2q0 = 2 * q2 * q0;
+        float q2q3 = 2 * q2 * q3;
+        float q1q0 = 2 * q1 * q0;
+
+        r[0] = 1 - sqQ2 - sqQ3;
+        r[1] = q1q2 - q3q0;
+        r[2] = q1q3 + q2q0;
+        r[3] = q1q2 + q3q0;
+        r[4] = 1 - sqQ1 - sqQ3;
+        r[5] = q2q3 - q1q0;
+        r[6] = q1q3 - q2q0;
+        r[7] = q2q3 + q1q0;
+        r[8] = 1 - sqQ1 - sqQ2;
+    }
+
+    /**
+     * Equivalent of {@link android.hardware.SensorManager#remapCoordinateSystem}: rotates
+     * the rotation matrix so that it is expressed in a different device coordinate system,
+     * e.g. one aligned with the screen in landscape orientation.
+     *
+     * @param inR rotation matrix to transform, 9 elements
+     * @param x axis of the new coordinate system on which the device x axis is mapped,
+     *          one of AXIS_* constants
+     * @param y axis of the new coordinate system on which the device y axis is mapped,
+     *          one of AXIS_* constants
+     * @param outR transformed rotation matrix output, 9 elements, must not be inR
+     * @return true on success, false if the axes are invalid (e.g. x and y are the same axis)
+     */
+    public static boolean remapCoordinateSystem(float[] inR, int x, int y, float[] outR) {
+        if ((x & 0x7C) != 0 || (y & 0x7C) != 0) {
+            return false; // invalid parameter
+        }
+        if ((x & 0x3) == 0 || (y & 0x3) == 0) {
+            return false; // no axis specified
+        }
+        if ((x & 0x3) == (y & 0x3)) {
+            return false; // same axis specified
+        }
+
+        // z is "the other" axis, its sign is either +/- sign(x) * sign(y),
+        // depending on whether x, y, z form a right or left handed system
+        int z = x ^ y;
+        int xAxis = (x & 0x3) - 1;
+        int yAxis = (y & 0x3) - 1;
+        int zAxis = (z & 0x3) - 1;
+        if (xAxis != (zAxis + 1) % 3 || yAxis != (zAxis + 2) % 3) {
+            // x, y, z axes are not in cyclic order - left handed system
+            z ^= 0x80;
+        }
+
+        boolean negativeX = x >= 0x80;
+        boolean negativeY = y >= 0x80;
+        boolean negativeZ = z >= 0x80;
+
+        for (int row = 0; row < 3; row++) {
+            int offset = row * 3;
+            for (int column = 0; column < 3; column++) {
+                if (xAxis == column) {
+                    outR[offset + column] = negativeX ? -inR[offset] : inR[offset];
+                }
+                if (yAxis == column) {
+                    outR[offset + column] = negativeY ? -inR[offset + 1] : inR[offset + 1];
+                }
+                if (zAxis == column) {
+                    outR[offset + column] = negativeZ ? -inR[offset + 2] : inR[offset + 2];
+                }
+            }
+        }
+        return true;
+    }
+}
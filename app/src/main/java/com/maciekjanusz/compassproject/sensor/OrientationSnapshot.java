@@ -0,0 +1,162 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holder of the latest orientation solved by {@link Compass}, shared between the sensor thread
+ * (the only writer) and any number of reader threads without locking or allocation.
+ * <p>
+ * This is a sequence lock: the writer makes the sequence odd, writes the values and makes it
+ * even again. Readers retry until they see the same, even sequence before and after reading
+ * the values, so they always get a consistent bearing / pitch / roll triple. Readers never
+ * block the writer and only ever see the newest values.
+ */
+public class OrientationSnapshot {
+
+    private volatile int sequence;
+
+    private volatile float bearing;
+    private volatile float pitch;
+    private volatile float roll;
+    private volatile long timestamp;
+
+    /**
+     * Listeners notified after every publish, replaced as a whole so that publishing iterates
+     * without locking or allocation
+     */
+    private volatile OnPublishListener[] publishListeners = new OnPublishListener[0];
+
+    /**
+     * Publish new orientation values. Must be called from a single thread only.
+     * @param bearing bearing in 0:360 format
+     * @param pitch pitch in -90:90 format
+     * @param roll roll in -180:180 format
+     * @param timestamp sensor event timestamp, in nanoseconds
+     */
+    void publish(float bearing, float pitch, float roll, long timestamp) {
+        int seq = sequence;
+        sequence = seq + 1;
+        this.bearing = bearing;
+        this.pitch = pitch;
+        this.roll = roll;
+        this.timestamp = timestamp;
+        sequence = seq + 2;
+
+        OnPublishListener[] listeners = publishListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onPublish();
+        }
+    }
+
+    /**
+     * Add listener notified on the writer thread after every publish. Intended for readers that
+     * stop polling while nothing changes, to be woken up again; the listener must return quickly.
+     */
+    public synchronized void addOnPublishListener(OnPublishListener listener) {
+        OnPublishListener[] listeners = Arrays.copyOf(publishListeners,
+                publishListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        publishListeners = listeners;
+    }
+
+    public synchronized void removeOnPublishListener(OnPublishListener listener) {
+        List<OnPublishListener> listeners = new ArrayList<>(Arrays.asList(publishListeners));
+        if (listeners.remove(listener)) {
+            publishListeners = listeners.toArray(new OnPublishListener[listeners.size()]);
+        }
+    }
+
+    /**
+     * Read the newest published values into given orientation.
+     * @param out orientation to fill
+     * @return false if nothing has been published yet, true otherwise
+     */
+    public boolean read(Orientation out) {
+        int before;
+        int after;
+        float b, p, r;
+        long t;
+        do {
+            before = sequence;
+            b = bearing;
+            p = pitch;
+            r = roll;
+            t = timestamp;
+            after = sequence;
+        } while ((before & 1) != 0 || before != after);
+
+        out.set(b, p, r, t, before >>> 1);
+        return before != 0;
+    }
+
+    /**
+     * @return number of orientations published so far
+     */
+    public int getCount() {
+        return sequence >>> 1;
+    }
+
+    public interface OnPublishListener {
+        /**
+         * Called on the writer thread, after new values were published.
+         */
+        void onPublish();
+    }
+
+    /**
+     * Mutable, reusable orientation value read from {@link OrientationSnapshot}.
+     */
+    public static class Orientation {
+
+        private float bearing;
+        private float pitch;
+        private float roll;
+        private long timestamp;
+        private int count;
+
+        void set(float bearing, float pitch, float roll, long timestamp, int count) {
+            this.bearing = bearing;
+            this.pitch = pitch;
+            this.roll = roll;
+            this.timestamp = timestamp;
+            this.count = count;
+        }
+
+        /**
+         * @return bearing in 0:360 format
+         */
+        public float getBearing() {
+            return bearing;
+        }
+
+        /**
+         * @return pitch in -90:90 format
+         */
+        public float getPitch() {
+            return pitch;
+        }
+
+        /**
+         * @return roll in -180:180 format
+         */
+        public float getRoll() {
+            return roll;
+        }
+
+        /**
+         * @return sensor event timestamp, in nanoseconds
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return number of orientations published up to and including this one
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+
+/**
+ * Base class for sensor backends that provide device orientation to {@link Compass}, in form of
+ * a rotation matrix as returned by {@link SensorManager#getRotationMatrix}.
+ * Implementations register themselves for the sensor events they need and hand every solved
+ * rotation matrix over to the {@link Callback}.
+ */
+public abstract class OrientationSource implements SensorEventListener {
+
+    private final SensorManager sensorManager;
+    private Callback callback;
+    private long solves;
+    private volatile SensorRecorder recorder;
+    private MagnetometerCalibration magnetometerCalibration;
+    private final float[] calibratedMagnetometerValues = new float[3];
+    private HeadingQualityMonitor qualityMonitor;
+
+    protected OrientationSource(SensorManager sensorManager) {
+        this.sensorManager = sensorManager;
+    }
+
+    /**
+     * @return true if all the sensors required by this source are present on the device
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * Register for sensor events at given rate.
+     * @param samplingPeriod one of SensorManager.SENSOR_DELAY_* constants or sampling period
+     *                       in microseconds
+     * @param maxReportLatencyUs maximum time events can be batched in the sensor hardware FIFO
+     *                           before being reported, in microseconds; 0 disables batching
+     * @param handler handler on which sensor events are delivered, or null for the main thread
+     */
+    abstract void register(int samplingPeriod, int maxReportLatencyUs, Handler handler);
+
+    /**
+     * Register this source as listener of given sensor. Batching is requested only on platform
+     * versions that support it, older ones deliver the events as they come.
+     */
+    protected void registerSensor(Sensor sensor, int samplingPeriod, int maxReportLatencyUs,
+                                  Handler handler) {
+        if (maxReportLatencyUs > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            sensorManager.registerListener(this, sensor, samplingPeriod, maxReportLatencyUs,
+                    handler);
+        } else {
+            sensorManager.registerListener(this, sensor, samplingPeriod, handler);
+        }
+    }
+
+    /**
+     * Unregister from all sensor events.
+     */
+    void unregister() {
+        sensorManager.unregisterListener(this);
+    }
+
+    @Override
+    public final void onSensorChanged(SensorEvent event) {
+        SensorRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.record(event.sensor.getType(), event.accuracy, event.timestamp, event.values);
+        }
+        onSample(event.sensor.getType(), event.values, event.timestamp);
+    }
+
+    /**
+     * Process single sensor reading, either received from the sensor or replayed.
+     * Readings of sensor types the source does not use must be ignored.
+     * @param sensorType type of the sensor, one of Sensor.TYPE_* constants
+     * @param values sensor values, valid only for the duration of the call
+     * @param timestamp reading timestamp, in nanoseconds
+     */
+    protected abstract void onSample(int sensorType, float[] values, long timestamp);
+
+    /**
+     * Set recorder to which every sensor event is written before being processed.
+     * @param recorder recorder, or null to stop recording
+     */
+    void setRecorder(SensorRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Set magnetometer calibration, fed and applied by {@link #processMagnetometer(float[])}.
+     * Ignored by sources that don't {@link #appliesMagnetometerCalibration() apply} it.
+     * Must be set before the source is registered.
+     * @param magnetometerCalibration calibration, or null to use raw magnetometer readings
+     */
+    void setMagnetometerCalibration(MagnetometerCalibration magnetometerCalibration) {
+        this.magnetometerCalibration = appliesMagnetometerCalibration()
+                ? magnetometerCalibration : null;
+    }
+
+    /**
+     * @return true if the source solves orientation from magnetometer readings corrected by
+     * the magnetometer calibration, false if it only monitors them
+     */
+    boolean appliesMagnetometerCalibration() {
+        return true;
+    }
+
+    /**
+     * Set monitor fed with magnetometer readings, attitude and accuracy of this source.
+     * Must be set before the source is registered.
+     * @param qualityMonitor monitor, or null to disable monitoring
+     */
+    void setQualityMonitor(HeadingQualityMonitor qualityMonitor) {
+        this.qualityMonitor = qualityMonitor;
+    }
+
+    /**
+     * @return true if heading quality is monitored, in which case the source must also
+     * process magnetometer readings
+     */
+    protected boolean isQualityMonitored() {
+        return qualityMonitor != null;
+    }
+
+    /**
+     * Feed the magnetometer calibration with raw reading and correct it, then pass it on
+     * to the quality monitor.
+     * @param values raw magnetometer reading
+     * @return calibrated reading, valid until next call, or the raw reading when there
+     * is no calibration
+     */
+    protected float[] processMagnetometer(float[] values) {
+        MagnetometerCalibration calibration = magnetometerCalibration;
+        float[] calibrated = values;
+        if (calibration != null) {
+            calibration.addSample(values);
+            calibration.apply(values, calibratedMagnetometerValues);
+            calibrated = calibratedMagnetometerValues;
+        }
+        if (qualityMonitor != null) {
+            qualityMonitor.onMagneticField(calibrated);
+        }
+        return calibrated;
+    }
+
+    void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    protected SensorManager getSensorManager() {
+        return sensorManager;
+    }
+
+    /**
+     * Pass a solved rotation matrix on to the callback. Must be called holding the lock of
+     * this source, which also guards the solve counters.
+     * @param rotationMatrix 3x3 rotation matrix, valid only for the duration of the call
+     * @param timestamp timestamp of the newest sensor event used for the solve, in nanoseconds
+     */
+    protected void publish(float[] rotationMatrix, long timestamp) {
+        solves++;
+        if (qualityMonitor != null) {
+            qualityMonitor.onRotationMatrix(rotationMatrix);
+        }
+        if (callback != null) {
+            callback.onRotationMatrix(rotationMatrix, timestamp);
+        }
+    }
+
+    /**
+     * @return number of rotation matrices published since this source was created
+     */
+    synchronized long getSolveCount() {
+        return solves;
+    }
+
+    /**
+     * @return number of sensor events that did not result in a published rotation matrix
+     */
+    synchronized long getSkippedSolveCount() {
+        return 0;
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        if (qualityMonitor != null && sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
+            qualityMonitor.onAccuracyChanged(accuracy);
+        }
+    }
+
+    interface Callback {
+        /**
+         * Called on the sensor thread for every rotation matrix solved by the source.
+         * @param rotationMatrix 3x3 rotation matrix, must not be stored by the callback
+         * @param timestamp sensor event timestamp, in nanoseconds
+         */
+        void onRotationMatrix(float[] rotationMatrix, long timestamp);
+    }
+}
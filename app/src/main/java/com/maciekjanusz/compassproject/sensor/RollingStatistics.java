@@ -0,0 +1,83 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import static java.lang.Math.max;
+import static java.lang.Math.sqrt;
+
+/**
+ * Mean and standard deviation over a sliding window of the most recent values, updated in
+ * constant time per value from running sums. The sums are recomputed from the window each time
+ * it wraps around, so that floating point error does not accumulate.
+ */
+class RollingStatistics {
+
+    private final float[] window;
+    private int index;
+    private int count;
+    private double sum;
+    private double sumOfSquares;
+
+    /**
+     * @param size number of most recent values the statistics are calculated from
+     */
+    RollingStatistics(int size) {
+        window = new float[size];
+    }
+
+    void add(float value) {
+        if (count == window.length) {
+            float oldest = window[index];
+            sum -= oldest;
+            sumOfSquares -= (double) oldest * oldest;
+        } else {
+            count++;
+        }
+        window[index] = value;
+        sum += value;
+        sumOfSquares += (double) value * value;
+
+        index++;
+        if (index == window.length) {
+            index = 0;
+            resynchronize();
+        }
+    }
+
+    private void resynchronize() {
+        sum = 0;
+        sumOfSquares = 0;
+        for (int i = 0; i < count; i++) {
+            sum += window[i];
+            sumOfSquares += (double) window[i] * window[i];
+        }
+    }
+
+    void reset() {
+        index = 0;
+        count = 0;
+        sum = 0;
+        sumOfSquares = 0;
+    }
+
+    /**
+     * @return number of values in the window
+     */
+    int getCount() {
+        return count;
+    }
+
+    boolean isFull() {
+        return count == window.length;
+    }
+
+    float getMean() {
+        return count == 0 ? 0 : (float) (sum / count);
+    }
+
+    float getStandardDeviation() {
+        if (count == 0) {
+            return 0;
+        }
+        double mean = sum / count;
+        return (float) sqrt(max(0, sumOfSquares / count - mean * mean));
+    }
+}
@@ -0,0 +1,73 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+/**
+ * Orientation source backed by one of the fused rotation vector sensors
+ * ({@link Sensor#TYPE_ROTATION_VECTOR} or {@link Sensor#TYPE_GEOMAGNETIC_ROTATION_VECTOR}).
+ * Sensor fusion and filtering is done by the sensor hub / HAL, so the only work left here is
+ * the conversion of the rotation vector to a rotation matrix.
+ */
+public class RotationVectorOrientationSource extends OrientationSource {
+
+    private final int sensorType;
+    private final Sensor rotationVectorSensor;
+    private final Sensor magnetometer;
+
+    private final float[] rotMatR = new float[9];
+
+    /**
+     * @param sensorManager sensor manager
+     * @param sensorType {@link Sensor#TYPE_ROTATION_VECTOR} or
+     *                   {@link Sensor#TYPE_GEOMAGNETIC_ROTATION_VECTOR}
+     */
+    public RotationVectorOrientationSource(SensorManager sensorManager, int sensorType) {
+        super(sensorManager);
+        this.sensorType = sensorType;
+        rotationVectorSensor = sensorManager.getDefaultSensor(sensorType);
+        magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return rotationVectorSensor != null;
+    }
+
+    @Override
+    void register(int samplingPeriod, int maxReportLatencyUs, Handler handler) {
+        registerSensor(rotationVectorSensor, samplingPeriod, maxReportLatencyUs, handler);
+        if (isQualityMonitored() && magnetometer != null) {
+            // the fused sensor does not expose the field it is based on, read it separately;
+            // the magnetometer is active anyway, as input of the fusion
+            registerSensor(magnetometer, samplingPeriod, maxReportLatencyUs, handler);
+        }
+    }
+
+    @Override
+    boolean appliesMagnetometerCalibration() {
+        // the rotation vector is calibrated by the platform, the magnetometer is read only
+        // for quality monitoring
+        return false;
+    }
+
+    @Override
+    protected void onSample(int sensorType, float[] values, long timestamp) {
+        if (sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
+            synchronized (this) {
+                processMagnetometer(values);
+            }
+            return;
+        }
+        if (sensorType != this.sensorType) {
+            return;
+        }
+        synchronized (this) {
+            // OrientationMath accepts any number of values, unlike the framework function,
+            // which throws for more than 4 values on older platform versions
+            OrientationMath.getRotationMatrixFromVector(rotMatR, values);
+            publish(rotMatR, timestamp);
+        }
+    }
+}
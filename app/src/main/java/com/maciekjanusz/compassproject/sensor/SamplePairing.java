@@ -0,0 +1,80 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs accelerometer and magnetometer samples using {@link android.hardware.SensorEvent#timestamp}
+ * values, so that the orientation is solved once per fresh accelerometer + magnetometer pair
+ * instead of once per single sensor event.
+ * <p>
+ * A pair is complete when both sensors have delivered a sample that was not used in a previous
+ * solve, and the two timestamps are no further apart than the staleness window. Every sample
+ * that does not complete a pair counts as a skipped solve.
+ */
+class SamplePairing {
+
+    /**
+     * Default maximum distance between paired sample timestamps
+     */
+    static final long DEFAULT_STALENESS_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long stalenessWindowNanos = DEFAULT_STALENESS_WINDOW_NANOS;
+
+    private long accelerometerTimestamp;
+    private long magnetometerTimestamp;
+    private boolean accelerometerFresh;
+    private boolean magnetometerFresh;
+
+    private long skippedSolves;
+
+    /**
+     * Register new accelerometer sample.
+     * @param timestamp sample timestamp, in nanoseconds
+     * @return true if the sample completes a pair and the orientation should be solved
+     */
+    boolean onAccelerometerSample(long timestamp) {
+        accelerometerTimestamp = timestamp;
+        accelerometerFresh = true;
+        return tryPair();
+    }
+
+    /**
+     * Register new magnetometer sample.
+     * @param timestamp sample timestamp, in nanoseconds
+     * @return true if the sample completes a pair and the orientation should be solved
+     */
+    boolean onMagnetometerSample(long timestamp) {
+        magnetometerTimestamp = timestamp;
+        magnetometerFresh = true;
+        return tryPair();
+    }
+
+    private boolean tryPair() {
+        if (accelerometerFresh && magnetometerFresh
+                && Math.abs(accelerometerTimestamp - magnetometerTimestamp) <= stalenessWindowNanos) {
+            // both samples are consumed by this solve
+            accelerometerFresh = false;
+            magnetometerFresh = false;
+            return true;
+        }
+        skippedSolves++;
+        return false;
+    }
+
+    /**
+     * Forget the samples registered so far, so that no pair is made with samples received
+     * before the sensors were re-registered. Counters are kept.
+     */
+    void reset() {
+        accelerometerFresh = false;
+        magnetometerFresh = false;
+    }
+
+    void setStalenessWindow(long stalenessWindowNanos) {
+        this.stalenessWindowNanos = stalenessWindowNanos;
+    }
+
+    long getSkippedSolves() {
+        return skippedSolves;
+    }
+}
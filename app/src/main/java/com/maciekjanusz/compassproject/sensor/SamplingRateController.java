@@ -0,0 +1,166 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import android.hardware.SensorManager;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Math.sqrt;
+
+/**
+ * Decides at which rate {@link Compass} should sample its sensors, based on how much the heading
+ * moves. Tracks exponentially weighted mean and variance of the heading; when its standard
+ * deviation stays below {@link #STATIONARY_DEVIATION} for {@link #STATIONARY_DURATION_NANOS},
+ * the device is considered stationary and the sampling period is relaxed. As soon as the
+ * deviation exceeds {@link #MOTION_DEVIATION}, the fast rate is restored.
+ */
+public class SamplingRateController {
+
+    /**
+     * Heading standard deviation below which the device may be considered stationary, in degrees
+     */
+    private static final float STATIONARY_DEVIATION = 1f;
+    /**
+     * Heading standard deviation above which the device is considered moving, in degrees
+     */
+    private static final float MOTION_DEVIATION = 3f;
+    /**
+     * How long the deviation must stay low before switching to stationary state
+     */
+    private static final long STATIONARY_DURATION_NANOS = TimeUnit.SECONDS.toNanos(2);
+    /**
+     * Time constant of the heading statistics, in seconds
+     */
+    private static final float STATISTICS_TIME_CONSTANT = 0.5f;
+    private static final float NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    public enum State {
+        /**
+         * Device is moving, sensors are sampled at the fast rate
+         */
+        MOVING,
+        /**
+         * Device is still, sensors are sampled at the relaxed rate
+         */
+        STATIONARY
+    }
+
+    private int movingSamplingPeriod = SensorManager.SENSOR_DELAY_FASTEST;
+    private int stationarySamplingPeriod = SensorManager.SENSOR_DELAY_UI;
+
+    private volatile State state = State.MOVING;
+    private volatile int transitions;
+
+    private float meanHeading;
+    private float headingVariance;
+    private long lastTimestamp;
+    private long quietSince;
+    private boolean initialized;
+
+    /**
+     * Feed the controller with new heading.
+     * @param heading heading in 0:360 format
+     * @param timestamp sensor event timestamp, in nanoseconds
+     * @return true if the state has changed and the sensors should be re-registered
+     * with {@link #getSamplingPeriod()}
+     */
+    boolean onHeading(float heading, long timestamp) {
+        if (!initialized) {
+            meanHeading = heading;
+            headingVariance = 0;
+            lastTimestamp = timestamp;
+            quietSince = timestamp;
+            initialized = true;
+            return false;
+        }
+
+        float dt = (timestamp - lastTimestamp) / NANOS_PER_SECOND;
+        lastTimestamp = timestamp;
+        if (dt <= 0) {
+            return false;
+        }
+
+        // incremental exponentially weighted mean & variance, on the shortest arc
+        float delta = wrap(heading - meanHeading);
+        float k = dt / (STATISTICS_TIME_CONSTANT + dt);
+        meanHeading = (meanHeading + k * delta + 360f) % 360f;
+        headingVariance = (1 - k) * (headingVariance + k * delta * delta);
+
+        float deviation = (float) sqrt(headingVariance);
+        if (deviation > STATIONARY_DEVIATION) {
+            quietSince = timestamp;
+        }
+
+        State newState = state;
+        if (state == State.MOVING && timestamp - quietSince >= STATIONARY_DURATION_NANOS) {
+            newState = State.STATIONARY;
+        } else if (state == State.STATIONARY && deviation > MOTION_DEVIATION) {
+            newState = State.MOVING;
+        }
+
+        if (newState != state) {
+            state = newState;
+            transitions++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget the statistics and go back to {@link State#MOVING}.
+     */
+    void reset() {
+        initialized = false;
+        state = State.MOVING;
+    }
+
+    private static float wrap(float degrees) {
+        if (degrees > 180f) {
+            return degrees - 360f;
+        } else if (degrees <= -180f) {
+            return degrees + 360f;
+        }
+        return degrees;
+    }
+
+    /**
+     * @return sampling period for the current state
+     */
+    public int getSamplingPeriod() {
+        return state == State.STATIONARY ? stationarySamplingPeriod : movingSamplingPeriod;
+    }
+
+    /**
+     * @param movingSamplingPeriod one of SensorManager.SENSOR_DELAY_* constants or
+     *                             sampling period in microseconds, used while moving
+     */
+    public void setMovingSamplingPeriod(int movingSamplingPeriod) {
+        this.movingSamplingPeriod = movingSamplingPeriod;
+    }
+
+    /**
+     * @param stationarySamplingPeriod one of SensorManager.SENSOR_DELAY_* constants or
+     *                                 sampling period in microseconds, used while stationary
+     */
+    public void setStationarySamplingPeriod(int stationarySamplingPeriod) {
+        this.stationarySamplingPeriod = stationarySamplingPeriod;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return number of state changes so far
+     */
+    public int getTransitionCount() {
+        return transitions;
+    }
+
+    public interface OnStateChangedListener {
+        /**
+         * Called on the main thread when the sampling state has changed
+         * @param state new state
+         */
+        void onSamplingStateChanged(State state);
+    }
+}
@@ -0,0 +1,116 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records raw sensor events into a memory-mapped file of bounded size, to be played back
+ * later with {@link SensorReplay}. Recording does not allocate; once the file is full,
+ * further events are dropped and counted.
+ * <p>
+ * File format, little endian:
+ * <pre>
+ * header:  int magic, int version, int length of the records section in bytes
+ * record:  byte sensor type, byte accuracy, byte value count, byte padding,
+ *          long timestamp [ns], float[value count] values
+ * </pre>
+ * The header length is updated after every record, so the file stays readable
+ * even if the recorder is never closed.
+ */
+public class SensorRecorder implements Closeable {
+
+    static final int MAGIC = 0x434d5053; // "CMPS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int RECORD_HEADER_SIZE = 12;
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final int LENGTH_OFFSET = 8;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+
+    private int records;
+    private int dropped;
+    private boolean closed;
+
+    /**
+     * Create recorder writing to given file. Existing file is overwritten.
+     * @param file file to record to
+     * @param maxBytes maximum size of the file, in bytes
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public SensorRecorder(File file, int maxBytes) throws IOException {
+        if (maxBytes <= HEADER_SIZE) {
+            throw new IllegalArgumentException("maxBytes must be greater than " + HEADER_SIZE);
+        }
+        this.file = new RandomAccessFile(file, "rw");
+        try {
+            this.file.setLength(maxBytes);
+            buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+        } catch (IOException | RuntimeException e) {
+            this.file.close();
+            throw e;
+        }
+        buffer.order(BYTE_ORDER);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(0);
+    }
+
+    /**
+     * Append sensor event to the recording.
+     * @param sensorType type of the sensor
+     * @param accuracy accuracy of the reading
+     * @param timestamp event timestamp, in nanoseconds
+     * @param values sensor values
+     * @return false if the event was dropped because the file is full or closed
+     */
+    public synchronized boolean record(int sensorType, int accuracy, long timestamp,
+                                       float[] values) {
+        int size = RECORD_HEADER_SIZE + values.length * 4;
+        if (closed || buffer.remaining() < size) {
+            dropped++;
+            return false;
+        }
+
+        buffer.put((byte) sensorType);
+        buffer.put((byte) accuracy);
+        buffer.put((byte) values.length);
+        buffer.put((byte) 0);
+        buffer.putLong(timestamp);
+        for (float value : values) {
+            buffer.putFloat(value);
+        }
+        buffer.putInt(LENGTH_OFFSET, buffer.position() - HEADER_SIZE);
+        records++;
+        return true;
+    }
+
+    /**
+     * @return number of events recorded so far
+     */
+    public synchronized int getRecordCount() {
+        return records;
+    }
+
+    /**
+     * @return number of events dropped because the file was full
+     */
+    public synchronized int getDroppedCount() {
+        return dropped;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            buffer.force();
+            file.close();
+        }
+    }
+}
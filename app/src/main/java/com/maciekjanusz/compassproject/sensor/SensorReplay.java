@@ -0,0 +1,103 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays back sensor events recorded by {@link SensorRecorder}, feeding them to an
+ * {@link OrientationSource} exactly as they were received, either at recorded speed or as fast
+ * as possible. Replay runs on the calling thread; the compass being driven must be stopped,
+ * so that live sensor events do not interleave with the replayed ones.
+ */
+public class SensorReplay {
+
+    private final ByteBuffer buffer;
+    /**
+     * Reusable value arrays, indexed by value count, so that every replayed reading gets
+     * an array of the same length as the original event values
+     */
+    private final float[][] values = new float[256][];
+
+    /**
+     * @param file recording to play back
+     * @throws IOException if the file cannot be read or is not a valid recording
+     */
+    public SensorReplay(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            buffer = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+        buffer.order(SensorRecorder.BYTE_ORDER);
+
+        if (buffer.limit() < SensorRecorder.HEADER_SIZE
+                || buffer.getInt() != SensorRecorder.MAGIC
+                || buffer.getInt() != SensorRecorder.VERSION) {
+            throw new IOException("Not a sensor recording: " + file);
+        }
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupted sensor recording: " + file);
+        }
+        buffer.limit(SensorRecorder.HEADER_SIZE + length);
+    }
+
+    /**
+     * Play the recording back through the orientation source of given compass.
+     * @see #replay(OrientationSource, boolean)
+     */
+    public int replay(Compass compass, boolean realTime) throws InterruptedException {
+        return replay(compass.getOrientationSource(), realTime);
+    }
+
+    /**
+     * Play the recording back through given orientation source.
+     * @param source orientation source to feed
+     * @param realTime true to keep the recorded intervals between events, false to replay
+     *                 as fast as possible
+     * @return number of events replayed
+     * @throws InterruptedException if interrupted while waiting in real time mode
+     */
+    public int replay(OrientationSource source, boolean realTime) throws InterruptedException {
+        buffer.position(SensorRecorder.HEADER_SIZE);
+        int events = 0;
+        long firstTimestamp = 0;
+        long startNanos = System.nanoTime();
+
+        while (buffer.remaining() >= SensorRecorder.RECORD_HEADER_SIZE) {
+            int sensorType = buffer.get() & 0xff;
+            buffer.get(); // accuracy, not used by the sources
+            int count = buffer.get() & 0xff;
+            buffer.get();
+            long timestamp = buffer.getLong();
+
+            float[] sample = values[count];
+            if (sample == null) {
+                sample = values[count] = new float[count];
+            }
+            for (int i = 0; i < count; i++) {
+                sample[i] = buffer.getFloat();
+            }
+
+            if (realTime) {
+                if (events == 0) {
+                    firstTimestamp = timestamp;
+                }
+                long delayNanos = (timestamp - firstTimestamp) - (System.nanoTime() - startNanos);
+                if (delayNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                }
+            }
+
+            source.onSample(sensorType, sample, timestamp);
+            events++;
+        }
+        return events;
+    }
+}
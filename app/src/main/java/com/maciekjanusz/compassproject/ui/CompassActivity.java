@@ -218,6 +218,11 @@ public class CompassActivity extends AppCompatActivity implements
         }
     }
 
+    public void showMagneticInterferenceSnackbar() {
+        Snackbar.make(snackbarCoordinator, R.string.magnetic_interference,
+                Snackbar.LENGTH_LONG).show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
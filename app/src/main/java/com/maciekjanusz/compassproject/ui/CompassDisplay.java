@@ -0,0 +1,66 @@
+package com.maciekjanusz.compassproject.ui;
+
+import com.maciekjanusz.compassproject.sensor.HeadingQualityMonitor.Confidence;
+
+/**
+ * Drawing API of the compass, common to {@link CompassView}, which draws on the main thread,
+ * and {@link CompassTextureView}, which draws on its own render thread. Screens showing
+ * the compass can use either backend through it. Must be called on the main thread.
+ */
+public interface CompassDisplay {
+
+    void setCompassEnabled(boolean compassEnabled);
+
+    void setNavigationEnabled(boolean navigationEnabled);
+
+    void setCardinalsEnabled(boolean cardinalsEnabled);
+
+    void setHasBackground(boolean hasBackground);
+
+    void setStrokeWidth(int strokeWidth);
+
+    /**
+     * Set the most scale lines to draw. Fewer are drawn if they would not fit apart on the rim,
+     * see {@link CompassView.DetailThresholds}.
+     */
+    void setScaleLines(int scaleLines);
+
+    void setDetailThresholds(CompassView.DetailThresholds detailThresholds);
+
+    /**
+     * Set how long drawing a frame may take before detail is dropped. Detail is dropped
+     * gradually, as if the face was smaller, and restored once frames are drawn well within
+     * the budget again. The budget applies to software rendering only - to the texture
+     * backend, and to {@link CompassView} when it is not hardware accelerated; on
+     * a hardware accelerated canvas drawing is only recorded, and its real cost is unknown.
+     *
+     * @param frameTimeBudgetNanos time budget of drawing a frame, in nanoseconds;
+     *                             0 keeps the detail chosen for the size
+     */
+    void setFrameTimeBudgetNanos(long frameTimeBudgetNanos);
+
+    /**
+     * Set bearing of the face. With needle animation enabled, the face is animated towards
+     * the bearing in following frames, otherwise it is shown immediately.
+     */
+    void setCompassBearing(float compassBearing);
+
+    /**
+     * Set bearing of the navigation pointer, relative to the face.
+     */
+    void setNavigationBearing(float navigationBearing);
+
+    /**
+     * Show how far the bearing can be trusted: the face circle is drawn orange for low
+     * confidence and red when the heading is unreliable.
+     */
+    void setHeadingConfidence(Confidence headingConfidence);
+
+    /**
+     * Animate the face towards every bearing set, once per frame, instead of jumping to it.
+     * Lets the bearing be set at rates much lower than the frame rate and still move smoothly.
+     *
+     * @see NeedleAnimator
+     */
+    void setNeedleAnimationEnabled(boolean needleAnimationEnabled);
+}
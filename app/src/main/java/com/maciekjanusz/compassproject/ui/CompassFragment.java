@@ -16,6 +16,7 @@ import android.view.Display;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewStub;
 import android.view.WindowManager;
 import android.widget.CompoundButton;
 import android.widget.LinearLayout;
@@ -29,8 +30,11 @@ import com.maciekjanusz.compassproject.navigation.NavigationService;
 import com.maciekjanusz.compassproject.navigation.ServiceMessage;
 import com.maciekjanusz.compassproject.navigation.ServiceState;
 import com.maciekjanusz.compassproject.sensor.Compass;
+import com.maciekjanusz.compassproject.sensor.CompassHub;
+import com.maciekjanusz.compassproject.sensor.HeadingQualityMonitor;
 import com.maciekjanusz.compassproject.util.ScreenRotationAware;
 import com.maciekjanusz.compassproject.util.SimpleDisplayListener;
+import com.maciekjanusz.compassproject.util.TextBuffer;
 import com.maciekjanusz.compassproject.util.ValueFormatter;
 
 import butterknife.Bind;
@@ -39,15 +43,14 @@ import butterknife.OnClick;
 import de.greenrobot.event.EventBus;
 
 import static com.maciekjanusz.compassproject.preferences.AppPreferences.isWidgetServiceRunning;
-import static com.maciekjanusz.compassproject.util.CompassMath.adjustBearing;
 import static com.maciekjanusz.compassproject.util.CompassMath.calculateTimeToReach;
 
 public class CompassFragment extends Fragment implements Compass.CompassListener,
-        ScreenRotationAware {
+        HeadingQualityMonitor.OnConfidenceChangedListener, ScreenRotationAware {
 
     private static final String LOCATION_INPUT_DIALOG_TAG = "location_input_dialog";
 
-    @Bind(R.id.compass_view)                CompassView compassView;
+    @Bind(R.id.compass_view)                CompassDisplay compassView;
     @Bind(R.id.action_widget_switch)        SwitchCompat widgetSwitch;
     @Bind(R.id.pick_place_button)           FloatingActionButton pickPlaceButton;
     @Bind(R.id.pitch_view)                  TextView pitchView;
@@ -58,17 +61,31 @@ public class CompassFragment extends Fragment implements Compass.CompassListener
     @Bind(R.id.distance_text_view)          TextView distanceTextView;
     @Bind(R.id.estimated_time_text_view)    TextView estimatedTimeTextView;
 
+    private CompassHub compassHub;
+    private CompassHub.Subscription compassSubscription;
     private Compass compass;
+    private OrientationFrameSampler frameSampler;
+    // true if the compass view reads the bearing from the compass snapshot by itself
+    private boolean compassReadsSnapshot;
     private ValueFormatter valueFormatter;
     private WindowManager windowManager;
     private DisplayManager displayManager;
     private final LocationInputDialogFragment locationInputDialogFragment =
             new LocationInputDialogFragment();
 
+    // text of frequently updated views, each view displays its own buffer
+    private final TextBuffer pitchText = new TextBuffer();
+    private final TextBuffer rollText = new TextBuffer();
+    private final TextBuffer distanceText = new TextBuffer();
+    private final TextBuffer destinationText = new TextBuffer();
+    private final TextBuffer speedText = new TextBuffer();
+    private final TextBuffer estimatedTimeText = new TextBuffer();
+
     private ServiceState currentServiceState = ServiceState.NAVIGATION_STOPPED;
-    private volatile int deviceScreenRotation;
     private int currentPitch;
     private int currentRoll;
+    // interference warning is shown once per episode of low confidence
+    private boolean interferenceWarningShown;
 
     private DisplayManager.DisplayListener displayListener = new SimpleDisplayListener() {
         @Override
@@ -88,7 +105,12 @@ public class CompassFragment extends Fragment implements Compass.CompassListener
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        compass = new Compass(getContext(), this);
+        // compass is shared with the overlay widget; orientation is read from its snapshot
+        // once per frame, no per-event listener needed
+        compassHub = CompassHub.getInstance(getContext());
+        compass = compassHub.getCompass();
+        frameSampler = new OrientationFrameSampler(compass.getSnapshot(), this,
+                CompassHub.Profile.RESPONSIVE);
         valueFormatter = new ValueFormatter(getContext());
     }
 
@@ -96,6 +118,11 @@ public class CompassFragment extends Fragment implements Compass.CompassListener
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
         View rootView = inflater.inflate(R.layout.fragment_compass, container, false);
+        // pick the compass backend before binding, the stub is replaced by the compass view
+        ViewStub compassViewStub = (ViewStub) rootView.findViewById(R.id.compass_view_stub);
+        compassViewStub.setLayoutResource(getResources().getBoolean(R.bool.compass_render_thread)
+                ? R.layout.view_compass_texture : R.layout.view_compass);
+        compassViewStub.inflate();
         ButterKnife.bind(this, rootView);
         // views bound -> references are now valid
         initCompassView();
@@ -114,11 +141,15 @@ public class CompassFragment extends Fragment implements Compass.CompassListener
     @Override
     public void onResume() {
         super.onResume();
-        // update parameters
-        valueFormatter.loadPrefs(getContext());
+        // update parameters - settings are followed by valueFormatter itself
         updateRotation();
 
-        compass.start();
+        compassSubscription = compassHub.subscribe(CompassHub.Profile.RESPONSIVE, this);
+        // frame sampler still delivers pitch & roll for the text views
+        frameSampler.start();
+        if (compassReadsSnapshot) {
+            ((CompassTextureView) compassView).setOrientationSnapshot(compass.getSnapshot());
+        }
 
         // register to eventBus and request nav service state
         EventBus eventBus = EventBus.getDefault();
@@ -142,14 +173,22 @@ public class CompassFragment extends Fragment implements Compass.CompassListener
     @Override
     public void onPause() {
         EventBus.getDefault().unregister(this);
-        compass.stop();
+        if (compassReadsSnapshot) {
+            ((CompassTextureView) compassView).setOrientationSnapshot(null);
+        }
+        frameSampler.stop();
+        compassHub.unsubscribe(compassSubscription);
+        compassSubscription = null;
         super.onPause();
     }
 
     private void initCompassView() {
+        // render thread backend takes the bearing straight from the sensor side
+        compassReadsSnapshot = compassView instanceof CompassTextureView;
         compassView.setCompassEnabled(true);
         compassView.setCardinalsEnabled(true);
         compassView.setHasBackground(true);
+        compassView.setNeedleAnimationEnabled(true);
     }
 
     private void initWidgetSwitch() {
@@ -171,13 +210,29 @@ public class CompassFragment extends Fragment implements Compass.CompassListener
 
     @Override
     public void onCompassStateChanged(float bearing, float pitch, float roll) {
-        updateCompass(bearing, roll);
+        updateCompass(bearing);
         updatePitchAndRoll(pitch, roll);
     }
 
+    @Override
+    public void onHeadingConfidenceChanged(HeadingQualityMonitor.Confidence confidence) {
+        if (compassView == null) {
+            // views not bound
+            return;
+        }
+        compassView.setHeadingConfidence(confidence);
+        if (confidence.compareTo(HeadingQualityMonitor.Confidence.LOW) > 0) {
+            interferenceWarningShown = false;
+        } else if (!interferenceWarningShown) {
+            interferenceWarningShown = true;
+            ((CompassActivity) getActivity()).showMagneticInterferenceSnackbar();
+        }
+    }
+
     @Override
     public synchronized void updateRotation() {
-        deviceScreenRotation = windowManager.getDefaultDisplay().getRotation();
+        // compass remaps its axes to the screen, bearing needs no further adjustment
+        compass.setDisplayRotation(windowManager.getDefaultDisplay().getRotation());
     }
 
     @SuppressWarnings("unused")
@@ -190,25 +245,29 @@ public class CompassFragment extends Fragment implements Compass.CompassListener
         navigationStatusLayout.setVisibility(View.VISIBLE);
         compassView.setNavigationEnabled(true);
 
-        // set bearing
-        float bearing = navigationBundle.getBearing();
-        bearing = adjustBearing(bearing, currentRoll, 0);
-        compassView.setNavigationBearing(bearing);
+        // navigation bearing is relative to true north, keep compass declination up to date
+        compassHub.setLocation(location);
 
+        // set bearing
+        compassView.setNavigationBearing(navigationBundle.getBearing());
 
-        // update navigation status
+        // update navigation status, formatted into buffers - no allocation per update
         LatLng destination = navigationBundle.getDestination();
-        distanceTextView.setText(valueFormatter.formatDistance(distance));
-        destinationTextView.setText(valueFormatter.formatCoordinates(
-                destination.latitude, destination.longitude));
-        speedTextView.setText(valueFormatter.formatSpeed(speed));
+        valueFormatter.formatDistance(distance, distanceText);
+        setText(distanceTextView, distanceText);
+        valueFormatter.formatCoordinates(destination.latitude, destination.longitude,
+                destinationText);
+        setText(destinationTextView, destinationText);
+        valueFormatter.formatSpeed(speed, speedText);
+        setText(speedTextView, speedText);
 
         // try to calculate estimated reach time only if speed > 0
         if(speed == 0) {
-            estimatedTimeTextView.setText(getString(R.string.infinity));
+            estimatedTimeTextView.setText(R.string.infinity);
         } else {
             long estimatedTime = calculateTimeToReach(speed, distance);
-            estimatedTimeTextView.setText(valueFormatter.formatDuration(estimatedTime));
+            valueFormatter.formatDuration(estimatedTime, estimatedTimeText);
+            setText(estimatedTimeTextView, estimatedTimeText);
         }
     }
 
@@ -256,26 +315,30 @@ public class CompassFragment extends Fragment implements Compass.CompassListener
         int roll = (int) rollF;
 
         /*
-            Update views ONLY if values has changed, using valueFormatter,
+            Update views ONLY if values has changed, using valueFormatter and text buffers,
             - or watch the sawtooth on memory monitor...
          */
 
         if(pitch != currentPitch) {
             currentPitch = pitch;
-            pitchView.setText(valueFormatter.formatDegreeValue(pitch));
+            valueFormatter.formatDegreeValue(pitch, pitchText);
+            setText(pitchView, pitchText);
         }
 
         if(roll != currentRoll) {
             currentRoll = roll;
-            rollView.setText(valueFormatter.formatDegreeValue(roll));
+            valueFormatter.formatDegreeValue(roll, rollText);
+            setText(rollView, rollText);
         }
     }
 
-    private void updateCompass(float bearing, float roll) {
+    private static void setText(TextView textView, TextBuffer text) {
+        textView.setText(text.getChars(), 0, text.getLength());
+    }
+
+    private void updateCompass(float bearing) {
         // check if view is not null (samsung bug)
-        if(compassView != null) {
-            // ensure that the value is correct with current roll & deviceScreenRotation
-            bearing = adjustBearing(bearing, roll, deviceScreenRotation);
+        if(compassView != null && !compassReadsSnapshot) {
             // update compass view
             compassView.setCompassBearing(-bearing);
         }
@@ -0,0 +1,662 @@
+package com.maciekjanusz.compassproject.ui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+
+import com.maciekjanusz.compassproject.sensor.HeadingQualityMonitor.Confidence;
+import com.maciekjanusz.compassproject.util.ValueFormatter;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.cos;
+import static java.lang.Math.floor;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sin;
+import static java.lang.Math.toDegrees;
+import static java.lang.Math.toRadians;
+
+/**
+ * Draws the compass face and navigation pointer onto a canvas of given size. Holds the paints,
+ * precomputed geometry, cached face and level of detail, shared by {@link CompassView} and
+ * {@link CompassTextureView}; the views only decide when and on which thread to draw.
+ * Not thread safe.
+ */
+class CompassRenderer {
+
+    static final int DEFAULT_SCALE_LINES = 144;
+    static final long DEFAULT_FRAME_TIME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+
+    private static final int SPIKES = 8;
+    private static final float STEP_ANGLE = 360f / SPIKES;
+    private static final float HALF_STEP_ANGLE = STEP_ANGLE / 2;
+    private static final int LOW_CONFIDENCE_COLOR = Color.rgb(255, 152, 0);
+    // fewest scale lines shown, one every 30 degrees
+    private static final int MIN_SCALE_LINES = 12;
+
+    // consecutive frames over budget after which detail is dropped
+    private static final int OVER_BUDGET_FRAMES = 3;
+    // consecutive frames well under budget after which detail is restored
+    private static final int UNDER_BUDGET_FRAMES = 120;
+    private static final float MIN_DETAIL_SCALE = 0.25f;
+
+    private int strokeWidth = 2; // default
+    private int scaleLines;
+    // scale lines actually drawn, for current level of detail
+    private int visibleScaleLines;
+
+    private final Paint facePaint = new Paint();
+    private final Paint linePaint = new Paint();
+    private final Paint northPaint = new Paint();
+    private final Paint southPaint = new Paint();
+    private final Paint backgroundPaint = new Paint();
+    private final Paint navigationPaint = new Paint();
+    private final Paint textPaint = new Paint();
+    private final Paint facePicturePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Path path = new Path();
+
+    // bearing-independent face, drawn once for north up and rotated by the bearing every frame
+    private Bitmap faceBitmap;
+    private boolean faceDirty = true;
+    // if true, the face is drawn as vectors every frame instead of being cached in a bitmap
+    private boolean vectorMode;
+
+    // face geometry, precomputed for north up: scale line end points on the unit circle,
+    // per scaleLines value, and in view coordinates, per size
+    private float[] unitScaleLines;
+    private float[] scaleLinePoints;
+    private final Path spikesPath = new Path();
+    private final Path northPath = new Path();
+    private final Path southPath = new Path();
+    // spike outlines, and lines from center to north & south spikes back vertices
+    private final float[] windroseLinePoints = new float[(SPIKES + 2) * 4];
+    // outlines of all cardinal labels, laid out around the face
+    private final Path cardinalsPath = new Path();
+    private final Matrix placementMatrix = new Matrix();
+
+    // number of canvas draw calls issued in the last frame
+    private int drawCalls;
+    private int frameDrawCalls;
+
+    // canvas size and center
+    private int width;
+    private int height;
+    private float centerX;
+    private float centerY;
+
+    // angle step for drawing scales
+    private float scaleAngleStep;
+
+    // radii, largest to smallest
+    private float fullRadius;
+    private float cardinalsRadius;
+    private float faceRadius;
+    private float shortSpikeRadius;
+    private float spikeCornerRadius;
+
+    // level of detail: chosen from face radius, scaled down while frames go over budget
+    private CompassView.DetailThresholds detailThresholds = CompassView.DetailThresholds.DEFAULT;
+    private long frameTimeBudgetNanos = DEFAULT_FRAME_TIME_BUDGET_NANOS;
+    private float detailScale = 1f;
+    private int overBudgetFrames;
+    private int underBudgetFrames;
+    private boolean cardinalsVisible;
+
+    // smallest bearing change that moves the rim by at least one pixel, in degrees
+    private float minVisibleAngle;
+
+    // parameter flags
+    private boolean compassEnabled;
+    private boolean navigationEnabled;
+    private boolean cardinalsEnabled;
+    private boolean hasBackground;
+
+    // heading confidence, shown as color of the face circle
+    private Confidence headingConfidence = Confidence.HIGH;
+
+    // value formatter for drawing cardinals
+    private final ValueFormatter valueFormatter;
+
+    CompassRenderer(Context context) {
+        initPaint();
+        path.setFillType(Path.FillType.EVEN_ODD);
+        spikesPath.setFillType(Path.FillType.EVEN_ODD);
+        northPath.setFillType(Path.FillType.EVEN_ODD);
+        southPath.setFillType(Path.FillType.EVEN_ODD);
+        valueFormatter = new ValueFormatter(context);
+        setScaleLines(DEFAULT_SCALE_LINES);
+    }
+
+    private void initPaint() {
+        linePaint.setColor(Color.BLACK);
+        linePaint.setStrokeWidth(strokeWidth);
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setAntiAlias(true);
+
+        facePaint.setColor(Color.BLACK);
+        facePaint.setStrokeWidth(strokeWidth);
+        facePaint.setStyle(Paint.Style.FILL_AND_STROKE);
+        facePaint.setAntiAlias(true);
+
+        northPaint.setColor(Color.RED);
+        northPaint.setStrokeWidth(strokeWidth);
+        northPaint.setStyle(Paint.Style.FILL_AND_STROKE);
+        northPaint.setAntiAlias(true);
+
+        southPaint.setColor(Color.BLUE);
+        southPaint.setStrokeWidth(strokeWidth);
+        southPaint.setStyle(Paint.Style.FILL_AND_STROKE);
+        southPaint.setAntiAlias(true);
+
+        backgroundPaint.setColor(Color.WHITE);
+        backgroundPaint.setStrokeWidth(0);
+        backgroundPaint.setStyle(Paint.Style.FILL);
+        backgroundPaint.setAntiAlias(true);
+
+        navigationPaint.setColor(Color.GREEN);
+        navigationPaint.setStrokeWidth(0);
+        navigationPaint.setStyle(Paint.Style.FILL_AND_STROKE);
+        navigationPaint.setAntiAlias(true);
+
+        textPaint.setColor(Color.BLACK);
+        textPaint.setTextAlign(Paint.Align.CENTER);
+        textPaint.setLinearText(true);
+        textPaint.setAntiAlias(true);
+        textPaint.setStyle(Paint.Style.STROKE);
+    }
+
+    /**
+     * Lay out the face for a canvas of given size.
+     */
+    void setSize(int w, int h) {
+        float diameter = min(w, h);
+        this.width = w;
+        this.height = h;
+        this.centerX = w / 2f;
+        this.centerY = h / 2f;
+
+        // fractions are completely arbitrary -> might rewrite for customization
+        fullRadius = diameter / 2f;
+        cardinalsRadius = fullRadius * 0.9f;
+        shortSpikeRadius = cardinalsRadius * 0.7f;
+        spikeCornerRadius = cardinalsRadius * 0.2f;
+        faceRadius = cardinalsRadius * 0.9f;
+        minVisibleAngle = fullRadius > 0 ? (float) toDegrees(1 / fullRadius) : 0;
+
+        // adjust text size to view size
+        textPaint.setTextSize(fullRadius / 12f);
+
+        updateDetail();
+        buildWindrose();
+        buildCardinals();
+        releaseFace();
+    }
+
+    /**
+     * Reload cardinal labels, which may change with locale.
+     */
+    void reloadCardinals(Context context) {
+        valueFormatter.loadResources(context);
+        buildCardinals();
+        faceDirty = true;
+    }
+
+    /**
+     * Lay out cardinal labels for current size and locale: outline of every label is placed
+     * at its direction and rotated with it, so that all of them are drawn as a single path.
+     */
+    private void buildCardinals() {
+        cardinalsPath.reset();
+        float y = centerY - cardinalsRadius;
+        for (int i = 0; i < 8; i++) {
+            String cardinal = valueFormatter.getCardinalDirection(i * 45);
+            textPaint.getTextPath(cardinal, 0, cardinal.length(), centerX, y, path);
+            placementMatrix.setRotate(i * 45, centerX, centerY);
+            cardinalsPath.addPath(path, placementMatrix);
+        }
+        path.reset();
+    }
+
+    /**
+     * Choose scale line density, cardinals visibility, anti-aliasing and stroke width for
+     * the face radius in pixels, scaled down by {@link #detailScale}: scale lines are thinned
+     * out to keep them apart on the rim, and small faces lose cardinals, strokes and
+     * anti-aliasing. Face has to be redrawn afterwards.
+     */
+    private void updateDetail() {
+        float detailRadius = faceRadius * detailScale;
+
+        int lines = scaleLines;
+        int maxLines = (int) (2 * Math.PI * detailRadius
+                / detailThresholds.getMinScaleLineSpacing());
+        if (lines > maxLines) {
+            // keep a longer line every 30 degrees
+            lines = max(MIN_SCALE_LINES, maxLines - maxLines % MIN_SCALE_LINES);
+        }
+        if (lines != visibleScaleLines || unitScaleLines == null) {
+            buildScaleLines(lines);
+        }
+        updateScaleLinePoints();
+
+        cardinalsVisible = detailRadius >= detailThresholds.getMinCardinalsRadius();
+
+        boolean antiAlias = detailRadius >= detailThresholds.getMinAntiAliasRadius();
+        linePaint.setAntiAlias(antiAlias);
+        facePaint.setAntiAlias(antiAlias);
+        northPaint.setAntiAlias(antiAlias);
+        southPaint.setAntiAlias(antiAlias);
+        backgroundPaint.setAntiAlias(antiAlias);
+        navigationPaint.setAntiAlias(antiAlias);
+        textPaint.setAntiAlias(antiAlias);
+
+        // full stroke width for large faces, thinner down to hairline for small ones
+        float stroke = strokeWidth;
+        float fullStrokeRadius = detailThresholds.getMinFullStrokeRadius();
+        if (detailRadius < fullStrokeRadius) {
+            stroke *= detailRadius / fullStrokeRadius;
+        }
+        if (stroke < 1) {
+            stroke = 0;
+        }
+        linePaint.setStrokeWidth(stroke);
+        facePaint.setStrokeWidth(stroke);
+        northPaint.setStrokeWidth(stroke);
+        southPaint.setStrokeWidth(stroke);
+        faceDirty = true;
+    }
+
+    /**
+     * Lay out end points of scale lines on the unit circle, longer line every 30 degrees.
+     */
+    private void buildScaleLines(int lines) {
+        visibleScaleLines = lines;
+        scaleAngleStep = 360f / lines;
+        unitScaleLines = new float[lines * 4];
+        int longLineStep = max(1, lines / MIN_SCALE_LINES);
+        for (int i = 0; i < lines; i++) {
+            float fraction = i % longLineStep == 0 ? 0.8f : 0.9f;
+            double degRad = toRadians(i * scaleAngleStep);
+            float cosine = (float) cos(degRad);
+            float sine = (float) sin(degRad);
+            unitScaleLines[i * 4] = fraction * cosine;
+            unitScaleLines[i * 4 + 1] = fraction * sine;
+            unitScaleLines[i * 4 + 2] = cosine;
+            unitScaleLines[i * 4 + 3] = sine;
+        }
+    }
+
+    /**
+     * Scale unit circle scale line end points to the face radius.
+     */
+    private void updateScaleLinePoints() {
+        if (scaleLinePoints == null || scaleLinePoints.length != unitScaleLines.length) {
+            scaleLinePoints = new float[unitScaleLines.length];
+        }
+        for (int i = 0; i < unitScaleLines.length; i += 2) {
+            scaleLinePoints[i] = centerX + faceRadius * unitScaleLines[i];
+            scaleLinePoints[i + 1] = centerY + faceRadius * unitScaleLines[i + 1];
+        }
+    }
+
+    /**
+     * Build windrose paths and outlines for current size: a single spike pointing east is laid
+     * out once, and placed in every direction by rotating it with {@link #placementMatrix}.
+     */
+    private void buildWindrose() {
+        spikesPath.reset();
+        northPath.reset();
+        southPath.reset();
+
+        double halfStepRad = toRadians(HALF_STEP_ANGLE);
+        float vertexX = (float) (centerX + spikeCornerRadius * cos(halfStepRad));
+        float vertexY = (float) (centerY + spikeCornerRadius * sin(halfStepRad));
+        float backVertexY = (float) (centerY - spikeCornerRadius * sin(halfStepRad));
+        // end x, end y, back vertex x, back vertex y of the east pointing spike
+        float[] spike = new float[4];
+
+        for (int i = 0; i < SPIKES; i++) {
+            float radius = i % 2 == 0 ? faceRadius : shortSpikeRadius;
+            placementMatrix.setRotate(i * STEP_ANGLE, centerX, centerY);
+
+            path.reset();
+            path.moveTo(centerX, centerY);
+            path.lineTo(centerX + radius, centerY);
+            path.lineTo(vertexX, vertexY);
+            path.close();
+            spikesPath.addPath(path, placementMatrix);
+
+            spike[0] = centerX + radius;
+            spike[1] = centerY;
+            spike[2] = vertexX;
+            spike[3] = backVertexY;
+            placementMatrix.mapPoints(windroseLinePoints, i * 4, spike, 0, 2);
+
+            // 6 is north, 2 is south - ugly but whatever
+            if (i == 6 || i == 2) {
+                path.reset();
+                path.moveTo(centerX, centerY);
+                path.lineTo(centerX + radius, centerY);
+                path.lineTo(vertexX, backVertexY);
+                path.close();
+                (i == 6 ? northPath : southPath).addPath(path, placementMatrix);
+
+                // correct line from center to smallradius
+                int offset = (SPIKES + (i == 6 ? 0 : 1)) * 4;
+                windroseLinePoints[offset] = centerX;
+                windroseLinePoints[offset + 1] = centerY;
+                windroseLinePoints[offset + 2] = windroseLinePoints[i * 4 + 2];
+                windroseLinePoints[offset + 3] = windroseLinePoints[i * 4 + 3];
+            }
+        }
+        path.reset();
+    }
+
+    /**
+     * Draw a frame: navigation pointer and the face rotated by the compass bearing.
+     *
+     * @return true if the frame went over the time budget and level of detail was changed,
+     * so that another frame should be drawn
+     */
+    boolean draw(Canvas canvas, float compassBearing, float navigationBearing) {
+        long startTime = System.nanoTime();
+        boolean faceRendered = false;
+        drawCalls = 0;
+        // navigation pointer goes under the face, which covers its base
+        if (navigationEnabled) {
+            drawNavigation(canvas, compassBearing + navigationBearing);
+        }
+        canvas.save();
+        canvas.rotate(compassBearing, centerX, centerY);
+        if (vectorMode) {
+            drawFace(canvas);
+        } else {
+            if (faceDirty || faceBitmap == null) {
+                renderFace();
+                faceRendered = true;
+            }
+            if (faceBitmap != null) {
+                canvas.drawBitmap(faceBitmap, 0, 0, facePicturePaint);
+                drawCalls++;
+            }
+        }
+        canvas.restore();
+        frameDrawCalls = drawCalls;
+        // rendering the cached face is a one-off cost, not counted against the budget; on
+        // a hardware accelerated canvas the draw calls are only recorded, and the time they
+        // take says nothing about the cost of rendering them, so there is no budget at all
+        return !faceRendered && !canvas.isHardwareAccelerated()
+                && trackFrameTime(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Drop detail after a few frames drawn over the frame time budget, and restore it after
+     * many frames drawn well under it. Only frames drawn in software are tracked.
+     *
+     * @return true if level of detail was changed
+     */
+    private boolean trackFrameTime(long drawTimeNanos) {
+        if (frameTimeBudgetNanos <= 0) {
+            return false;
+        }
+        if (drawTimeNanos > frameTimeBudgetNanos) {
+            underBudgetFrames = 0;
+            if (++overBudgetFrames >= OVER_BUDGET_FRAMES && detailScale > MIN_DETAIL_SCALE) {
+                overBudgetFrames = 0;
+                setDetailScale(detailScale / 2);
+                return true;
+            }
+        } else if (drawTimeNanos < frameTimeBudgetNanos / 2 && detailScale < 1f) {
+            overBudgetFrames = 0;
+            if (++underBudgetFrames >= UNDER_BUDGET_FRAMES) {
+                underBudgetFrames = 0;
+                setDetailScale(detailScale * 2);
+                return true;
+            }
+        } else {
+            overBudgetFrames = 0;
+            underBudgetFrames = 0;
+        }
+        return false;
+    }
+
+    private void setDetailScale(float detailScale) {
+        this.detailScale = max(MIN_DETAIL_SCALE, min(1f, detailScale));
+        updateDetail();
+    }
+
+    /**
+     * Draw cardinals, background, scale lines and windrose, with north up.
+     */
+    private void drawFace(Canvas canvas) {
+        if (cardinalsEnabled && cardinalsVisible) {
+            drawCardinals(canvas);
+        }
+        if (hasBackground) {
+            canvas.drawCircle(centerX, centerY, faceRadius, backgroundPaint);
+            drawCalls++;
+        }
+        if (compassEnabled) {
+            drawScaleLines(canvas);
+            drawWindrose(canvas);
+        }
+    }
+
+    /**
+     * Draw cardinals, background, scale lines and windrose into {@link #faceBitmap}, with north
+     * up. Only needed when the size or the style of the face changes.
+     */
+    private void renderFace() {
+        if (width == 0 || height == 0) {
+            return;
+        }
+        if (faceBitmap == null) {
+            faceBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        } else {
+            faceBitmap.eraseColor(Color.TRANSPARENT);
+        }
+        drawFace(new Canvas(faceBitmap));
+        faceDirty = false;
+    }
+
+    /**
+     * Free the cached face; it is rendered again with the next frame.
+     */
+    void releaseFace() {
+        if (faceBitmap != null) {
+            faceBitmap.recycle();
+            faceBitmap = null;
+        }
+        faceDirty = true;
+    }
+
+    private void drawNavigation(Canvas canvas, float bearing) {
+        double degRad = toRadians(bearing - 90);
+        double ang1 = degRad - toRadians(HALF_STEP_ANGLE / 3);
+        double ang2 = degRad + toRadians(HALF_STEP_ANGLE / 3);
+
+        float endX = (float) (centerX + fullRadius * cos(degRad));
+        float endY = (float) (centerY + fullRadius * sin(degRad));
+
+        float vertex1X = (float) (centerX + faceRadius * cos(ang1));
+        float vertex1Y = (float) (centerY + faceRadius * sin(ang1));
+
+        float vertex2X = (float) (centerX + faceRadius * cos(ang2));
+        float vertex2Y = (float) (centerY + faceRadius * sin(ang2));
+
+        path.moveTo(endX, endY);
+        path.lineTo(vertex1X, vertex1Y);
+        path.lineTo(vertex2X, vertex2Y);
+        path.close();
+
+        canvas.drawPath(path, navigationPaint);
+        canvas.drawLine(endX, endY, vertex1X, vertex1Y, facePaint);
+        canvas.drawLine(endX, endY, vertex2X, vertex2Y, facePaint);
+        drawCalls += 3;
+        path.reset();
+    }
+
+    /**
+     * Compute bounding box of the navigation pointer pointing at given bearing, with margin
+     * for outline stroke and anti-aliasing.
+     */
+    void getNavigationBounds(float bearing, Rect outBounds) {
+        double degRad = toRadians(bearing - 90);
+        double halfWidthRad = toRadians(HALF_STEP_ANGLE / 3);
+        float endX = (float) (centerX + fullRadius * cos(degRad));
+        float endY = (float) (centerY + fullRadius * sin(degRad));
+        float vertex1X = (float) (centerX + faceRadius * cos(degRad - halfWidthRad));
+        float vertex1Y = (float) (centerY + faceRadius * sin(degRad - halfWidthRad));
+        float vertex2X = (float) (centerX + faceRadius * cos(degRad + halfWidthRad));
+        float vertex2Y = (float) (centerY + faceRadius * sin(degRad + halfWidthRad));
+
+        // outline stroke and anti-aliasing spill over the exact bounds
+        float margin = strokeWidth + 1;
+        outBounds.set((int) floor(min(endX, min(vertex1X, vertex2X)) - margin),
+                (int) floor(min(endY, min(vertex1Y, vertex2Y)) - margin),
+                (int) ceil(max(endX, max(vertex1X, vertex2X)) + margin),
+                (int) ceil(max(endY, max(vertex1Y, vertex2Y)) + margin));
+    }
+
+    private void drawCardinals(Canvas canvas) {
+        canvas.drawPath(cardinalsPath, textPaint);
+        drawCalls++;
+    }
+
+    private void drawScaleLines(Canvas canvas) {
+        canvas.drawCircle(centerX, centerY, faceRadius, linePaint);
+        canvas.drawLines(scaleLinePoints, facePaint);
+        drawCalls += 2;
+    }
+
+    private void drawWindrose(Canvas canvas) {
+        canvas.drawPath(spikesPath, facePaint);
+        canvas.drawPath(northPath, northPaint);
+        canvas.drawPath(southPath, southPaint);
+        canvas.drawLines(windroseLinePoints, facePaint);
+        drawCalls += 4;
+    }
+
+    /**
+     * @return smallest bearing change that moves the rim by at least one pixel, in degrees
+     */
+    float getMinVisibleAngle() {
+        return minVisibleAngle;
+    }
+
+    boolean isCompassEnabled() {
+        return compassEnabled;
+    }
+
+    void setCompassEnabled(boolean compassEnabled) {
+        this.compassEnabled = compassEnabled;
+        faceDirty = true;
+    }
+
+    boolean isNavigationEnabled() {
+        return navigationEnabled;
+    }
+
+    void setNavigationEnabled(boolean navigationEnabled) {
+        this.navigationEnabled = navigationEnabled;
+    }
+
+    boolean isCardinalsEnabled() {
+        return cardinalsEnabled;
+    }
+
+    void setCardinalsEnabled(boolean cardinalsEnabled) {
+        this.cardinalsEnabled = cardinalsEnabled;
+        faceDirty = true;
+    }
+
+    void setHasBackground(boolean hasBackground) {
+        this.hasBackground = hasBackground;
+        faceDirty = true;
+    }
+
+    void setStrokeWidth(int strokeWidth) {
+        this.strokeWidth = strokeWidth;
+        updateDetail();
+    }
+
+    Confidence getHeadingConfidence() {
+        return headingConfidence;
+    }
+
+    void setHeadingConfidence(Confidence headingConfidence) {
+        this.headingConfidence = headingConfidence;
+        switch (headingConfidence) {
+            case UNRELIABLE:
+                linePaint.setColor(Color.RED);
+                break;
+            case LOW:
+                linePaint.setColor(LOW_CONFIDENCE_COLOR);
+                break;
+            default:
+                linePaint.setColor(Color.BLACK);
+                break;
+        }
+        faceDirty = true;
+    }
+
+    int getScaleLines() {
+        return scaleLines;
+    }
+
+    void setScaleLines(int scaleLines) {
+        this.scaleLines = scaleLines;
+        updateDetail();
+    }
+
+    int getVisibleScaleLines() {
+        return visibleScaleLines;
+    }
+
+    CompassView.DetailThresholds getDetailThresholds() {
+        return detailThresholds;
+    }
+
+    void setDetailThresholds(CompassView.DetailThresholds detailThresholds) {
+        this.detailThresholds = detailThresholds;
+        updateDetail();
+    }
+
+    long getFrameTimeBudgetNanos() {
+        return frameTimeBudgetNanos;
+    }
+
+    void setFrameTimeBudgetNanos(long frameTimeBudgetNanos) {
+        this.frameTimeBudgetNanos = frameTimeBudgetNanos;
+        overBudgetFrames = 0;
+        underBudgetFrames = 0;
+        if (frameTimeBudgetNanos <= 0 && detailScale < 1f) {
+            setDetailScale(1f);
+        }
+    }
+
+    float getDetailScale() {
+        return detailScale;
+    }
+
+    boolean isVectorMode() {
+        return vectorMode;
+    }
+
+    void setVectorMode(boolean vectorMode) {
+        this.vectorMode = vectorMode;
+        if (vectorMode) {
+            releaseFace();
+        }
+    }
+
+    int getDrawCallCount() {
+        return frameDrawCalls;
+    }
+}
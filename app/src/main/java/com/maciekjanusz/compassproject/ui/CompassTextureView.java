@@ -0,0 +1,527 @@
+package com.maciekjanusz.compassproject.ui;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.SurfaceTexture;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.TextureView;
+
+import com.maciekjanusz.compassproject.sensor.HeadingQualityMonitor.Confidence;
+import com.maciekjanusz.compassproject.sensor.OrientationSnapshot;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.Math.abs;
+
+/**
+ * Compass drawn on its own render thread into a {@link TextureView}, so that drawing neither
+ * waits for nor delays layout and text updates on the main thread. Drawing is done by
+ * {@link CompassRenderer}, same as in {@link CompassView}, and the drawing API is the same.
+ * <p>
+ * The render thread is paced by its own {@link Choreographer}. With an orientation snapshot
+ * set, it reads the bearing from the snapshot, with no main thread involved; otherwise it draws
+ * the bearing set from the main thread. Frames are drawn only when something visibly changed,
+ * and requested only while there is something to do - once the needle has settled, the render
+ * thread sleeps until a new sample is published to the snapshot or the view is changed.
+ * <p>
+ * While the render thread runs, the renderer is used on that thread only. Setters record
+ * bearings and configuration changes under {@link #lock}, and the render thread applies them
+ * at the start of the next frame; the lock is never held while drawing, so the main thread
+ * does not wait for a frame to be rendered and queued.
+ */
+public class CompassTextureView extends TextureView implements CompassDisplay,
+        TextureView.SurfaceTextureListener, Choreographer.FrameCallback {
+
+    private static final String RENDER_THREAD_NAME = "CompassRenderThread";
+
+    // configuration changes waiting to be applied to the renderer
+    private static final int CHANGED_SIZE = 1;
+    private static final int CHANGED_CARDINALS_LOCALE = 1 << 1;
+    private static final int CHANGED_NAVIGATION_ENABLED = 1 << 2;
+    private static final int CHANGED_COMPASS_ENABLED = 1 << 3;
+    private static final int CHANGED_CARDINALS_ENABLED = 1 << 4;
+    private static final int CHANGED_BACKGROUND = 1 << 5;
+    private static final int CHANGED_STROKE_WIDTH = 1 << 6;
+    private static final int CHANGED_SCALE_LINES = 1 << 7;
+    private static final int CHANGED_DETAIL_THRESHOLDS = 1 << 8;
+    private static final int CHANGED_FRAME_TIME_BUDGET = 1 << 9;
+    private static final int CHANGED_HEADING_CONFIDENCE = 1 << 10;
+
+    private final Object lock = new Object();
+    // used on the render thread only, while it runs
+    private CompassRenderer renderer;
+
+    private HandlerThread renderThread;
+    private Handler renderHandler;
+    private boolean frameScheduled;
+    // true if the face has to be drawn in the next frame, whatever the bearing
+    private boolean dirty;
+
+    // configuration, applied to the renderer on the render thread
+    private int changes;
+    private int width;
+    private int height;
+    private boolean navigationEnabled;
+    private boolean compassEnabled;
+    private boolean cardinalsEnabled;
+    private boolean hasBackground;
+    private int strokeWidth;
+    private int scaleLines;
+    private CompassView.DetailThresholds detailThresholds;
+    private long frameTimeBudgetNanos;
+    private Confidence headingConfidence;
+    // renderer value, for the redraw decisions on the main thread
+    private float minVisibleAngle;
+
+    // bearing
+    private float compassBearing;
+    private float navigationBearing;
+    // bearings last drawn
+    private float drawnCompassBearing;
+    private float drawnNavigationBearing;
+
+    // animates the face towards the bearing set, if needle animation is enabled
+    private NeedleAnimator needleAnimator;
+    private boolean animating;
+
+    // orientation read directly on the render thread, if set
+    private OrientationSnapshot snapshot;
+    private final OrientationSnapshot.Orientation reading = new OrientationSnapshot.Orientation();
+    private int lastCount;
+    // snapshot the publish listener is added to, while the render thread runs
+    private OrientationSnapshot listenedSnapshot;
+    // set while no frame is requested, until the next sample is published
+    private final AtomicBoolean idle = new AtomicBoolean();
+    private final OrientationSnapshot.OnPublishListener publishListener =
+            new OrientationSnapshot.OnPublishListener() {
+                @Override
+                public void onPublish() {
+                    // called on the sensor thread for every sample, takes the lock only when idle
+                    if (idle.compareAndSet(true, false)) {
+                        synchronized (lock) {
+                            scheduleFrameLocked();
+                        }
+                    }
+                }
+            };
+
+    private final Runnable scheduleFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(CompassTextureView.this);
+        }
+    };
+
+    public CompassTextureView(Context context) {
+        super(context);
+        init(context);
+    }
+
+    public CompassTextureView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init(context);
+    }
+
+    public CompassTextureView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init(context);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public CompassTextureView(Context context, AttributeSet attrs, int defStyleAttr,
+                              int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+        init(context);
+    }
+
+    private void init(Context context) {
+        renderer = new CompassRenderer(context);
+        navigationEnabled = renderer.isNavigationEnabled();
+        headingConfidence = renderer.getHeadingConfidence();
+        setOpaque(false);
+        setSurfaceTextureListener(this);
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+        renderThread = new HandlerThread(RENDER_THREAD_NAME, Process.THREAD_PRIORITY_DISPLAY);
+        renderThread.start();
+        synchronized (lock) {
+            setSizeLocked(width, height);
+            renderHandler = new Handler(renderThread.getLooper());
+            updatePublishListenerLocked();
+            invalidateFrameLocked();
+        }
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+        synchronized (lock) {
+            setSizeLocked(width, height);
+            invalidateFrameLocked();
+        }
+    }
+
+    private void setSizeLocked(int width, int height) {
+        this.width = width;
+        this.height = height;
+        changes |= CHANGED_SIZE;
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+        synchronized (lock) {
+            // frame callbacks already posted return early from now on
+            renderHandler = null;
+            frameScheduled = false;
+            updatePublishListenerLocked();
+        }
+        if (renderThread != null) {
+            renderThread.quit();
+            // the surface is released on return, let the frame being drawn finish first
+            try {
+                renderThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            renderThread = null;
+        }
+        // no render thread anymore, the renderer can be used here
+        renderer.releaseFace();
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+        // nothing
+    }
+
+    @Override
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        synchronized (lock) {
+            // cardinal labels may change with locale
+            changes |= CHANGED_CARDINALS_LOCALE;
+            invalidateFrameLocked();
+        }
+    }
+
+    /**
+     * Runs on the render thread.
+     */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        boolean draw;
+        float frameCompassBearing;
+        float frameNavigationBearing;
+        synchronized (lock) {
+            frameScheduled = false;
+            if (renderHandler == null) {
+                // stopped
+                return;
+            }
+            applyChangesLocked();
+            if (snapshot != null && snapshot.read(reading) && reading.getCount() != lastCount) {
+                lastCount = reading.getCount();
+                // face is rotated against the bearing
+                setCompassBearingLocked(-reading.getBearing(), frameTimeNanos);
+            }
+            if (animating) {
+                compassBearing = needleAnimator.update(frameTimeNanos);
+                animating = !needleAnimator.isSettled();
+            }
+            draw = dirty || abs(angleDifference(compassBearing, drawnCompassBearing))
+                    >= minVisibleAngle;
+            frameCompassBearing = compassBearing;
+            frameNavigationBearing = navigationBearing;
+            if (draw) {
+                dirty = false;
+                drawnCompassBearing = compassBearing;
+                drawnNavigationBearing = navigationBearing;
+            }
+        }
+
+        // drawn without the lock, setters called meanwhile are applied in the next frame
+        boolean redraw = draw && drawFrame(frameCompassBearing, frameNavigationBearing);
+
+        synchronized (lock) {
+            dirty |= redraw;
+            if (renderHandler != null && !frameScheduled) {
+                if (animating || dirty) {
+                    frameScheduled = true;
+                    Choreographer.getInstance().postFrameCallback(this);
+                } else if (snapshot != null) {
+                    idle.set(true);
+                    // a sample published since this frame read the snapshot would find it
+                    // not idle yet
+                    if (snapshot.getCount() != lastCount && idle.compareAndSet(true, false)) {
+                        frameScheduled = true;
+                        Choreographer.getInstance().postFrameCallback(this);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply configuration set since last frame to the renderer. Runs on the render thread.
+     */
+    private void applyChangesLocked() {
+        if (changes == 0) {
+            return;
+        }
+        if ((changes & CHANGED_SIZE) != 0) {
+            renderer.setSize(width, height);
+            minVisibleAngle = renderer.getMinVisibleAngle();
+        }
+        if ((changes & CHANGED_CARDINALS_LOCALE) != 0) {
+            renderer.reloadCardinals(getContext());
+        }
+        if ((changes & CHANGED_NAVIGATION_ENABLED) != 0) {
+            renderer.setNavigationEnabled(navigationEnabled);
+        }
+        if ((changes & CHANGED_COMPASS_ENABLED) != 0) {
+            renderer.setCompassEnabled(compassEnabled);
+        }
+        if ((changes & CHANGED_CARDINALS_ENABLED) != 0) {
+            renderer.setCardinalsEnabled(cardinalsEnabled);
+        }
+        if ((changes & CHANGED_BACKGROUND) != 0) {
+            renderer.setHasBackground(hasBackground);
+        }
+        if ((changes & CHANGED_STROKE_WIDTH) != 0) {
+            renderer.setStrokeWidth(strokeWidth);
+        }
+        if ((changes & CHANGED_SCALE_LINES) != 0) {
+            renderer.setScaleLines(scaleLines);
+        }
+        if ((changes & CHANGED_DETAIL_THRESHOLDS) != 0) {
+            renderer.setDetailThresholds(detailThresholds);
+        }
+        if ((changes & CHANGED_FRAME_TIME_BUDGET) != 0) {
+            renderer.setFrameTimeBudgetNanos(frameTimeBudgetNanos);
+        }
+        if ((changes & CHANGED_HEADING_CONFIDENCE) != 0) {
+            renderer.setHeadingConfidence(headingConfidence);
+        }
+        changes = 0;
+    }
+
+    /**
+     * Draw a frame with given bearings. Runs on the render thread, without the lock.
+     *
+     * @return true if another frame has to be drawn, whatever the bearing
+     */
+    private boolean drawFrame(float compassBearing, float navigationBearing) {
+        Canvas canvas = lockCanvas();
+        if (canvas == null) {
+            // surface not ready
+            return true;
+        }
+        try {
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            // level of detail may change while drawing, then draw the next frame as well
+            return renderer.draw(canvas, compassBearing, navigationBearing);
+        } finally {
+            unlockCanvasAndPost(canvas);
+        }
+    }
+
+    /**
+     * Request a frame, drawn whatever the bearing.
+     */
+    private void invalidateFrameLocked() {
+        dirty = true;
+        scheduleFrameLocked();
+    }
+
+    private void scheduleFrameLocked() {
+        if (!frameScheduled && renderHandler != null) {
+            frameScheduled = true;
+            renderHandler.post(scheduleFrameRunnable);
+        }
+    }
+
+    /**
+     * Add the publish listener to the snapshot while it is set and the render thread runs,
+     * remove it otherwise.
+     */
+    private void updatePublishListenerLocked() {
+        OrientationSnapshot target = renderHandler != null ? snapshot : null;
+        if (target == listenedSnapshot) {
+            return;
+        }
+        if (listenedSnapshot != null) {
+            listenedSnapshot.removeOnPublishListener(publishListener);
+        }
+        listenedSnapshot = target;
+        idle.set(false);
+        if (target != null) {
+            target.addOnPublishListener(publishListener);
+        }
+    }
+
+    /**
+     * Read orientation from given snapshot on the render thread, whenever a new sample is
+     * published, instead of taking the bearing set with {@link #setCompassBearing(float)}.
+     *
+     * @param snapshot snapshot of the compass, or null to stop reading it
+     */
+    public void setOrientationSnapshot(@Nullable OrientationSnapshot snapshot) {
+        synchronized (lock) {
+            this.snapshot = snapshot;
+            lastCount = 0;
+            updatePublishListenerLocked();
+            scheduleFrameLocked();
+        }
+    }
+
+    @Override
+    public void setCompassBearing(float compassBearing) {
+        synchronized (lock) {
+            setCompassBearingLocked(compassBearing, System.nanoTime());
+            scheduleFrameLocked();
+        }
+    }
+
+    private void setCompassBearingLocked(float compassBearing, long timeNanos) {
+        if (needleAnimator == null) {
+            this.compassBearing = compassBearing;
+        } else {
+            needleAnimator.setTarget(compassBearing, timeNanos);
+            animating = true;
+        }
+    }
+
+    @Override
+    public void setNeedleAnimationEnabled(boolean needleAnimationEnabled) {
+        synchronized (lock) {
+            if (needleAnimationEnabled == (needleAnimator != null)) {
+                return;
+            }
+            needleAnimator = needleAnimationEnabled ? new NeedleAnimator() : null;
+            animating = false;
+        }
+    }
+
+    @Override
+    public void setNavigationBearing(float navigationBearing) {
+        synchronized (lock) {
+            this.navigationBearing = navigationBearing;
+            if (navigationEnabled && abs(angleDifference(navigationBearing,
+                    drawnNavigationBearing)) >= minVisibleAngle) {
+                invalidateFrameLocked();
+            }
+        }
+    }
+
+    @Override
+    public void setNavigationEnabled(boolean navigationEnabled) {
+        synchronized (lock) {
+            if (this.navigationEnabled == navigationEnabled) {
+                return;
+            }
+            this.navigationEnabled = navigationEnabled;
+            changes |= CHANGED_NAVIGATION_ENABLED;
+            invalidateFrameLocked();
+        }
+    }
+
+    @Override
+    public void setCompassEnabled(boolean compassEnabled) {
+        synchronized (lock) {
+            this.compassEnabled = compassEnabled;
+            changes |= CHANGED_COMPASS_ENABLED;
+            invalidateFrameLocked();
+        }
+    }
+
+    @Override
+    public void setCardinalsEnabled(boolean cardinalsEnabled) {
+        synchronized (lock) {
+            this.cardinalsEnabled = cardinalsEnabled;
+            changes |= CHANGED_CARDINALS_ENABLED;
+            invalidateFrameLocked();
+        }
+    }
+
+    @Override
+    public void setHasBackground(boolean hasBackground) {
+        synchronized (lock) {
+            this.hasBackground = hasBackground;
+            changes |= CHANGED_BACKGROUND;
+            invalidateFrameLocked();
+        }
+    }
+
+    @Override
+    public void setStrokeWidth(int strokeWidth) {
+        synchronized (lock) {
+            this.strokeWidth = strokeWidth;
+            changes |= CHANGED_STROKE_WIDTH;
+            invalidateFrameLocked();
+        }
+    }
+
+    @Override
+    public void setScaleLines(int scaleLines) {
+        synchronized (lock) {
+            this.scaleLines = scaleLines;
+            changes |= CHANGED_SCALE_LINES;
+            invalidateFrameLocked();
+        }
+    }
+
+    @Override
+    public void setDetailThresholds(CompassView.DetailThresholds detailThresholds) {
+        synchronized (lock) {
+            this.detailThresholds = detailThresholds;
+            changes |= CHANGED_DETAIL_THRESHOLDS;
+            invalidateFrameLocked();
+        }
+    }
+
+    @Override
+    public void setFrameTimeBudgetNanos(long frameTimeBudgetNanos) {
+        synchronized (lock) {
+            this.frameTimeBudgetNanos = frameTimeBudgetNanos;
+            changes |= CHANGED_FRAME_TIME_BUDGET;
+            invalidateFrameLocked();
+        }
+    }
+
+    @Override
+    public void setHeadingConfidence(Confidence headingConfidence) {
+        synchronized (lock) {
+            if (this.headingConfidence == headingConfidence) {
+                return;
+            }
+            this.headingConfidence = headingConfidence;
+            changes |= CHANGED_HEADING_CONFIDENCE;
+            invalidateFrameLocked();
+        }
+    }
+
+    /**
+     * @return difference of two angles, in -180:180 range
+     */
+    private static float angleDifference(float a, float b) {
+        float difference = (a - b) % 360f;
+        if (difference > 180f) {
+            difference -= 360f;
+        } else if (difference < -180f) {
+            difference += 360f;
+        }
+        return difference;
+    }
+}
@@ -2,66 +2,58 @@ package com.maciekjanusz.compassproject.ui;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Path;
+import android.graphics.Rect;
 import android.os.Build;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.View;
 
-import com.maciekjanusz.compassproject.util.ValueFormatter;
+import com.maciekjanusz.compassproject.sensor.HeadingQualityMonitor.Confidence;
 
-import static java.lang.Math.cos;
-import static java.lang.Math.min;
-import static java.lang.Math.sin;
-import static java.lang.Math.toRadians;
+import static java.lang.Math.abs;
 
-public class CompassView extends View {
+/**
+ * Compass drawn on the main thread, as part of the view hierarchy. Drawing itself is done by
+ * {@link CompassRenderer}; the view decides when the bearing changed enough to redraw.
+ */
+public class CompassView extends View implements CompassDisplay {
 
-    private static final int DEFAULT_SCALE_LINES = 144;
-    private static final int SPIKES = 8;
-    private static final float STEP_ANGLE = 360f / SPIKES;
-    private static final float HALF_STEP_ANGLE = STEP_ANGLE / 2;
+    public static final long DEFAULT_FRAME_TIME_BUDGET_NANOS =
+            CompassRenderer.DEFAULT_FRAME_TIME_BUDGET_NANOS;
 
-    private int strokeWidth = 2; // default
-    private int scaleLines;
-
-    private final Paint facePaint = new Paint();
-    private final Paint linePaint = new Paint();
-    private final Paint northPaint = new Paint();
-    private final Paint southPaint = new Paint();
-    private final Paint backgroundPaint = new Paint();
-    private final Paint navigationPaint = new Paint();
-    private final Paint textPaint = new Paint();
-    private final Path path = new Path();
-
-    // view center
-    private float centerX;
-    private float centerY;
-
-    // angle step for drawing scales
-    private float scaleAngleStep;
-
-    // radii, largest to smallest
-    private float fullRadius;
-    private float cardinalsRadius;
-    private float faceRadius;
-    private float shortSpikeRadius;
-    private float spikeCornerRadius;
-
-    // parameter flags
-    private boolean compassEnabled;
-    private boolean navigationEnabled;
-    private boolean cardinalsEnabled;
-    private boolean hasBackground;
+    private CompassRenderer renderer;
+    private final Rect navigationBounds = new Rect();
 
     // bearing
     private float compassBearing;
     private float navigationBearing;
+    // bearings the view was last invalidated for
+    private float invalidatedCompassBearing;
+    private float invalidatedNavigationBearing;
+
+    // animates the face towards the bearing set, if needle animation is enabled
+    private NeedleAnimator needleAnimator;
+    private boolean animating;
+    private final Choreographer.FrameCallback animationCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (needleAnimator == null) {
+                return;
+            }
+            showCompassBearing(needleAnimator.update(frameTimeNanos));
+            if (needleAnimator.isSettled()) {
+                animating = false;
+            } else {
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    };
 
-    // value formatter for drawing cardinals
-    private ValueFormatter valueFormatter;
+    // redraw statistics
+    private long redraws;
+    private long skippedRedraws;
 
     public CompassView(Context context) {
         super(context);
@@ -85,242 +77,329 @@ public class CompassView extends View {
     }
 
     private void init(Context context) {
-        initPaint();
-        setScaleLines(DEFAULT_SCALE_LINES);
-        path.setFillType(Path.FillType.EVEN_ODD);
-        valueFormatter = new ValueFormatter(context);
-    }
-
-    private void initPaint() {
-        linePaint.setColor(Color.BLACK);
-        linePaint.setStrokeWidth(strokeWidth);
-        linePaint.setStyle(Paint.Style.STROKE);
-        linePaint.setAntiAlias(true);
-
-        facePaint.setColor(Color.BLACK);
-        facePaint.setStrokeWidth(strokeWidth);
-        facePaint.setStyle(Paint.Style.FILL_AND_STROKE);
-        facePaint.setAntiAlias(true);
-
-        northPaint.setColor(Color.RED);
-        northPaint.setStrokeWidth(strokeWidth);
-        northPaint.setStyle(Paint.Style.FILL_AND_STROKE);
-        northPaint.setAntiAlias(true);
-
-        southPaint.setColor(Color.BLUE);
-        southPaint.setStrokeWidth(strokeWidth);
-        southPaint.setStyle(Paint.Style.FILL_AND_STROKE);
-        southPaint.setAntiAlias(true);
-
-        backgroundPaint.setColor(Color.WHITE);
-        backgroundPaint.setStrokeWidth(0);
-        backgroundPaint.setStyle(Paint.Style.FILL);
-        backgroundPaint.setAntiAlias(true);
-
-        navigationPaint.setColor(Color.GREEN);
-        navigationPaint.setStrokeWidth(0);
-        navigationPaint.setStyle(Paint.Style.FILL_AND_STROKE);
-        navigationPaint.setAntiAlias(true);
-
-        textPaint.setColor(Color.BLACK);
-        textPaint.setTextAlign(Paint.Align.CENTER);
-        textPaint.setLinearText(true);
-        textPaint.setAntiAlias(true);
-        textPaint.setStyle(Paint.Style.STROKE);
+        renderer = new CompassRenderer(context);
     }
 
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
+        renderer.setSize(w, h);
+    }
 
-        float diameter = min(w, h);
-        this.centerX = w / 2f;
-        this.centerY = h / 2f;
-
-        // fractions are completely arbitrary -> might rewrite for customization
-        fullRadius = diameter / 2f;
-        cardinalsRadius = fullRadius * 0.9f;
-        shortSpikeRadius = cardinalsRadius * 0.7f;
-        spikeCornerRadius = cardinalsRadius * 0.2f;
-        faceRadius = cardinalsRadius * 0.9f;
+    @Override
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // cardinal labels may change with locale
+        renderer.reloadCardinals(getContext());
+        invalidate();
+    }
 
-        // adjust text size to view size
-        textPaint.setTextSize(fullRadius / 12f);
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stopAnimation();
+        renderer.releaseFace();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        if (cardinalsEnabled) {
-            drawCardinals(canvas);
-        }
-        if (navigationEnabled) {
-            drawNavigation(canvas);
-        }
-        if (hasBackground) {
-            canvas.drawCircle(centerX, centerY, faceRadius, backgroundPaint);
-        }
-        if (compassEnabled) {
-            drawScaleLines(canvas);
-            drawWindrose(canvas);
+        if (renderer.draw(canvas, compassBearing, navigationBearing)) {
+            // level of detail changed while drawing, so redraw in the next frame
+            postInvalidateOnAnimation();
         }
     }
 
-    private void drawNavigation(Canvas canvas) {
-        double degRad = toRadians(compassBearing + navigationBearing - 90);
-        double ang1 = degRad - toRadians(HALF_STEP_ANGLE / 3);
-        double ang2 = degRad + toRadians(HALF_STEP_ANGLE / 3);
-
-        float endX = (float) (centerX + fullRadius * cos(degRad));
-        float endY = (float) (centerY + fullRadius * sin(degRad));
-
-        float vertex1X = (float) (centerX + faceRadius * cos(ang1));
-        float vertex1Y = (float) (centerY + faceRadius * sin(ang1));
-
-        float vertex2X = (float) (centerX + faceRadius * cos(ang2));
-        float vertex2Y = (float) (centerY + faceRadius * sin(ang2));
-
-        path.moveTo(endX, endY);
-        path.lineTo(vertex1X, vertex1Y);
-        path.lineTo(vertex2X, vertex2Y);
-        path.close();
+    public boolean isCompassEnabled() {
+        return renderer.isCompassEnabled();
+    }
 
-        canvas.drawPath(path, navigationPaint);
-        canvas.drawLine(endX, endY, vertex1X, vertex1Y, facePaint);
-        canvas.drawLine(endX, endY, vertex2X, vertex2Y, facePaint);
-        path.reset();
+    @Override
+    public void setCompassEnabled(boolean compassEnabled) {
+        renderer.setCompassEnabled(compassEnabled);
+        invalidate();
     }
 
-    private void drawCardinals(Canvas canvas) {
-        float y = centerY - cardinalsRadius;
-        canvas.save();
-        canvas.rotate(compassBearing, centerX, centerY);
+    public boolean isNavigationEnabled() {
+        return renderer.isNavigationEnabled();
+    }
 
-        for (int i = 0; i < 8; i++) {
-            float currentDegrees = i * 45;
-            String cardinal = valueFormatter.getCardinalDirection(currentDegrees);
-            canvas.drawText(cardinal, centerX, y, textPaint);
-            canvas.rotate(45, centerX, centerY);
+    @Override
+    public void setNavigationEnabled(boolean navigationEnabled) {
+        if (renderer.isNavigationEnabled() == navigationEnabled) {
+            return;
         }
+        renderer.setNavigationEnabled(navigationEnabled);
+        invalidateNavigation(compassBearing + navigationBearing);
+    }
 
-        canvas.restore();
+    public float getCompassBearing() {
+        return compassBearing;
     }
 
-    private void drawScaleLines(Canvas canvas) {
-        // maybe it's more efficient to do it with canvas rotating and less trigonometry
-        canvas.drawCircle(centerX, centerY, faceRadius, linePaint);
-        for (int i = 0; i < scaleLines; i++) {
-            float fraction = i % (scaleLines / 12) == 0 ? 0.8f : 0.9f;
-            float fromRadius = faceRadius * fraction;
+    @Override
+    public void setCompassBearing(float compassBearing) {
+        if (needleAnimator == null) {
+            showCompassBearing(compassBearing);
+            return;
+        }
+        needleAnimator.setTarget(compassBearing, System.nanoTime());
+        if (!animating) {
+            animating = true;
+            Choreographer.getInstance().postFrameCallback(animationCallback);
+        }
+    }
 
-            float degrees = compassBearing + i * scaleAngleStep;
-            double degRad = toRadians(degrees);
+    /**
+     * Show the face at given bearing. The view is redrawn only if the change since last redraw
+     * moves the rim by at least a pixel.
+     */
+    private void showCompassBearing(float compassBearing) {
+        this.compassBearing = compassBearing;
+        if (abs(angleDifference(compassBearing, invalidatedCompassBearing))
+                < renderer.getMinVisibleAngle()) {
+            skippedRedraws++;
+            return;
+        }
+        invalidatedCompassBearing = compassBearing;
+        invalidatedNavigationBearing = navigationBearing;
+        redraws++;
+        invalidate();
+    }
 
-            float fromX = (float) (centerX + fromRadius * cos(degRad));
-            float fromY = (float) (centerY + fromRadius * sin(degRad));
-            float toX = (float) (centerX + faceRadius * cos(degRad));
-            float toY = (float) (centerY + faceRadius * sin(degRad));
+    public boolean isNeedleAnimationEnabled() {
+        return needleAnimator != null;
+    }
 
-            canvas.drawLine(fromX, fromY, toX, toY, facePaint);
+    @Override
+    public void setNeedleAnimationEnabled(boolean needleAnimationEnabled) {
+        if (needleAnimationEnabled == isNeedleAnimationEnabled()) {
+            return;
+        }
+        if (needleAnimationEnabled) {
+            needleAnimator = new NeedleAnimator();
+        } else {
+            stopAnimation();
+            needleAnimator = null;
         }
     }
 
-    private void drawWindrose(Canvas canvas) {
-        // maybe it's more efficient to do it with canvas rotating and less trigonometry
-        for (int i = 0; i < SPIKES; i++) {
-            float radius = i % 2 == 0 ? faceRadius : shortSpikeRadius;
-            float degrees = compassBearing + i * STEP_ANGLE;
-            float plusDegrees = degrees + HALF_STEP_ANGLE;
-            float minusDegrees = degrees - HALF_STEP_ANGLE;
-            double degRad = toRadians(degrees);
-            double plusDegRad = toRadians(plusDegrees);
-            double minusDegRad = toRadians(minusDegrees);
-
-            float endX = (float) (centerX + radius * cos(degRad));
-            float vertexX = (float) (centerX + spikeCornerRadius * cos(plusDegRad));
-            float backVertexX = (float) (centerX + spikeCornerRadius * cos(minusDegRad));
-            float endY = (float) (centerY + radius * sin(degRad));
-            float vertexY = (float) (centerY + spikeCornerRadius * sin(plusDegRad));
-            float backVertexY = (float) (centerY + spikeCornerRadius * sin(minusDegRad));
-
-            path.moveTo(centerX, centerY);
-            path.lineTo(endX, endY);
-            path.lineTo(vertexX, vertexY);
-            path.close();
-            canvas.drawPath(path, facePaint);
-            path.reset();
-
-            // 6 is north, 2 is south - ugly but whatever
-            if (i == 6 || i == 2) {
-                path.moveTo(centerX, centerY);
-                path.lineTo(endX, endY);
-                path.lineTo(backVertexX, backVertexY);
-                path.close();
-                canvas.drawPath(path, i == 6 ? northPaint : southPaint);
-                path.reset();
-                // correct line from center to smallradius
-                canvas.drawLine(centerX, centerY, backVertexX, backVertexY, facePaint);
-            }
-
-            canvas.drawLine(endX, endY, backVertexX, backVertexY, facePaint);
+    private void stopAnimation() {
+        Choreographer.getInstance().removeFrameCallback(animationCallback);
+        animating = false;
+        if (needleAnimator != null) {
+            // start from the next bearing set, not from the one animated to before
+            needleAnimator.reset();
         }
     }
 
-    public boolean isCompassEnabled() {
-        return compassEnabled;
+    public float getNavigationBearing() {
+        return navigationBearing;
     }
 
-    public void setCompassEnabled(boolean compassEnabled) {
-        this.compassEnabled = compassEnabled;
+    /**
+     * Set bearing of the navigation pointer, relative to the face. Only the regions covered by
+     * the pointer before and after the change are redrawn, and only if the pointer tip moves
+     * by at least a pixel. Note that the dirty region is ignored by hardware accelerated
+     * views on newer platforms, which redraw the whole view.
+     */
+    @Override
+    public void setNavigationBearing(float navigationBearing) {
+        this.navigationBearing = navigationBearing;
+        if (!renderer.isNavigationEnabled()) {
+            // pointer not shown, no redraw was ever needed
+            return;
+        }
+        if (abs(angleDifference(navigationBearing, invalidatedNavigationBearing))
+                < renderer.getMinVisibleAngle()) {
+            skippedRedraws++;
+            return;
+        }
+        invalidateNavigation(compassBearing + invalidatedNavigationBearing);
+        invalidateNavigation(compassBearing + navigationBearing);
+        invalidatedNavigationBearing = navigationBearing;
+        redraws++;
     }
 
-    public boolean isNavigationEnabled() {
-        return navigationEnabled;
+    /**
+     * Invalidate bounding box of the navigation pointer pointing at given bearing.
+     */
+    private void invalidateNavigation(float bearing) {
+        renderer.getNavigationBounds(bearing, navigationBounds);
+        invalidate(navigationBounds.left, navigationBounds.top,
+                navigationBounds.right, navigationBounds.bottom);
     }
 
-    public void setNavigationEnabled(boolean navigationEnabled) {
-        this.navigationEnabled = navigationEnabled;
+    /**
+     * @return difference of two angles, in -180:180 range
+     */
+    private static float angleDifference(float a, float b) {
+        float difference = (a - b) % 360f;
+        if (difference > 180f) {
+            difference -= 360f;
+        } else if (difference < -180f) {
+            difference += 360f;
+        }
+        return difference;
     }
 
-    public float getCompassBearing() {
-        return compassBearing;
+    /**
+     * @return number of bearing changes that caused a redraw
+     */
+    public long getRedrawCount() {
+        return redraws;
     }
 
-    public void setCompassBearing(float compassBearing) {
-        this.compassBearing = compassBearing;
-        invalidate();
+    /**
+     * @return number of bearing changes too small to be visible, for which redraw was skipped
+     */
+    public long getSkippedRedrawCount() {
+        return skippedRedraws;
     }
 
-    public float getNavigationBearing() {
-        return navigationBearing;
+    public Confidence getHeadingConfidence() {
+        return renderer.getHeadingConfidence();
     }
 
-    public void setNavigationBearing(float navigationBearing) {
-        this.navigationBearing = navigationBearing;
+    @Override
+    public void setHeadingConfidence(Confidence headingConfidence) {
+        if (renderer.getHeadingConfidence() == headingConfidence) {
+            return;
+        }
+        renderer.setHeadingConfidence(headingConfidence);
         invalidate();
     }
 
+    @Override
     public void setHasBackground(boolean hasBackground) {
-        this.hasBackground = hasBackground;
+        renderer.setHasBackground(hasBackground);
+        invalidate();
     }
 
+    @Override
     public void setStrokeWidth(int strokeWidth) {
-        this.strokeWidth = strokeWidth;
+        renderer.setStrokeWidth(strokeWidth);
+        invalidate();
     }
 
     public boolean isCardinalsEnabled() {
-        return cardinalsEnabled;
+        return renderer.isCardinalsEnabled();
     }
 
+    @Override
     public void setCardinalsEnabled(boolean cardinalsEnabled) {
-        this.cardinalsEnabled = cardinalsEnabled;
+        renderer.setCardinalsEnabled(cardinalsEnabled);
+        invalidate();
     }
 
     public int getScaleLines() {
-        return scaleLines;
+        return renderer.getScaleLines();
     }
 
+    @Override
     public void setScaleLines(int scaleLines) {
-        this.scaleLines = scaleLines;
-        this.scaleAngleStep = (360f / scaleLines);
+        renderer.setScaleLines(scaleLines);
+        invalidate();
+    }
+
+    /**
+     * @return number of scale lines drawn for current size and level of detail
+     */
+    public int getVisibleScaleLines() {
+        return renderer.getVisibleScaleLines();
+    }
+
+    public DetailThresholds getDetailThresholds() {
+        return renderer.getDetailThresholds();
+    }
+
+    @Override
+    public void setDetailThresholds(DetailThresholds detailThresholds) {
+        renderer.setDetailThresholds(detailThresholds);
+        invalidate();
+    }
+
+    public long getFrameTimeBudgetNanos() {
+        return renderer.getFrameTimeBudgetNanos();
+    }
+
+    @Override
+    public void setFrameTimeBudgetNanos(long frameTimeBudgetNanos) {
+        renderer.setFrameTimeBudgetNanos(frameTimeBudgetNanos);
+        invalidate();
+    }
+
+    /**
+     * @return factor the face radius is scaled by when choosing level of detail, lower than 1
+     * if frames went over the time budget
+     */
+    public float getDetailScale() {
+        return renderer.getDetailScale();
+    }
+
+    public boolean isVectorMode() {
+        return renderer.isVectorMode();
+    }
+
+    /**
+     * Draw the face as vectors every frame instead of rotating a cached bitmap of it - e.g.
+     * while the view is being resized or animated, when the bitmap would have to be rendered
+     * again for every frame anyway.
+     */
+    public void setVectorMode(boolean vectorMode) {
+        renderer.setVectorMode(vectorMode);
+        invalidate();
+    }
+
+    /**
+     * Face radii in pixels below which the view drops detail.
+     */
+    public static class DetailThresholds {
+
+        public static final DetailThresholds DEFAULT = new DetailThresholds(6f, 48f, 16f, 96f);
+
+        private final float minScaleLineSpacing;
+        private final float minCardinalsRadius;
+        private final float minAntiAliasRadius;
+        private final float minFullStrokeRadius;
+
+        /**
+         * @param minScaleLineSpacing smallest distance between scale lines on the rim, in pixels;
+         *                            scale lines are thinned out to keep it
+         * @param minCardinalsRadius smallest face radius with cardinals drawn
+         * @param minAntiAliasRadius smallest face radius drawn with anti-aliasing
+         * @param minFullStrokeRadius smallest face radius drawn with full stroke width; strokes
+         *                            of smaller faces are thinner, down to hairline
+         */
+        public DetailThresholds(float minScaleLineSpacing, float minCardinalsRadius,
+                                float minAntiAliasRadius, float minFullStrokeRadius) {
+            this.minScaleLineSpacing = minScaleLineSpacing;
+            this.minCardinalsRadius = minCardinalsRadius;
+            this.minAntiAliasRadius = minAntiAliasRadius;
+            this.minFullStrokeRadius = minFullStrokeRadius;
+        }
+
+        public float getMinScaleLineSpacing() {
+            return minScaleLineSpacing;
+        }
+
+        public float getMinCardinalsRadius() {
+            return minCardinalsRadius;
+        }
+
+        public float getMinAntiAliasRadius() {
+            return minAntiAliasRadius;
+        }
+
+        public float getMinFullStrokeRadius() {
+            return minFullStrokeRadius;
+        }
+    }
+
+    /**
+     * @return number of canvas draw calls issued by the last {@link #onDraw(Canvas)}, including
+     * the ones rendering the cached face
+     */
+    public int getDrawCallCount() {
+        return renderer.getDrawCallCount();
     }
 }
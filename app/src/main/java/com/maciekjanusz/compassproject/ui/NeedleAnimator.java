@@ -0,0 +1,186 @@
+package com.maciekjanusz.compassproject.ui;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.exp;
+
+/**
+ * Moves a displayed bearing towards the newest one reported by the sensors, with a critically
+ * damped spring along the shorter arc. The spring is stepped by frame time, not by sensor
+ * events, so the dial moves smoothly between events however rarely they come.
+ * Angular velocity of the reported bearing is estimated from consecutive targets, and while
+ * the newest target is fresh, the spring follows it extrapolated by that velocity - to the
+ * frame time and further by the prediction time, which hides sensor-to-pixel latency.
+ * Not thread safe.
+ */
+public class NeedleAnimator {
+
+    public static final float DEFAULT_NATURAL_FREQUENCY = 12f;
+    public static final long DEFAULT_PREDICTION_NANOS = TimeUnit.MILLISECONDS.toNanos(40);
+
+    // target is extrapolated only this far past the time it was set, then the dial settles on it
+    private static final long MAX_EXTRAPOLATION_NANOS = TimeUnit.MILLISECONDS.toNanos(150);
+    // targets set further apart are not used to estimate velocity
+    private static final long MAX_TARGET_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    // low-pass filter weight of a new velocity estimate
+    private static final float VELOCITY_WEIGHT = 0.5f;
+    // below these, the dial snaps to the target and stops
+    private static final float SETTLED_ANGLE = 0.05f;
+    private static final float SETTLED_VELOCITY = 0.5f;
+
+    private final float naturalFrequency;
+    private final long predictionNanos;
+
+    // newest target, its time and estimated angular velocity in degrees per second
+    private boolean hasTarget;
+    private float target;
+    private long targetTimeNanos;
+    private float targetVelocity;
+
+    // displayed bearing and its angular velocity in degrees per second
+    private float bearing;
+    private float velocity;
+    private long frameTimeNanos;
+    private boolean settled = true;
+
+    public NeedleAnimator() {
+        this(DEFAULT_NATURAL_FREQUENCY, DEFAULT_PREDICTION_NANOS);
+    }
+
+    /**
+     * @param naturalFrequency natural frequency of the spring, in radians per second - the higher,
+     *                         the faster the dial follows the target
+     * @param predictionNanos how far ahead of the frame time the target is extrapolated
+     */
+    public NeedleAnimator(float naturalFrequency, long predictionNanos) {
+        if (naturalFrequency <= 0) {
+            throw new IllegalArgumentException("Natural frequency must be positive");
+        }
+        this.naturalFrequency = naturalFrequency;
+        this.predictionNanos = predictionNanos;
+    }
+
+    /**
+     * Set the bearing the dial should move to. The first target is shown immediately.
+     *
+     * @param target bearing in degrees
+     * @param timeNanos time the bearing was reported at, in {@link System#nanoTime()} base
+     */
+    public void setTarget(float target, long timeNanos) {
+        target = normalize(target);
+        if (!hasTarget) {
+            bearing = target;
+            velocity = 0;
+            targetVelocity = 0;
+            frameTimeNanos = timeNanos;
+            hasTarget = true;
+        } else {
+            long interval = timeNanos - targetTimeNanos;
+            if (interval > MAX_TARGET_INTERVAL_NANOS) {
+                targetVelocity = 0;
+            } else if (interval > 0) {
+                float sampleVelocity = shortestArc(target - this.target) / (interval / 1e9f);
+                targetVelocity += VELOCITY_WEIGHT * (sampleVelocity - targetVelocity);
+            }
+        }
+        this.target = target;
+        this.targetTimeNanos = timeNanos;
+        settled = false;
+    }
+
+    /**
+     * Advance the animation to given frame time.
+     *
+     * @param frameTimeNanos time of the frame, in {@link System#nanoTime()} base
+     * @return bearing to display in this frame, in 0:360 range
+     */
+    public float update(long frameTimeNanos) {
+        float dt = (frameTimeNanos - this.frameTimeNanos) / 1e9f;
+        if (!hasTarget || dt <= 0) {
+            return bearing;
+        }
+        this.frameTimeNanos = frameTimeNanos;
+
+        // goal is the target extrapolated ahead of this frame, as long as the target is fresh
+        float goal = target;
+        float goalVelocity = 0;
+        long horizonNanos = frameTimeNanos - targetTimeNanos + predictionNanos;
+        if (horizonNanos <= MAX_EXTRAPOLATION_NANOS) {
+            goalVelocity = targetVelocity;
+            goal += goalVelocity * (horizonNanos / 1e9f);
+        }
+
+        // exact solution of the critically damped spring over dt, in the frame of reference of
+        // the goal moving at constant velocity - independent of the number of steps taken
+        float error = shortestArc(bearing - goal + goalVelocity * dt);
+        float relativeVelocity = velocity - goalVelocity;
+        float decay = (float) exp(-naturalFrequency * dt);
+        float change = (relativeVelocity + naturalFrequency * error) * dt;
+        relativeVelocity = (relativeVelocity - naturalFrequency * change) * decay;
+        error = (error + change) * decay;
+        velocity = relativeVelocity + goalVelocity;
+
+        settled = goalVelocity == 0 && abs(error) < SETTLED_ANGLE
+                && abs(velocity) < SETTLED_VELOCITY;
+        if (settled) {
+            error = 0;
+            velocity = 0;
+        }
+        bearing = normalize(goal + error);
+        return bearing;
+    }
+
+    /**
+     * @return true if the dial has come to rest on the target, and needs no more frames until
+     * the next target is set
+     */
+    public boolean isSettled() {
+        return settled;
+    }
+
+    /**
+     * @return bearing displayed in the last frame, in 0:360 range
+     */
+    public float getBearing() {
+        return bearing;
+    }
+
+    /**
+     * @return estimated angular velocity of the target, in degrees per second
+     */
+    public float getTargetVelocity() {
+        return targetVelocity;
+    }
+
+    /**
+     * Forget the target, so that the next one is shown immediately.
+     */
+    public void reset() {
+        hasTarget = false;
+        velocity = 0;
+        targetVelocity = 0;
+        settled = true;
+    }
+
+    /**
+     * @return given angle in 0:360 range
+     */
+    private static float normalize(float degrees) {
+        degrees %= 360f;
+        return degrees < 0 ? degrees + 360f : degrees;
+    }
+
+    /**
+     * @return given angle in -180:180 range
+     */
+    private static float shortestArc(float degrees) {
+        degrees %= 360f;
+        if (degrees > 180f) {
+            degrees -= 360f;
+        } else if (degrees < -180f) {
+            degrees += 360f;
+        }
+        return degrees;
+    }
+}
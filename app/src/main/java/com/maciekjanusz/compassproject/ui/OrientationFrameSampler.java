@@ -0,0 +1,195 @@
+package com.maciekjanusz.compassproject.ui;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.maciekjanusz.compassproject.sensor.Compass;
+import com.maciekjanusz.compassproject.sensor.CompassHub;
+import com.maciekjanusz.compassproject.sensor.OrientationSnapshot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Paces orientation delivery to the display: once per frame, the newest orientation is read
+ * from {@link OrientationSnapshot} and passed to the listener, but only if it differs from the
+ * previously delivered one. Sensor samples published between two frames are coalesced, so the
+ * views are never updated more often than they can be drawn.
+ * Delivery rate is set by {@link CompassHub.Profile}, so that consumers of a shared compass
+ * can be updated at different rates.
+ * <p>
+ * Frames are requested only while there is something to do: with a minimum delivery interval,
+ * the next frame is requested when the interval is over, and once the newest orientation was
+ * delivered, no frames are requested until a new sample is published.
+ * Must be started and stopped on the main thread.
+ */
+public class OrientationFrameSampler implements Choreographer.FrameCallback {
+
+    private final OrientationSnapshot snapshot;
+    private final Compass.CompassListener listener;
+    private final OrientationSnapshot.Orientation reading = new OrientationSnapshot.Orientation();
+    private final long minDeliveryIntervalNanos;
+
+    private boolean running;
+
+    // set while no frame is requested, until the next sample is published
+    private final AtomicBoolean idle = new AtomicBoolean();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable wakeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (running) {
+                Choreographer.getInstance().postFrameCallback(OrientationFrameSampler.this);
+            }
+        }
+    };
+    private final OrientationSnapshot.OnPublishListener publishListener =
+            new OrientationSnapshot.OnPublishListener() {
+                @Override
+                public void onPublish() {
+                    // called on the sensor thread for every sample, posts only when idle
+                    if (idle.compareAndSet(true, false)) {
+                        mainHandler.post(wakeRunnable);
+                    }
+                }
+            };
+
+    // newest reading
+    private boolean hasReading;
+    private float bearing;
+    private float pitch;
+    private float roll;
+
+    // last delivered values
+    private int lastCount;
+    private float lastBearing;
+    private float lastPitch;
+    private float lastRoll;
+    private long lastDeliveryTimeNanos;
+
+    // statistics
+    private long frames;
+    private long deliveredFrames;
+    private long coalescedSamples;
+
+    public OrientationFrameSampler(OrientationSnapshot snapshot, Compass.CompassListener listener) {
+        this(snapshot, listener, CompassHub.Profile.RESPONSIVE);
+    }
+
+    public OrientationFrameSampler(OrientationSnapshot snapshot, Compass.CompassListener listener,
+                                   CompassHub.Profile profile) {
+        this.snapshot = snapshot;
+        this.listener = listener;
+        this.minDeliveryIntervalNanos =
+                TimeUnit.MILLISECONDS.toNanos(profile.getMinDeliveryIntervalMillis());
+    }
+
+    public void start() {
+        if (!running) {
+            running = true;
+            // start over from the newest reading, not from the one delivered before last stop
+            hasReading = false;
+            idle.set(false);
+            snapshot.addOnPublishListener(publishListener);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        snapshot.removeOnPublishListener(publishListener);
+        idle.set(false);
+        mainHandler.removeCallbacks(wakeRunnable);
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        frames++;
+
+        if (snapshot.read(reading)) {
+            int count = reading.getCount();
+            if (!hasReading || count != lastCount) {
+                if (hasReading) {
+                    // every sample published since last frame except the newest one is dropped
+                    coalescedSamples += count - lastCount - 1;
+                }
+                // on the first reading since start, samples published while stopped were never
+                // due for delivery, so they are not counted as coalesced
+                lastCount = count;
+                bearing = reading.getBearing();
+                pitch = reading.getPitch();
+                roll = reading.getRoll();
+                hasReading = true;
+            }
+        }
+
+        if (hasReading) {
+            if ((bearing != lastBearing || pitch != lastPitch || roll != lastRoll)
+                    && (deliveredFrames == 0
+                    || frameTimeNanos - lastDeliveryTimeNanos >= minDeliveryIntervalNanos)) {
+                lastBearing = bearing;
+                lastPitch = pitch;
+                lastRoll = roll;
+                lastDeliveryTimeNanos = frameTimeNanos;
+                deliveredFrames++;
+                listener.onCompassStateChanged(bearing, pitch, roll);
+            }
+        }
+
+        scheduleNextFrame(frameTimeNanos);
+    }
+
+    private void scheduleNextFrame(long frameTimeNanos) {
+        boolean delivered = bearing == lastBearing && pitch == lastPitch && roll == lastRoll;
+        if (!hasReading || delivered) {
+            idle.set(true);
+            // a sample published since this frame read the snapshot would find it not idle yet
+            int readCount = hasReading ? lastCount : 0;
+            if (snapshot.getCount() == readCount || !idle.compareAndSet(true, false)) {
+                return;
+            }
+        }
+        long remainingNanos = minDeliveryIntervalNanos - (frameTimeNanos - lastDeliveryTimeNanos);
+        if (remainingNanos > 0) {
+            // nothing to deliver before the interval is over
+            Choreographer.getInstance().postFrameCallbackDelayed(this,
+                    TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+        } else {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * @return number of frames sampled so far
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return number of frames in which a changed orientation was delivered to the listener
+     */
+    public long getDeliveredFrameCount() {
+        return deliveredFrames;
+    }
+
+    /**
+     * @return number of sensor samples that were published but never delivered, because a newer
+     * sample arrived before the next frame
+     */
+    public long getCoalescedSampleCount() {
+        return coalescedSamples;
+    }
+
+    /**
+     * @return average number of samples coalesced into every delivered frame
+     */
+    public float getCoalescedSamplesPerFrame() {
+        return deliveredFrames == 0 ? 0 : (float) coalescedSamples / deliveredFrames;
+    }
+}
@@ -17,7 +17,9 @@ import android.view.View;
 import android.view.WindowManager;
 import android.widget.LinearLayout;
 
+import com.maciekjanusz.compassproject.R;
 import com.maciekjanusz.compassproject.sensor.Compass;
+import com.maciekjanusz.compassproject.sensor.CompassHub;
 import com.maciekjanusz.compassproject.navigation.NavigationBundle;
 import com.maciekjanusz.compassproject.navigation.ServiceMessage;
 import com.maciekjanusz.compassproject.navigation.ServiceState;
@@ -28,23 +30,22 @@ import com.maciekjanusz.draglayout.DragLayout;
 import de.greenrobot.event.EventBus;
 
 import static com.maciekjanusz.compassproject.preferences.AppPreferences.WIDGET_SERVICE_RUNNING;
-import static com.maciekjanusz.compassproject.util.CompassMath.adjustBearing;
 
 public class ScreenWidgetService extends Service implements DragLayout.DragListener,
         Compass.CompassListener, ScreenRotationAware {
 
     private static final int SIZE_DP = 96;
-    private static final int WIDGET_SCALE_LINES = 72;
 
     private WindowManager.LayoutParams params;
     private WindowManager windowManager;
     private DisplayManager displayManager;
     private DragLayout dragLayout;
-    private CompassView compassView;
+    private CompassDisplay compassView;
 
+    private CompassHub compassHub;
+    private CompassHub.Subscription compassSubscription;
     private Compass compass;
-    private float currentRoll;
-    private volatile int rotation;
+    private OrientationFrameSampler frameSampler;
     private boolean started;
 
     @Override
@@ -55,10 +56,18 @@ public class ScreenWidgetService extends Service implements DragLayout.DragListe
     @Override
     public void onCreate() {
         super.onCreate();
-        compass = new Compass(this, this);
+        // the overlay lives long, often on a still device and with screen off - it takes
+        // low-rate updates, and lets the sensors batch events and relax their rate
+        compassHub = CompassHub.getInstance(this);
+        compass = compassHub.getCompass();
 
         initParams();
         initViews();
+        if (!(compassView instanceof CompassTextureView)) {
+            // render thread backend reads the snapshot by itself, no sampling on the main thread
+            frameSampler = new OrientationFrameSampler(compass.getSnapshot(), this,
+                    CompassHub.Profile.LOW_RATE);
+        }
     }
 
     private DisplayManager.DisplayListener displayListener = new SimpleDisplayListener() {
@@ -79,16 +88,18 @@ public class ScreenWidgetService extends Service implements DragLayout.DragListe
         updateRotation();
 
         // init compass view
-        compassView = new CompassView(this);
+        View view = createCompassView();
+        compassView = (CompassDisplay) view;
         compassView.setCompassEnabled(true);
         compassView.setHasBackground(true);
         compassView.setStrokeWidth(0);
-        compassView.setScaleLines(WIDGET_SCALE_LINES);
-        compassView.setLayoutParams(new LinearLayout.LayoutParams(sizePx, sizePx));
+        // updates come at most every 100 ms, animate the dial in between
+        compassView.setNeedleAnimationEnabled(true);
+        view.setLayoutParams(new LinearLayout.LayoutParams(sizePx, sizePx));
 
         // init dragLayout & add compass view
         dragLayout = new DragLayout(this);
-        dragLayout.addView(compassView);
+        dragLayout.addView(view);
         dragLayout.setDragListener(this);
         dragLayout.setInitialPosition(params.x, params.y);
         dragLayout.setScale(-0.25f);
@@ -103,6 +114,14 @@ public class ScreenWidgetService extends Service implements DragLayout.DragListe
         });
     }
 
+    /**
+     * @return compass view of the backend chosen by R.bool.widget_compass_render_thread
+     */
+    private View createCompassView() {
+        return getResources().getBoolean(R.bool.widget_compass_render_thread)
+                ? new CompassTextureView(this) : new CompassView(this);
+    }
+
     private void initParams() {
         int paramFlags = WindowManager.LayoutParams.FLAG_HARDWARE_ACCELERATED
                 | WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE;
@@ -123,7 +142,13 @@ public class ScreenWidgetService extends Service implements DragLayout.DragListe
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if(!started) {
-            compass.start();
+            compassSubscription = compassHub.subscribe(CompassHub.Profile.LOW_RATE,
+                    null);
+            if (frameSampler != null) {
+                frameSampler.start();
+            } else {
+                ((CompassTextureView) compassView).setOrientationSnapshot(compass.getSnapshot());
+            }
             // check navigation service status
             EventBus.getDefault().register(this);
             EventBus.getDefault().post(ServiceMessage.REQUEST_NAVIGATION_SERVICE_STATE);
@@ -146,12 +171,21 @@ public class ScreenWidgetService extends Service implements DragLayout.DragListe
 
     @Override
     public synchronized void updateRotation() {
-        rotation = windowManager.getDefaultDisplay().getRotation();
+        // compass remaps its axes to the screen, bearing needs no further adjustment
+        compass.setDisplayRotation(windowManager.getDefaultDisplay().getRotation());
     }
 
     @Override
     public void onDestroy() {
-        compass.stop();
+        if (frameSampler != null) {
+            frameSampler.stop();
+        } else {
+            ((CompassTextureView) compassView).setOrientationSnapshot(null);
+        }
+        if (compassSubscription != null) {
+            compassHub.unsubscribe(compassSubscription);
+            compassSubscription = null;
+        }
         displayManager.unregisterDisplayListener(displayListener);
         removeOverlayView();
         EventBus.getDefault().unregister(this);
@@ -203,17 +237,14 @@ public class ScreenWidgetService extends Service implements DragLayout.DragListe
 
     @Override
     public void onCompassStateChanged(float bearing, float pitch, float roll) {
-        currentRoll = roll;
-        bearing = adjustBearing(bearing, roll, rotation);
         compassView.setCompassBearing(-bearing);
-        compassView.invalidate();
     }
 
     @SuppressWarnings("unused")
     public void onEvent(NavigationBundle navigationBundle) {
-        float bearing = navigationBundle.getBearing();
-        bearing = adjustBearing(bearing, currentRoll, 0);
-        compassView.setNavigationBearing(bearing);
+        // navigation bearing is relative to true north, keep compass declination up to date
+        compassHub.setLocation(navigationBundle.getLocation());
+        compassView.setNavigationBearing(navigationBundle.getBearing());
         compassView.setNavigationEnabled(true);
     }
 
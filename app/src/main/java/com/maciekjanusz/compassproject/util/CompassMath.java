@@ -1,7 +1,5 @@
 package com.maciekjanusz.compassproject.util;
 
-import android.view.Surface;
-
 import static java.lang.Math.abs;
 import static java.lang.Math.atan2;
 import static java.lang.Math.cos;
@@ -91,37 +89,6 @@ public enum CompassMath {;
         return (long) time;
     }
 
-    /**
-     * This function is used to adjust raw bearing according to screen rotation and
-     * device roll. If the device is upside down, bearing is inverted. Then, current rotation
-     * of the device is added to the bearing.
-     *
-     * @param bearing raw bearing in degrees, as returned from compass instance
-     * @param roll roll in degrees (-180 : 180), as returned from compass instance
-     * @param rotation {@link Surface#ROTATION_0}, {@link Surface#ROTATION_90},
-     *                 {@link Surface#ROTATION_180}, {@link Surface#ROTATION_270}
-     * @return adjusted bearing in degrees
-     */
-    public static float adjustBearing(float bearing, float roll, int rotation) {
-        // if device is more or less upside down, inverse the bearing
-        if(roll > 90 || roll <= -90) bearing = -bearing;
-        // ensure that bearing is properly adjusted according to current screen rotation
-        switch(rotation) {
-            case Surface.ROTATION_90:
-                bearing = (bearing + 90) % 360;
-                break;
-            case Surface.ROTATION_180:
-                bearing = (bearing + 180) % 360;
-                break;
-            case Surface.ROTATION_270:
-                bearing = (bearing + 270) % 360;
-                break;
-            // default rotation (ROTATION_0 - upright portrait mode) requires no further adjustment.
-        }
-        // bearing must be inverted for display
-        return bearing;
-    }
-
     /**
      * This function checks if the passed latitude value lies between -{@link #MAX_LATITUDE} and
      * {@link #MAX_LATITUDE} (-90 : 90)
@@ -195,11 +162,25 @@ public enum CompassMath {;
      * @return coordinate in DMS format
      */
     public static float[] decimalToDegrees(double decimal) {
+        return decimalToDegrees(decimal, new float[3]);
+    }
+
+    /**
+     * Converts coordinates in decimal format to DMS (degree, minute, second) format, without
+     * allocation.
+     * @param decimal coordinate in decimal format
+     * @param out array of at least 3 elements to fill with degrees, minutes and seconds
+     * @return given array
+     */
+    public static float[] decimalToDegrees(double decimal, float[] out) {
         int deg = (int) (floor(decimal * 1000000f) / 1000000f);
         int min = (int) ((floor(abs(decimal) * 1000000f * 60f) / 1000000f) % 60f);
         float sec = (float) ((abs(decimal) * 3600f) % 60f);
 
-        return new float[] {deg, min, sec};
+        out[0] = deg;
+        out[1] = min;
+        out[2] = sec;
+        return out;
     }
 
 }
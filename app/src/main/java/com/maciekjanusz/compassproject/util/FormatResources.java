@@ -0,0 +1,138 @@
+package com.maciekjanusz.compassproject.util;
+
+import android.content.Context;
+
+import com.maciekjanusz.compassproject.R;
+
+import java.util.Locale;
+
+/**
+ * Immutable set of resource strings used by {@link ValueFormatter}: cardinal directions, units
+ * and format strings. Resolved once per process and locale and shared by all formatters, so
+ * that creating a formatter, eg. for every compass view, does not touch resources.
+ */
+public final class FormatResources {
+
+    /**
+     * Resources of the locale resolved most recently, replaced as a whole on locale change
+     */
+    private static volatile FormatResources instance;
+
+    private final Locale locale;
+    private final String[] cardinalDirections;
+    private final String daysString;
+    private final String hoursString;
+    private final String minutesString;
+    private final String kmhUnit;
+    private final String kmUnit;
+    private final String mphUnit;
+    private final String mileUnit;
+    private final String meterUnit;
+    private final String decimalCoordinatesFormat;
+    private final String dmsCoordinatesFormat;
+    private final String speedFormat;
+    private final String durationFormat;
+    private final String metricDistanceFormat;
+    private final String imperialDistanceFormat;
+
+    private FormatResources(Context context, Locale locale) {
+        this.locale = locale;
+        cardinalDirections = context.getResources().getStringArray(R.array.cardinal_directions);
+        daysString = context.getString(R.string.days);
+        hoursString = context.getString(R.string.hours);
+        minutesString = context.getString(R.string.minutes);
+        kmUnit = context.getString(R.string.unit_kilometer);
+        mileUnit = context.getString(R.string.unit_mile);
+        meterUnit = context.getString(R.string.unit_meter);
+        kmhUnit = context.getString(R.string.unit_kmh);
+        mphUnit = context.getString(R.string.unit_mph);
+        decimalCoordinatesFormat = context.getString(R.string.decimal_coordinates_format);
+        dmsCoordinatesFormat = context.getString(R.string.dms_coordinates_format);
+        speedFormat = context.getString(R.string.speed_format);
+        durationFormat = context.getString(R.string.duration_format);
+        metricDistanceFormat = context.getString(R.string.metric_distance_format);
+        imperialDistanceFormat = context.getString(R.string.imperial_distance_format);
+    }
+
+    /**
+     * Get resource strings for the current locale of given context. They are resolved only if
+     * the locale has changed since last call.
+     */
+    public static FormatResources get(Context context) {
+        Locale locale = context.getResources().getConfiguration().locale;
+        FormatResources current = instance;
+        if (current == null || !current.locale.equals(locale)) {
+            // racing threads may both resolve them, either result is valid
+            current = new FormatResources(context, locale);
+            instance = current;
+        }
+        return current;
+    }
+
+    public int getCardinalDirectionCount() {
+        return cardinalDirections.length;
+    }
+
+    /**
+     * @param index index of the direction, clockwise from north
+     */
+    public String getCardinalDirection(int index) {
+        return cardinalDirections[index];
+    }
+
+    public String getDaysString() {
+        return daysString;
+    }
+
+    public String getHoursString() {
+        return hoursString;
+    }
+
+    public String getMinutesString() {
+        return minutesString;
+    }
+
+    public String getKmhUnit() {
+        return kmhUnit;
+    }
+
+    public String getKmUnit() {
+        return kmUnit;
+    }
+
+    public String getMphUnit() {
+        return mphUnit;
+    }
+
+    public String getMileUnit() {
+        return mileUnit;
+    }
+
+    public String getMeterUnit() {
+        return meterUnit;
+    }
+
+    public String getDecimalCoordinatesFormat() {
+        return decimalCoordinatesFormat;
+    }
+
+    public String getDmsCoordinatesFormat() {
+        return dmsCoordinatesFormat;
+    }
+
+    public String getSpeedFormat() {
+        return speedFormat;
+    }
+
+    public String getDurationFormat() {
+        return durationFormat;
+    }
+
+    public String getMetricDistanceFormat() {
+        return metricDistanceFormat;
+    }
+
+    public String getImperialDistanceFormat() {
+        return imperialDistanceFormat;
+    }
+}
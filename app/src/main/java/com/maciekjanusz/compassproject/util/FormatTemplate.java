@@ -0,0 +1,272 @@
+package com.maciekjanusz.compassproject.util;
+
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Format string, such as the ones in string resources, parsed once and then filled with values
+ * into a reusable {@link StringBuilder} without allocation. Output is the same as of
+ * {@link String#format(Locale, String, Object...)} for the subset of format specifiers it
+ * supports: {@code %d}, {@code %s}, {@code %f} with optional precision, optional argument
+ * index ({@code %1$d}) and {@code %%}. Not thread safe - arguments are held until formatted.
+ */
+public final class FormatTemplate {
+
+    private static final int LITERAL = 0;
+    private static final int INTEGER = 1;
+    private static final int DECIMAL = 2;
+    private static final int STRING = 3;
+
+    private static final int DEFAULT_PRECISION = 6;
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L,
+            1000000L, 10000000L, 100000000L, 1000000000L};
+
+    private final String pattern;
+
+    // segments: kind, literal range or argument index, precision of decimals
+    private final int[] kinds;
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] arguments;
+    private final int[] precisions;
+
+    // argument values, by zero-based argument index
+    private final long[] integers;
+    private final double[] decimals;
+    private final CharSequence[] strings;
+
+    // digits and decimal separator of the locale last formatted for
+    private Locale symbolsLocale;
+    private char zeroDigit;
+    private char decimalSeparator;
+
+    /**
+     * @param pattern format string
+     * @throws IllegalArgumentException if the pattern contains an unsupported format specifier
+     */
+    public FormatTemplate(String pattern) {
+        this.pattern = pattern;
+
+        List<int[]> segments = new ArrayList<>();
+        int argumentCount = 0;
+        int nextArgument = 0;
+        int literalStart = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            if (pattern.charAt(i) != '%') {
+                i++;
+                continue;
+            }
+            if (i > literalStart) {
+                segments.add(new int[]{LITERAL, literalStart, i, 0, 0});
+            }
+            int specStart = i++;
+            if (i < pattern.length() && pattern.charAt(i) == '%') {
+                segments.add(new int[]{LITERAL, i, i + 1, 0, 0});
+                literalStart = ++i;
+                continue;
+            }
+
+            // argument index
+            int number = parseNumber(pattern, i);
+            int argument;
+            if (number >= 0 && pattern.indexOf('$', i) == i + digits(number)) {
+                argument = number - 1;
+                i += digits(number) + 1;
+            } else if (number >= 0) {
+                throw unsupported(specStart);
+            } else {
+                argument = nextArgument++;
+            }
+            // precision
+            int precision = -1;
+            if (i < pattern.length() && pattern.charAt(i) == '.') {
+                precision = parseNumber(pattern, ++i);
+                if (precision < 0 || precision >= POWERS_OF_TEN.length) {
+                    throw unsupported(specStart);
+                }
+                i += digits(precision);
+            }
+            if (i >= pattern.length() || argument < 0) {
+                throw unsupported(specStart);
+            }
+            int kind;
+            switch (pattern.charAt(i)) {
+                case 'd':
+                    kind = INTEGER;
+                    break;
+                case 'f':
+                    kind = DECIMAL;
+                    break;
+                case 's':
+                    kind = STRING;
+                    break;
+                default:
+                    throw unsupported(specStart);
+            }
+            if (kind != DECIMAL && precision >= 0) {
+                throw unsupported(specStart);
+            }
+            segments.add(new int[]{kind, 0, 0, argument,
+                    precision >= 0 ? precision : DEFAULT_PRECISION});
+            argumentCount = Math.max(argumentCount, argument + 1);
+            literalStart = ++i;
+        }
+        if (pattern.length() > literalStart) {
+            segments.add(new int[]{LITERAL, literalStart, pattern.length(), 0, 0});
+        }
+
+        int count = segments.size();
+        kinds = new int[count];
+        starts = new int[count];
+        ends = new int[count];
+        arguments = new int[count];
+        precisions = new int[count];
+        for (int s = 0; s < count; s++) {
+            int[] segment = segments.get(s);
+            kinds[s] = segment[0];
+            starts[s] = segment[1];
+            ends[s] = segment[2];
+            arguments[s] = segment[3];
+            precisions[s] = segment[4];
+        }
+        integers = new long[argumentCount];
+        decimals = new double[argumentCount];
+        strings = new CharSequence[argumentCount];
+    }
+
+    /**
+     * @param argument argument index, starting from 1 as in the format string
+     */
+    public FormatTemplate setInteger(int argument, long value) {
+        integers[argument - 1] = value;
+        return this;
+    }
+
+    /**
+     * @param argument argument index, starting from 1 as in the format string
+     */
+    public FormatTemplate setDecimal(int argument, double value) {
+        decimals[argument - 1] = value;
+        return this;
+    }
+
+    /**
+     * @param argument argument index, starting from 1 as in the format string
+     */
+    public FormatTemplate setString(int argument, CharSequence value) {
+        strings[argument - 1] = value;
+        return this;
+    }
+
+    /**
+     * Append the format string filled with arguments set so far.
+     *
+     * @param out builder to append to
+     * @param locale locale of digits and decimal separator
+     * @return given builder
+     */
+    public StringBuilder appendTo(StringBuilder out, Locale locale) {
+        if (locale != symbolsLocale) {
+            DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+            zeroDigit = symbols.getZeroDigit();
+            decimalSeparator = symbols.getDecimalSeparator();
+            symbolsLocale = locale;
+        }
+        for (int s = 0; s < kinds.length; s++) {
+            switch (kinds[s]) {
+                case LITERAL:
+                    out.append(pattern, starts[s], ends[s]);
+                    break;
+                case INTEGER:
+                    appendInteger(out, integers[arguments[s]]);
+                    break;
+                case DECIMAL:
+                    appendDecimal(out, decimals[arguments[s]], precisions[s]);
+                    break;
+                case STRING:
+                    out.append(strings[arguments[s]]);
+                    break;
+            }
+        }
+        return out;
+    }
+
+    private void appendInteger(StringBuilder out, long value) {
+        int start = out.length();
+        out.append(value);
+        localizeDigits(out, start);
+    }
+
+    /**
+     * Append value rounded half-up to given number of decimal places. Like
+     * {@link java.util.Formatter}, values are rounded as written in their shortest decimal
+     * representation, not as stored in binary: eg. 1.0005 rounds up to 1.001, even though its
+     * nearest double is just below it.
+     */
+    private void appendDecimal(StringBuilder out, double value, int precision) {
+        long scale = POWERS_OF_TEN[precision];
+        double magnitude = Math.abs(value);
+        if (Double.isNaN(value) || Double.isInfinite(value)
+                || magnitude * scale >= Long.MAX_VALUE / 2) {
+            // out of fixed point range, allocation doesn't matter here
+            out.append(String.format(symbolsLocale, "%." + precision + "f", value));
+            return;
+        }
+        long truncated = (long) (magnitude * scale);
+        // nearest double to the decimal half-way point decides rounding, exactly as the shortest
+        // decimal representation would; truncated may be off by one, which this corrects
+        double halfWay = (truncated + 0.5) / scale;
+        long rounded = magnitude >= halfWay ? truncated + 1 : truncated;
+
+        int start = out.length();
+        if (Double.doubleToRawLongBits(value) < 0) {
+            out.append('-');
+        }
+        out.append(rounded / scale);
+        if (precision > 0) {
+            out.append(decimalSeparator);
+            long fraction = rounded % scale;
+            for (long power = scale / 10; power > fraction && power > 1; power /= 10) {
+                out.append('0');
+            }
+            out.append(fraction);
+        }
+        localizeDigits(out, start);
+    }
+
+    private void localizeDigits(StringBuilder out, int start) {
+        if (zeroDigit == '0') {
+            return;
+        }
+        for (int i = start; i < out.length(); i++) {
+            char c = out.charAt(i);
+            if (c >= '0' && c <= '9') {
+                out.setCharAt(i, (char) (zeroDigit + (c - '0')));
+            }
+        }
+    }
+
+    private IllegalArgumentException unsupported(int specStart) {
+        return new IllegalArgumentException("Unsupported format specifier at " + specStart
+                + " in: " + pattern);
+    }
+
+    /**
+     * @return non-negative number starting at given index, or -1 if there is no number there
+     */
+    private static int parseNumber(String pattern, int index) {
+        int number = -1;
+        while (index < pattern.length() && pattern.charAt(index) >= '0'
+                && pattern.charAt(index) <= '9') {
+            number = (number < 0 ? 0 : number * 10) + (pattern.charAt(index++) - '0');
+        }
+        return number;
+    }
+
+    private static int digits(int number) {
+        return Integer.toString(number).length();
+    }
+}
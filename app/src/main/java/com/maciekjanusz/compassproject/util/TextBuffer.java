@@ -0,0 +1,48 @@
+package com.maciekjanusz.compassproject.util;
+
+/**
+ * Reusable character buffer for text that changes often, to be shown with
+ * {@code TextView.setText(char[], int, int)} without allocating a String for every change.
+ * The TextView keeps a reference to the array instead of copying it, so every TextView needs
+ * a buffer of its own, and must be given the text again after every change of the buffer.
+ */
+public class TextBuffer {
+
+    private static final int DEFAULT_CAPACITY = 32;
+
+    private char[] chars;
+    private int length;
+
+    public TextBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TextBuffer(int capacity) {
+        chars = new char[capacity];
+    }
+
+    /**
+     * Copy contents of given builder into the buffer. The array is replaced by a larger one
+     * only if the text does not fit.
+     */
+    public void set(StringBuilder text) {
+        length = text.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        text.getChars(0, length, chars, 0);
+    }
+
+    public char[] getChars() {
+        return chars;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+}
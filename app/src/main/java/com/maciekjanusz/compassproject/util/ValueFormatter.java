@@ -2,8 +2,8 @@ package com.maciekjanusz.compassproject.util;
 
 import android.content.Context;
 
-import com.maciekjanusz.compassproject.R;
 import com.maciekjanusz.compassproject.preferences.AppPreferences;
+import com.maciekjanusz.compassproject.preferences.PreferencesSnapshot;
 
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
@@ -12,36 +12,39 @@ import static com.maciekjanusz.compassproject.util.CompassMath.decimalToDegrees;
 import static com.maciekjanusz.compassproject.util.CompassMath.metersToMiles;
 import static com.maciekjanusz.compassproject.util.CompassMath.msToKmH;
 import static com.maciekjanusz.compassproject.util.CompassMath.msToMpH;
+import static java.lang.Math.floor;
 
 /**
- * Use this class for formatting compass & navigation values. Resolves several resource strings
- * during init, checks preferences for displaying coordinates and unit system.
- * Contains {@link #stringBuilder} that enables memory allocation optimized formatting of
- * pitch & roll values.
+ * Use this class for formatting compass & navigation values. Takes resource strings from
+ * the shared {@link FormatResources}, and checks the shared {@link PreferencesSnapshot} for
+ * displaying coordinates and unit system on every call, so settings changes apply immediately.
+ * Format strings are parsed into {@link FormatTemplate}s once, and every value is formatted
+ * into the reusable {@link #stringBuilder}. Each value can be returned as a String, or copied
+ * into a {@link TextBuffer} without any allocation, for values updated very often.
  */
 public class ValueFormatter {
 
     private static final char DEGREE = '\u00B0';
 
     /**
-     * StringBuilder for formatting pitch & roll values
+     * StringBuilder every value is formatted into
      */
     private final StringBuilder stringBuilder = new StringBuilder();
 
     /**
-     * Flag indicating whether to use metric system
+     * Degrees, minutes and seconds of the coordinate being formatted
      */
-    private boolean metricSystem;
+    private final float[] degMinSec = new float[3];
 
     /**
-     * Flag indicating whether to use decimal coordinates
+     * Application context, for the shared preferences snapshot
      */
-    private boolean decimalCoordinates;
+    private final Context context;
 
     /**
-     * Array with cardinal direction strings (N, NE, E...)
+     * Resource strings the formatter was loaded with
      */
-    private String[] cardinalDirections;
+    private FormatResources resources;
 
     private String daysString;
     private String hoursString;
@@ -51,55 +54,48 @@ public class ValueFormatter {
     private String mphUnit;
     private String mileUnit;
     private String meterUnit;
-    private String decimalCoordinatesFormat;
-    private String dmsCoordinatesFormat;
-    private String speedFormat;
-    private String durationFormat;
-    private String metricDistanceFormat;
-    private String imperialDistanceFormat;
+    private FormatTemplate decimalCoordinatesFormat;
+    private FormatTemplate dmsCoordinatesFormat;
+    private FormatTemplate speedFormat;
+    private FormatTemplate durationFormat;
+    private FormatTemplate metricDistanceFormat;
+    private FormatTemplate imperialDistanceFormat;
 
     public ValueFormatter(Context context) {
-        loadCardinalDirections(context);
-        loadPrefs(context);
-        loadUnitStrings(context);
-        loadFormatStrings(context);
+        this.context = context.getApplicationContext();
+        loadResources(context);
     }
 
-    public void loadCardinalDirections(Context context) {
-        // cardinal directions string array
-        cardinalDirections = context.getResources().getStringArray(R.array.cardinal_directions);
-    }
+    /**
+     * Take resource strings for the current locale, eg. after a configuration change. Format
+     * strings are parsed again only if the locale has changed.
+     */
+    public void loadResources(Context context) {
+        FormatResources resources = FormatResources.get(context);
+        if (resources == this.resources) {
+            return;
+        }
+        this.resources = resources;
 
-    public void loadPrefs(Context context) {
-        // preferences
-        metricSystem = AppPreferences.isMetricSystem(context);
-        decimalCoordinates = AppPreferences.isDecimalCoordinates(context);
-    }
+        daysString = resources.getDaysString();
+        hoursString = resources.getHoursString();
+        minutesString = resources.getMinutesString();
+        kmUnit = resources.getKmUnit();
+        mileUnit = resources.getMileUnit();
+        meterUnit = resources.getMeterUnit();
+        kmhUnit = resources.getKmhUnit();
+        mphUnit = resources.getMphUnit();
 
-    public void loadUnitStrings(Context context) {
-        /*
-            Resolution of unit strings
-         */
-        daysString = context.getString(R.string.days);
-        hoursString = context.getString(R.string.hours);
-        minutesString = context.getString(R.string.minutes);
-        kmUnit = context.getString(R.string.unit_kilometer);
-        mileUnit = context.getString(R.string.unit_mile);
-        meterUnit = context.getString(R.string.unit_meter);
-        kmhUnit = context.getString(R.string.unit_kmh);
-        mphUnit = context.getString(R.string.unit_mph);
+        decimalCoordinatesFormat = new FormatTemplate(resources.getDecimalCoordinatesFormat());
+        dmsCoordinatesFormat = new FormatTemplate(resources.getDmsCoordinatesFormat());
+        speedFormat = new FormatTemplate(resources.getSpeedFormat());
+        durationFormat = new FormatTemplate(resources.getDurationFormat());
+        metricDistanceFormat = new FormatTemplate(resources.getMetricDistanceFormat());
+        imperialDistanceFormat = new FormatTemplate(resources.getImperialDistanceFormat());
     }
 
-    public void loadFormatStrings(Context context) {
-        /*
-            Resolution of format strings
-         */
-        decimalCoordinatesFormat = context.getString(R.string.decimal_coordinates_format);
-        dmsCoordinatesFormat = context.getString(R.string.dms_coordinates_format);
-        speedFormat = context.getString(R.string.speed_format);
-        durationFormat = context.getString(R.string.duration_format);
-        metricDistanceFormat = context.getString(R.string.metric_distance_format);
-        imperialDistanceFormat = context.getString(R.string.imperial_distance_format);
+    private PreferencesSnapshot preferences() {
+        return AppPreferences.getSnapshot(context);
     }
 
     /**
@@ -110,6 +106,17 @@ public class ValueFormatter {
      * @return formatted duration
      */
     public String formatDuration(long duration) {
+        return appendDuration(duration).toString();
+    }
+
+    /**
+     * Format duration into given buffer, see {@link #formatDuration(long)}.
+     */
+    public void formatDuration(long duration, TextBuffer out) {
+        out.set(appendDuration(duration));
+    }
+
+    private StringBuilder appendDuration(long duration) {
         long days = TimeUnit.SECONDS.toDays(duration);
         long hours = TimeUnit.SECONDS.toHours(duration - TimeUnit.DAYS.toSeconds(days));
         long minutes = TimeUnit.SECONDS.toMinutes(duration - TimeUnit.DAYS.toSeconds(days) - TimeUnit.HOURS.toMillis(hours));
@@ -118,14 +125,14 @@ public class ValueFormatter {
             if (hours > 12) {
                 days++;
             }
-            return String.format(Locale.getDefault(), durationFormat, days, daysString);
+            return format(durationFormat.setInteger(1, days).setString(2, daysString));
         } else if (hours > 0) {
             if (minutes > 30) {
                 hours++;
             }
-            return String.format(Locale.getDefault(), durationFormat, hours, hoursString);
+            return format(durationFormat.setInteger(1, hours).setString(2, hoursString));
         } else {
-            return String.format(Locale.getDefault(), durationFormat, minutes, minutesString);
+            return format(durationFormat.setInteger(1, minutes).setString(2, minutesString));
         }
     }
 
@@ -135,15 +142,31 @@ public class ValueFormatter {
      * @return formatted distance
      */
     public String formatDistance(float distance) {
-        if (metricSystem) {
+        return appendDistance(distance).toString();
+    }
+
+    /**
+     * Format distance into given buffer, see {@link #formatDistance(float)}.
+     */
+    public void formatDistance(float distance, TextBuffer out) {
+        out.set(appendDistance(distance));
+    }
+
+    private StringBuilder appendDistance(float distance) {
+        if (preferences().isMetricSystem()) {
             if (distance >= 1000) {
                 distance /= 1000;
-                return String.format(Locale.getDefault(), metricDistanceFormat, (int) distance, kmUnit);
+                return format(metricDistanceFormat.setInteger(1, (int) distance)
+                        .setString(2, kmUnit));
             } else {
-                return String.format(Locale.getDefault(), metricDistanceFormat, (int) distance, meterUnit);
+                return format(metricDistanceFormat.setInteger(1, (int) distance)
+                        .setString(2, meterUnit));
             }
         } else { // imperial
-            return String.format(Locale.US, imperialDistanceFormat, metersToMiles(distance), mileUnit);
+            stringBuilder.setLength(0);
+            return imperialDistanceFormat.setDecimal(1, metersToMiles(distance))
+                    .setString(2, mileUnit)
+                    .appendTo(stringBuilder, Locale.US);
         }
     }
 
@@ -153,16 +176,27 @@ public class ValueFormatter {
      * @return formatted speed
      */
     public String formatSpeed(float speed) {
+        return appendSpeed(speed).toString();
+    }
+
+    /**
+     * Format speed into given buffer, see {@link #formatSpeed(float)}.
+     */
+    public void formatSpeed(float speed, TextBuffer out) {
+        out.set(appendSpeed(speed));
+    }
+
+    private StringBuilder appendSpeed(float speed) {
         int convertedSpeed;
         String unit;
-        if (metricSystem) {
+        if (preferences().isMetricSystem()) {
             convertedSpeed = (int) msToKmH(speed);
             unit = kmhUnit;
         } else {
             convertedSpeed = (int) msToMpH(speed);
             unit = mphUnit;
         }
-        return String.format(Locale.getDefault(), speedFormat, convertedSpeed, unit);
+        return format(speedFormat.setInteger(1, convertedSpeed).setString(2, unit));
     }
 
     /**
@@ -173,36 +207,57 @@ public class ValueFormatter {
      * @return formatted string
      */
     public String formatCoordinates(double latitude, double longitude) {
-        if (decimalCoordinates) {
-            return String.format(Locale.getDefault(), decimalCoordinatesFormat, latitude, longitude);
+        return appendCoordinates(latitude, longitude).toString();
+    }
+
+    /**
+     * Format coordinates into given buffer, see {@link #formatCoordinates(double, double)}.
+     */
+    public void formatCoordinates(double latitude, double longitude, TextBuffer out) {
+        out.set(appendCoordinates(latitude, longitude));
+    }
+
+    private StringBuilder appendCoordinates(double latitude, double longitude) {
+        if (preferences().isDecimalCoordinates()) {
+            return format(decimalCoordinatesFormat.setDecimal(1, latitude)
+                    .setDecimal(2, longitude));
         } else {
-            float[] degMinSecLat = decimalToDegrees(latitude);
-            float[] degMinSecLon = decimalToDegrees(longitude);
-            return String.format(Locale.getDefault(), dmsCoordinatesFormat,
-                    (int) degMinSecLat[0], (int) degMinSecLat[1], degMinSecLat[2],
-                    (int) degMinSecLon[0], (int) degMinSecLon[1], degMinSecLon[2]);
+            decimalToDegrees(latitude, degMinSec);
+            dmsCoordinatesFormat.setInteger(1, (int) degMinSec[0])
+                    .setInteger(2, (int) degMinSec[1])
+                    .setDecimal(3, degMinSec[2]);
+            decimalToDegrees(longitude, degMinSec);
+            dmsCoordinatesFormat.setInteger(4, (int) degMinSec[0])
+                    .setInteger(5, (int) degMinSec[1])
+                    .setDecimal(6, degMinSec[2]);
+            return format(dmsCoordinatesFormat);
         }
     }
 
+    /**
+     * Format template with its arguments set into {@link #stringBuilder}, in default locale.
+     */
+    private StringBuilder format(FormatTemplate template) {
+        stringBuilder.setLength(0);
+        return template.appendTo(stringBuilder, Locale.getDefault());
+    }
+
     /**
      * This function converts bearing in degrees to cardinal direction symbol, ie.: 0 degrees
-     * converts to "N"
+     * converts to "N". The direction is the one closest to the bearing, so eg. 350 degrees
+     * also converts to "N".
      * @param bearingDegrees bearing to convert, in degrees
      * @return cardinal direction symbol string
      */
     public String getCardinalDirection(float bearingDegrees) {
-        int directions = cardinalDirections.length;
-        int angleStep = 360 / directions;
-        int halfStep = angleStep / 2;
-
-        for(int i = 0; i < directions - 1; i++) {
-            int angle = i * angleStep;
-            if(bearingDegrees >= angle - halfStep
-                    && bearingDegrees < angle + halfStep) {
-                return cardinalDirections[i];
-            }
+        int directions = resources.getCardinalDirectionCount();
+        float angleStep = 360f / directions;
+        // index of the closest direction, wrapped to 0 : directions - 1
+        int index = (int) floor(bearingDegrees / angleStep + 0.5f) % directions;
+        if (index < 0) {
+            index += directions;
         }
-        return cardinalDirections[directions - 1];
+        return resources.getCardinalDirection(index);
     }
 
     /**
@@ -215,8 +270,18 @@ public class ValueFormatter {
      * @return formatted value
      */
     public String formatDegreeValue(int degreeValue) {
+        return appendDegreeValue(degreeValue).toString();
+    }
+
+    /**
+     * Format degree value into given buffer, see {@link #formatDegreeValue(int)}.
+     */
+    public void formatDegreeValue(int degreeValue, TextBuffer out) {
+        out.set(appendDegreeValue(degreeValue));
+    }
+
+    private StringBuilder appendDegreeValue(int degreeValue) {
         stringBuilder.setLength(0);
-        stringBuilder.append(degreeValue).append(DEGREE);
-        return stringBuilder.toString();
+        return stringBuilder.append(degreeValue).append(DEGREE);
     }
 }
@@ -0,0 +1,133 @@
+package com.maciekjanusz.compassproject;
+
+import com.maciekjanusz.compassproject.sensor.AdaptiveLowPassFilter;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks the time-constant based smoothing of {@link AdaptiveLowPassFilter}: the per-sample
+ * alpha, adaptation of the time constant to motion and handling of gaps and resets.
+ */
+public class AdaptiveLowPassFilterTest {
+
+    private static final double EPSILON = 1e-4;
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testFirstReadingTakenAsIs() throws Exception {
+        AdaptiveLowPassFilter filter = new AdaptiveLowPassFilter();
+        filter.filter(new float[]{1, 2, 3}, 5 * MS);
+        assertValues(filter, 1, 2, 3);
+    }
+
+    @Test
+    public void testAlphaFollowsTimeConstant() throws Exception {
+        // equal time constants - alpha only depends on dt
+        float tau = 0.2f;
+        AdaptiveLowPassFilter filter = new AdaptiveLowPassFilter(tau, tau);
+        filter.filter(new float[]{10, 0, 0}, 0);
+
+        float dt = 0.05f;
+        float alpha = tau / (tau + dt);
+        filter.filter(new float[]{20, 0, 0}, 50 * MS);
+        assertValues(filter, 10 + (1 - alpha) * 10, 0, 0);
+
+        // twice as long interval - smaller alpha
+        float value = filter.getValues()[0];
+        alpha = tau / (tau + 2 * dt);
+        filter.filter(new float[]{20, 0, 0}, 150 * MS);
+        assertValues(filter, value + (1 - alpha) * (20 - value), 0, 0);
+    }
+
+    @Test
+    public void testStillTimeConstant() throws Exception {
+        // deviation far below the motion threshold - same as filtering with the still
+        // time constant only
+        AdaptiveLowPassFilter reference = new AdaptiveLowPassFilter(0.3f, 0.3f);
+        AdaptiveLowPassFilter adaptive = new AdaptiveLowPassFilter(0.3f, 0.05f);
+        reference.filter(new float[]{10, 0, 0}, 0);
+        adaptive.filter(new float[]{10, 0, 0}, 0);
+        reference.filter(new float[]{10.001f, 0, 0}, 10 * MS);
+        adaptive.filter(new float[]{10.001f, 0, 0}, 10 * MS);
+        assertThat((double) adaptive.getValues()[0],
+                closeTo(reference.getValues()[0], 1e-6));
+    }
+
+    @Test
+    public void testMovingTimeConstant() throws Exception {
+        // deviation way above the motion threshold - the moving time constant applies
+        AdaptiveLowPassFilter filter = new AdaptiveLowPassFilter(0.3f, 0.05f);
+        filter.filter(new float[]{10, 0, 0}, 0);
+        filter.filter(new float[]{0, 10, 0}, 10 * MS);
+
+        float alpha = 0.05f / (0.05f + 0.01f);
+        assertValues(filter, 10 - (1 - alpha) * 10, (1 - alpha) * 10, 0);
+    }
+
+    @Test
+    public void testTimeConstantAdaptsToMotion() throws Exception {
+        // the larger the deviation, the faster the output follows it
+        float previousStep = 0;
+        for (float deviation : new float[]{0.1f, 0.5f, 1f, 1.5f}) {
+            AdaptiveLowPassFilter filter = new AdaptiveLowPassFilter();
+            filter.filter(new float[]{10, 0, 0}, 0);
+            filter.filter(new float[]{10 + deviation, 0, 0}, 10 * MS);
+            float step = (filter.getValues()[0] - 10) / deviation;
+            assertThat(step, greaterThan(previousStep));
+            previousStep = step;
+        }
+        // but never faster than the moving time constant allows
+        assertThat((double) previousStep, lessThan(0.01 / (0.05 + 0.01) + EPSILON));
+    }
+
+    @Test
+    public void testGapResetsFilter() throws Exception {
+        AdaptiveLowPassFilter filter = new AdaptiveLowPassFilter();
+        filter.filter(new float[]{10, 0, 0}, 0);
+        filter.filter(new float[]{0, 0, 5}, TimeUnit.SECONDS.toNanos(2));
+        assertValues(filter, 0, 0, 5);
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        AdaptiveLowPassFilter filter = new AdaptiveLowPassFilter();
+        filter.filter(new float[]{10, 0, 0}, 0);
+        filter.reset();
+        filter.filter(new float[]{0, 0, 5}, 10 * MS);
+        assertValues(filter, 0, 0, 5);
+    }
+
+    @Test
+    public void testNonIncreasingTimestamp() throws Exception {
+        AdaptiveLowPassFilter filter = new AdaptiveLowPassFilter();
+        filter.filter(new float[]{10, 0, 0}, 10 * MS);
+
+        // same or earlier timestamp must not snap the output to the raw reading
+        filter.filter(new float[]{0, 10, 0}, 10 * MS);
+        assertThat(filter.getValues()[0], greaterThan(9f));
+        filter.filter(new float[]{0, 10, 0}, 5 * MS);
+        assertThat(filter.getValues()[0], greaterThan(9f));
+
+        // and the clock is not moved backwards - 10 ms step from the latest timestamp
+        AdaptiveLowPassFilter reference = new AdaptiveLowPassFilter();
+        reference.filter(filter.getValues().clone(), 10 * MS);
+        reference.filter(new float[]{10, 0, 0}, 20 * MS);
+        filter.filter(new float[]{10, 0, 0}, 20 * MS);
+        assertThat(filter.getValues()[0], equalTo(reference.getValues()[0]));
+    }
+
+    private static void assertValues(AdaptiveLowPassFilter filter, float x, float y, float z) {
+        float[] values = filter.getValues();
+        assertThat((double) values[0], closeTo(x, EPSILON));
+        assertThat((double) values[1], closeTo(y, EPSILON));
+        assertThat((double) values[2], closeTo(z, EPSILON));
+    }
+}
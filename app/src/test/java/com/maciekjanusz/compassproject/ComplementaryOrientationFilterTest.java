@@ -0,0 +1,131 @@
+package com.maciekjanusz.compassproject;
+
+import com.maciekjanusz.compassproject.sensor.ComplementaryOrientationFilter;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Drives {@link ComplementaryOrientationFilter} with synthetic sensor streams, plain JVM.
+ */
+public class ComplementaryOrientationFilterTest {
+
+    private static final long GYRO_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long REFERENCE_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final double TOLERANCE = 1e-3;
+
+    @Test
+    public void testStaticReference() throws Exception {
+        ComplementaryOrientationFilter filter = new ComplementaryOrientationFilter();
+        float[] reference = rotationZ(0.7f);
+        float[] noRotation = new float[3];
+
+        long timestamp = 1;
+        for (int i = 0; i < 1000; i++) {
+            filter.integrate(noRotation, timestamp);
+            if (i % 4 == 0) {
+                filter.correct(reference, timestamp);
+            }
+            timestamp += GYRO_PERIOD_NANOS;
+        }
+
+        assertThat((double) angleZ(filter.getRotationMatrix()), closeTo(0.7, TOLERANCE));
+    }
+
+    @Test
+    public void testGyroIntegration() throws Exception {
+        ComplementaryOrientationFilter filter = new ComplementaryOrientationFilter();
+        filter.correct(rotationZ(0), 0);
+        // quarter turn around z in one second, no further corrections
+        float[] angularRate = {0, 0, (float) (Math.PI / 2)};
+
+        long timestamp = 0;
+        for (int i = 0; i <= 200; i++) {
+            filter.integrate(angularRate, timestamp);
+            timestamp += GYRO_PERIOD_NANOS;
+        }
+
+        assertThat((double) angleZ(filter.getRotationMatrix()), closeTo(Math.PI / 2, TOLERANCE));
+        assertOrthonormal(filter.getRotationMatrix());
+    }
+
+    @Test
+    public void testDriftCorrection() throws Exception {
+        float timeConstant = 0.5f;
+        float bias = 0.05f;
+        ComplementaryOrientationFilter filter = new ComplementaryOrientationFilter(timeConstant);
+        float[] reference = rotationZ(0);
+        // device is still, but gyroscope reports a constant bias around all axes
+        float[] angularRate = {bias, -bias, bias};
+
+        long timestamp = 1;
+        for (int i = 0; i < 2000; i++) {
+            filter.integrate(angularRate, timestamp);
+            if (timestamp % REFERENCE_PERIOD_NANOS < GYRO_PERIOD_NANOS) {
+                filter.correct(reference, timestamp);
+            }
+            timestamp += GYRO_PERIOD_NANOS;
+        }
+
+        // uncorrected, the error would be 0.5 rad around each axis by now;
+        // corrected, it settles at about bias * time constant
+        float[] rotation = filter.getRotationMatrix();
+        assertThat(Math.abs(angleZ(rotation)), lessThan(2 * bias * timeConstant));
+        assertThat(Math.abs(rotation[8] - 1f), lessThan(2 * bias * timeConstant));
+        assertOrthonormal(rotation);
+    }
+
+    @Test
+    public void testFastRotationFollowsGyro() throws Exception {
+        ComplementaryOrientationFilter filter = new ComplementaryOrientationFilter();
+        float rate = (float) Math.PI;
+        float[] angularRate = {0, 0, rate};
+
+        // reference lags the true orientation by 100 ms, as a smoothed accel + mag solve would
+        long lagNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        long timestamp = 1;
+        float trueAngle = 0;
+        for (int i = 0; i < 100; i++) {
+            filter.integrate(angularRate, timestamp);
+            if (i % 4 == 0) {
+                float lagged = trueAngle - rate * lagNanos / (float) TimeUnit.SECONDS.toNanos(1);
+                filter.correct(rotationZ(i == 0 ? 0 : lagged), timestamp);
+            }
+            timestamp += GYRO_PERIOD_NANOS;
+            trueAngle += rate * GYRO_PERIOD_NANOS / (float) TimeUnit.SECONDS.toNanos(1);
+        }
+
+        // the estimate stays much closer to the true angle than the lagging reference
+        float error = Math.abs(angleZ(filter.getRotationMatrix()) - (trueAngle - rate * 0.005f));
+        assertThat(error, lessThan(rate * 0.1f / 2));
+    }
+
+    private static float[] rotationZ(float angle) {
+        float c = (float) Math.cos(angle);
+        float s = (float) Math.sin(angle);
+        return new float[] {
+                c, -s, 0,
+                s, c, 0,
+                0, 0, 1
+        };
+    }
+
+    private static float angleZ(float[] rotation) {
+        return (float) Math.atan2(rotation[3], rotation[0]);
+    }
+
+    private static void assertOrthonormal(float[] m) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double dot = m[i * 3] * m[j * 3] + m[i * 3 + 1] * m[j * 3 + 1]
+                        + m[i * 3 + 2] * m[j * 3 + 2];
+                assertThat(dot, closeTo(i == j ? 1 : 0, TOLERANCE));
+            }
+        }
+    }
+}
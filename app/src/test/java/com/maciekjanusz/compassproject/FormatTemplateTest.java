@@ -0,0 +1,125 @@
+package com.maciekjanusz.compassproject;
+
+import com.maciekjanusz.compassproject.util.FormatTemplate;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static com.maciekjanusz.compassproject.util.CompassMath.decimalToDegrees;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that {@link FormatTemplate} formats exactly like {@link String#format}, for the format
+ * strings used by ValueFormatter, in locales with different decimal separators and digits.
+ */
+public class FormatTemplateTest {
+
+    // format strings as in strings.xml
+    private static final String DECIMAL_COORDINATES_FORMAT = "%1$.3f, %2$.3f";
+    private static final String DMS_COORDINATES_FORMAT =
+            "%1$d\u00B0 %2$d' %3$.3f\", %4$d\u00B0 %5$d' %6$.3f\"";
+    private static final String UNIT_FORMAT = "%1$d %2$s";
+    private static final String IMPERIAL_DISTANCE_FORMAT = "%1$.2f %2$s";
+
+    private static final Locale[] LOCALES = {Locale.US, new Locale("pl", "PL"), Locale.GERMANY,
+            new Locale("ar", "EG"), new Locale("fa", "IR")};
+
+    private final StringBuilder builder = new StringBuilder();
+
+    @Test
+    public void testDecimalCoordinates() throws Exception {
+        FormatTemplate template = new FormatTemplate(DECIMAL_COORDINATES_FORMAT);
+        Random random = new Random(1);
+        for (Locale locale : LOCALES) {
+            for (int i = 0; i < 10000; i++) {
+                double latitude = (random.nextDouble() - 0.5) * 180;
+                double longitude = (random.nextDouble() - 0.5) * 360;
+                template.setDecimal(1, latitude).setDecimal(2, longitude);
+                assertThat(format(template, locale), equalTo(String.format(locale,
+                        DECIMAL_COORDINATES_FORMAT, latitude, longitude)));
+            }
+        }
+    }
+
+    @Test
+    public void testDmsCoordinates() throws Exception {
+        FormatTemplate template = new FormatTemplate(DMS_COORDINATES_FORMAT);
+        float[] degMinSec = new float[3];
+        Random random = new Random(2);
+        for (Locale locale : LOCALES) {
+            for (int i = 0; i < 10000; i++) {
+                double latitude = (random.nextDouble() - 0.5) * 180;
+                double longitude = (random.nextDouble() - 0.5) * 360;
+                float[] lat = decimalToDegrees(latitude);
+                float[] lon = decimalToDegrees(longitude);
+
+                decimalToDegrees(latitude, degMinSec);
+                assertThat(degMinSec, equalTo(lat));
+                template.setInteger(1, (int) degMinSec[0]).setInteger(2, (int) degMinSec[1])
+                        .setDecimal(3, degMinSec[2]);
+                decimalToDegrees(longitude, degMinSec);
+                assertThat(degMinSec, equalTo(lon));
+                template.setInteger(4, (int) degMinSec[0]).setInteger(5, (int) degMinSec[1])
+                        .setDecimal(6, degMinSec[2]);
+
+                assertThat(format(template, locale), equalTo(String.format(locale,
+                        DMS_COORDINATES_FORMAT, (int) lat[0], (int) lat[1], lat[2],
+                        (int) lon[0], (int) lon[1], lon[2])));
+            }
+        }
+    }
+
+    @Test
+    public void testUnits() throws Exception {
+        FormatTemplate template = new FormatTemplate(UNIT_FORMAT);
+        FormatTemplate imperial = new FormatTemplate(IMPERIAL_DISTANCE_FORMAT);
+        Random random = new Random(3);
+        for (Locale locale : LOCALES) {
+            for (int i = 0; i < 1000; i++) {
+                int value = random.nextInt(20000) - 100;
+                template.setInteger(1, value).setString(2, "km/h");
+                assertThat(format(template, locale),
+                        equalTo(String.format(locale, UNIT_FORMAT, value, "km/h")));
+
+                float miles = random.nextFloat() * 1000;
+                imperial.setDecimal(1, miles).setString(2, "mi");
+                assertThat(format(imperial, locale),
+                        equalTo(String.format(locale, IMPERIAL_DISTANCE_FORMAT, miles, "mi")));
+            }
+        }
+    }
+
+    @Test
+    public void testRounding() throws Exception {
+        FormatTemplate template = new FormatTemplate("%.3f|%.2f|%.0f|%f");
+        double[] values = {0, -0.0, 1.0005, 0.0005, -0.0001, 0.125, 2.5, 0.9999, 59.9995,
+                -179.9995, 1e-9, 123456.7890125};
+        for (double value : values) {
+            template.setDecimal(1, value).setDecimal(2, value).setDecimal(3, value)
+                    .setDecimal(4, value);
+            assertThat(format(template, Locale.US), equalTo(String.format(Locale.US,
+                    "%.3f|%.2f|%.0f|%f", value, value, value, value)));
+        }
+    }
+
+    @Test
+    public void testLiteralsAndSequentialArguments() throws Exception {
+        FormatTemplate template = new FormatTemplate("%% %s: %d%%, %.1f");
+        template.setString(1, "load").setInteger(2, 42).setDecimal(3, 0.25);
+        assertThat(format(template, Locale.US),
+                equalTo(String.format(Locale.US, "%% %s: %d%%, %.1f", "load", 42, 0.25)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedSpecifier() throws Exception {
+        new FormatTemplate("%5d");
+    }
+
+    private String format(FormatTemplate template, Locale locale) {
+        builder.setLength(0);
+        return template.appendTo(builder, locale).toString();
+    }
+}
@@ -0,0 +1,166 @@
+package com.maciekjanusz.compassproject;
+
+import com.maciekjanusz.compassproject.sensor.HeadingQualityMonitor;
+import com.maciekjanusz.compassproject.sensor.HeadingQualityMonitor.Confidence;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Feeds {@link HeadingQualityMonitor} with synthetic magnetometer readings of a device lying
+ * flat, undisturbed and near sources of interference.
+ */
+public class HeadingQualityMonitorTest {
+
+    // device lying flat, screen up: world up axis is device z axis
+    private static final float[] FLAT = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+    private HeadingQualityMonitor monitor;
+    private final List<Confidence> changes = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        monitor = new HeadingQualityMonitor();
+        monitor.onRotationMatrix(FLAT);
+        monitor.setOnConfidenceChangedListener(
+                new HeadingQualityMonitor.OnConfidenceChangedListener() {
+                    @Override
+                    public void onHeadingConfidenceChanged(Confidence confidence) {
+                        changes.add(confidence);
+                    }
+                });
+    }
+
+    @Test
+    public void testUndisturbedField() throws Exception {
+        // 48 uT field, 60 degrees below the horizon
+        float[] field = {0, 24f, -41.57f};
+        for (int i = 0; i < 200; i++) {
+            monitor.onMagneticField(field);
+        }
+
+        assertThat(monitor.getConfidence(), equalTo(Confidence.HIGH));
+        assertThat((double) monitor.getFieldMagnitude(), closeTo(48, 0.01));
+        assertThat((double) monitor.getInclination(), closeTo(60, 0.01));
+        assertThat(changes.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testFluctuatingMagnitude() throws Exception {
+        float[] field = new float[3];
+        for (int i = 0; i < 200; i++) {
+            // magnitude swings by 10 uT around 45 uT, as next to a speaker
+            float scale = 45f + (i % 2 == 0 ? 10f : -10f);
+            field[1] = scale * 0.5f;
+            field[2] = -scale * 0.866f;
+            monitor.onMagneticField(field);
+        }
+
+        assertThat(monitor.getConfidence(), equalTo(Confidence.LOW));
+        assertThat(changes.size(), equalTo(1));
+    }
+
+    @Test
+    public void testFluctuatingInclination() throws Exception {
+        float[] field = new float[3];
+        for (int i = 0; i < 200; i++) {
+            // constant magnitude, inclination swings between 50 and 70 degrees
+            double inclination = Math.toRadians(i % 2 == 0 ? 50 : 70);
+            field[1] = (float) (48 * Math.cos(inclination));
+            field[2] = (float) (-48 * Math.sin(inclination));
+            monitor.onMagneticField(field);
+        }
+
+        assertThat(monitor.getConfidence(), equalTo(Confidence.LOW));
+    }
+
+    @Test
+    public void testStrongField() throws Exception {
+        // magnet right next to the device
+        float[] field = {150f, 20f, -90f};
+        for (int i = 0; i < 200; i++) {
+            monitor.onMagneticField(field);
+        }
+
+        assertThat(monitor.getConfidence(), equalTo(Confidence.UNRELIABLE));
+    }
+
+    @Test
+    public void testReportedAccuracy() throws Exception {
+        monitor.onAccuracyChanged(1); // SENSOR_STATUS_ACCURACY_LOW
+        assertThat(monitor.getConfidence(), equalTo(Confidence.LOW));
+
+        monitor.onAccuracyChanged(3); // SENSOR_STATUS_ACCURACY_HIGH
+        assertThat(monitor.getConfidence(), equalTo(Confidence.HIGH));
+        assertThat(changes.size(), equalTo(2));
+    }
+
+    @Test
+    public void testRecoveryAfterInterference() throws Exception {
+        float[] disturbed = {0, 60f, -120f};
+        float[] undisturbed = {0, 24f, -41.57f};
+        for (int i = 0; i < 100; i++) {
+            monitor.onMagneticField(disturbed);
+        }
+        assertThat(monitor.getConfidence(), equalTo(Confidence.LOW));
+
+        // sliding window forgets the interference once it is full of undisturbed readings
+        for (int i = 0; i < 100; i++) {
+            monitor.onMagneticField(undisturbed);
+        }
+        assertThat(monitor.getConfidence(), equalTo(Confidence.HIGH));
+    }
+
+    @Test
+    public void testHysteresis() throws Exception {
+        // magnitude deviation well above the LOW threshold
+        feedFluctuatingMagnitude(6f);
+        assertThat(monitor.getConfidence(), equalTo(Confidence.LOW));
+
+        // just below the threshold - not enough to raise the confidence
+        feedFluctuatingMagnitude(4.5f);
+        assertThat(monitor.getConfidence(), equalTo(Confidence.LOW));
+        feedFluctuatingMagnitude(5.5f);
+        feedFluctuatingMagnitude(4.5f);
+        assertThat(changes, equalTo(Arrays.asList(Confidence.LOW)));
+
+        // clear of the threshold
+        feedFluctuatingMagnitude(3f);
+        assertThat(monitor.getConfidence(), equalTo(Confidence.MEDIUM));
+        assertThat(changes, equalTo(Arrays.asList(Confidence.LOW, Confidence.MEDIUM)));
+    }
+
+    @Test
+    public void testResetNotifiesListener() throws Exception {
+        monitor.onAccuracyChanged(1); // SENSOR_STATUS_ACCURACY_LOW
+        monitor.reset();
+
+        assertThat(monitor.getConfidence(), equalTo(Confidence.HIGH));
+        assertThat(changes, equalTo(Arrays.asList(Confidence.LOW, Confidence.HIGH)));
+
+        // nothing changes, nothing is reported
+        monitor.reset();
+        assertThat(changes.size(), equalTo(2));
+    }
+
+    /**
+     * Fill the window with readings of magnitude swinging by the deviation around 45 uT.
+     */
+    private void feedFluctuatingMagnitude(float deviation) {
+        float[] field = new float[3];
+        for (int i = 0; i < 200; i++) {
+            float scale = 45f + (i % 2 == 0 ? deviation : -deviation);
+            field[1] = scale * 0.5f;
+            field[2] = -scale * 0.866f;
+            monitor.onMagneticField(field);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.maciekjanusz.compassproject;
+
+import com.maciekjanusz.compassproject.sensor.HeadingSmoother;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks the circular mean and variance of {@link HeadingSmoother}, especially around
+ * the wrap at north.
+ */
+public class HeadingSmootherTest {
+
+    private static final double TOLERANCE = 1e-3;
+
+    @Test
+    public void testWrapAtNorth() throws Exception {
+        HeadingSmoother smoother = new HeadingSmoother(4);
+        smoother.add(359);
+        float mean = smoother.add(1);
+
+        // scalar average would be 180
+        assertThat(angleDifference(mean, 0), closeTo(0, TOLERANCE));
+        assertThat((double) smoother.getCircularVariance(), closeTo(0, TOLERANCE));
+    }
+
+    @Test
+    public void testSlidingWindow() throws Exception {
+        HeadingSmoother smoother = new HeadingSmoother(3);
+        smoother.add(10);
+        smoother.add(20);
+        smoother.add(30);
+        assertThat((double) smoother.getMeanHeading(), closeTo(20, TOLERANCE));
+
+        // 10 drops out of the window
+        smoother.add(40);
+        assertThat((double) smoother.getMeanHeading(), closeTo(30, TOLERANCE));
+        assertThat(smoother.getCount(), equalTo(3));
+    }
+
+    @Test
+    public void testCircularVariance() throws Exception {
+        HeadingSmoother smoother = new HeadingSmoother(4);
+        for (int i = 0; i < 4; i++) {
+            smoother.add(i * 90);
+        }
+        // evenly spread around the circle
+        assertThat((double) smoother.getCircularVariance(), closeTo(1, TOLERANCE));
+
+        smoother.reset();
+        smoother.add(0);
+        smoother.add(180);
+        assertThat((double) smoother.getCircularVariance(), closeTo(1, TOLERANCE));
+        smoother.add(90);
+        assertThat((double) smoother.getMeanHeading(), closeTo(90, TOLERANCE));
+    }
+
+    @Test
+    public void testNoisyHeadingAroundNorth() throws Exception {
+        HeadingSmoother smoother = new HeadingSmoother(32);
+        Random random = new Random(7);
+        float mean = 0;
+        // long run, so that the running sums wrap and get resynchronized many times
+        for (int i = 0; i < 10000; i++) {
+            float noise = (float) random.nextGaussian() * 5;
+            mean = smoother.add((noise + 360f) % 360f);
+        }
+        assertThat(angleDifference(mean, 0), lessThan(5.0));
+        assertThat((double) smoother.getCircularVariance(), lessThan(0.02));
+    }
+
+    private static double angleDifference(float a, float b) {
+        double difference = Math.abs(a - b) % 360;
+        return difference > 180 ? 360 - difference : difference;
+    }
+}
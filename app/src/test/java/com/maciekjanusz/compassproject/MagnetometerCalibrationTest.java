@@ -0,0 +1,106 @@
+package com.maciekjanusz.compassproject;
+
+import com.maciekjanusz.compassproject.sensor.MagnetometerCalibration;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Feeds {@link MagnetometerCalibration} with synthetic readings of a rotating device, distorted
+ * by known hard & soft iron, and checks that the calibrated readings are back on a sphere.
+ */
+public class MagnetometerCalibrationTest {
+
+    private static final float FIELD_STRENGTH = 48f;
+    private static final float[] HARD_IRON = {12f, -30f, 7f};
+    private static final float[] SOFT_IRON = {
+            1.2f, 0.1f, -0.05f,
+            0.1f, 0.85f, 0.08f,
+            -0.05f, 0.08f, 1.05f
+    };
+
+    @Test
+    public void testUncalibratedPassThrough() throws Exception {
+        MagnetometerCalibration calibration = new MagnetometerCalibration();
+        float[] raw = {10, 20, 30};
+        float[] out = new float[3];
+        calibration.apply(raw, out);
+
+        assertThat(calibration.isCalibrated(), equalTo(false));
+        assertThat(out[0], equalTo(10f));
+        assertThat(out[1], equalTo(20f));
+        assertThat(out[2], equalTo(30f));
+    }
+
+    @Test
+    public void testHardAndSoftIronFit() throws Exception {
+        MagnetometerCalibration calibration = new MagnetometerCalibration();
+        Random random = new Random(7);
+        float[] raw = new float[3];
+        float[] direction = new float[3];
+
+        for (int i = 0; i < 3000; i++) {
+            randomDirection(random, direction);
+            distort(direction, raw);
+            calibration.addSample(raw);
+        }
+        assertThat(calibration.isCalibrated(), equalTo(true));
+
+        float[] offset = new float[3];
+        calibration.getCalibration(offset, new float[9]);
+        for (int i = 0; i < 3; i++) {
+            assertThat((double) offset[i], closeTo(HARD_IRON[i], 0.1));
+        }
+
+        // calibrated readings have constant magnitude and keep their relative directions
+        float[] out = new float[3];
+        float[] reference = new float[3];
+        randomDirection(random, direction);
+        distort(direction, raw);
+        calibration.apply(raw, reference);
+        float referenceMagnitude = magnitude(reference);
+        float[] referenceDirection = direction.clone();
+
+        for (int i = 0; i < 100; i++) {
+            randomDirection(random, direction);
+            distort(direction, raw);
+            calibration.apply(raw, out);
+            assertThat((double) magnitude(out), closeTo(referenceMagnitude, 0.01 * referenceMagnitude));
+
+            // angle between calibrated readings equals the angle between true directions
+            double expected = Math.acos(dot(direction, referenceDirection));
+            double actual = Math.acos(dot(out, reference) / (magnitude(out) * referenceMagnitude));
+            assertThat(Math.abs(actual - expected), lessThan(Math.toRadians(1)));
+        }
+    }
+
+    private static void randomDirection(Random random, float[] out) {
+        double z = random.nextDouble() * 2 - 1;
+        double phi = random.nextDouble() * 2 * Math.PI;
+        double r = Math.sqrt(1 - z * z);
+        out[0] = (float) (r * Math.cos(phi));
+        out[1] = (float) (r * Math.sin(phi));
+        out[2] = (float) z;
+    }
+
+    private static void distort(float[] direction, float[] out) {
+        for (int i = 0; i < 3; i++) {
+            out[i] = HARD_IRON[i] + FIELD_STRENGTH * (SOFT_IRON[i * 3] * direction[0]
+                    + SOFT_IRON[i * 3 + 1] * direction[1] + SOFT_IRON[i * 3 + 2] * direction[2]);
+        }
+    }
+
+    private static float dot(float[] a, float[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static float magnitude(float[] v) {
+        return (float) Math.sqrt(dot(v, v));
+    }
+}
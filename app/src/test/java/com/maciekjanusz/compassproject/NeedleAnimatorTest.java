@@ -0,0 +1,98 @@
+package com.maciekjanusz.compassproject;
+
+import com.maciekjanusz.compassproject.ui.NeedleAnimator;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that {@link NeedleAnimator} follows the shorter arc without overshoot, does not depend
+ * on frame rate, and keeps up with a steadily rotating target.
+ */
+public class NeedleAnimatorTest {
+
+    private static final double TOLERANCE = 1e-2;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testNoOvershoot() throws Exception {
+        NeedleAnimator animator = new NeedleAnimator(12f, 0);
+        animator.setTarget(0, 0);
+        animator.setTarget(90, SECOND);
+
+        float previous = 0;
+        for (long time = SECOND; time <= 3 * SECOND; time += SECOND / 60) {
+            float bearing = animator.update(time);
+            assertThat(bearing, lessThanOrEqualTo(90f));
+            assertThat(previous, lessThanOrEqualTo(bearing));
+            previous = bearing;
+        }
+        assertThat(animator.isSettled(), is(true));
+        assertThat((double) animator.getBearing(), closeTo(90, TOLERANCE));
+    }
+
+    @Test
+    public void testWrapAtNorth() throws Exception {
+        NeedleAnimator animator = new NeedleAnimator(12f, 0);
+        animator.setTarget(350, 0);
+        animator.setTarget(10, SECOND);
+
+        for (long time = SECOND; time <= 3 * SECOND; time += SECOND / 60) {
+            float bearing = animator.update(time);
+            // never goes the long way round, through south
+            assertThat(bearing >= 350 || bearing <= 10, is(true));
+        }
+        assertThat((double) animator.getBearing(), closeTo(10, TOLERANCE));
+    }
+
+    @Test
+    public void testFrameRateIndependence() throws Exception {
+        NeedleAnimator slow = new NeedleAnimator(12f, 0);
+        NeedleAnimator fast = new NeedleAnimator(12f, 0);
+        slow.setTarget(0, 0);
+        fast.setTarget(0, 0);
+        slow.setTarget(120, SECOND);
+        fast.setTarget(120, SECOND);
+
+        // 30 and 120 frames per second, compared at common frame times
+        long end = SECOND + SECOND / 5;
+        for (long time = SECOND; time <= end; time += SECOND / 120) {
+            fast.update(time);
+            if ((time - SECOND) % (SECOND / 30) == 0) {
+                slow.update(time);
+                assertThat((double) slow.getBearing(), closeTo(fast.getBearing(), TOLERANCE));
+            }
+        }
+    }
+
+    @Test
+    public void testPrediction() throws Exception {
+        long prediction = TimeUnit.MILLISECONDS.toNanos(40);
+        NeedleAnimator animator = new NeedleAnimator(12f, prediction);
+        float degreesPerSecond = 90;
+
+        // targets every 20 ms, frames every ~16.7 ms, for two seconds
+        long nextTarget = 0;
+        float bearing = 0;
+        long frame = 0;
+        for (; frame <= 2 * SECOND; frame += SECOND / 60) {
+            while (nextTarget <= frame) {
+                animator.setTarget(degreesPerSecond * nextTarget / SECOND, nextTarget);
+                nextTarget += TimeUnit.MILLISECONDS.toNanos(20);
+            }
+            bearing = animator.update(frame);
+        }
+        frame -= SECOND / 60;
+
+        // the dial shows where the target will be after the prediction time, not where it was
+        double expected = (degreesPerSecond * (frame + prediction) / SECOND) % 360;
+        assertThat((double) animator.getTargetVelocity(), closeTo(degreesPerSecond, 0.5));
+        assertThat((double) bearing, closeTo(expected, 0.5));
+    }
+}
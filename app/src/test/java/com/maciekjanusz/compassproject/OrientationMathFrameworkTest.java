@@ -0,0 +1,155 @@
+package com.maciekjanusz.compassproject;
+
+import android.hardware.SensorManager;
+import android.view.Surface;
+
+import com.maciekjanusz.compassproject.sensor.OrientationMath;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Compares {@link OrientationMath} with the framework {@link SensorManager} functions it
+ * replaces, on random gravity and geomagnetic readings, for every display rotation.
+ */
+@Config(constants = BuildConfig.class, sdk = 21,
+        manifest = "app/src/main/AndroidManifest.xml")
+@RunWith(RobolectricGradleTestRunner.class)
+public class OrientationMathFrameworkTest {
+
+    private static final double TOLERANCE = 1e-4;
+    private static final int ITERATIONS = 1000;
+
+    /**
+     * Device x and y axes in screen coordinates for every Surface.ROTATION_*, as used by
+     * {@link com.maciekjanusz.compassproject.sensor.Compass}
+     */
+    private static final int[][] REMAP_AXES = new int[4][];
+
+    static {
+        REMAP_AXES[Surface.ROTATION_0] = new int[] {SensorManager.AXIS_X, SensorManager.AXIS_Y};
+        REMAP_AXES[Surface.ROTATION_90] =
+                new int[] {SensorManager.AXIS_Y, SensorManager.AXIS_MINUS_X};
+        REMAP_AXES[Surface.ROTATION_180] =
+                new int[] {SensorManager.AXIS_MINUS_X, SensorManager.AXIS_MINUS_Y};
+        REMAP_AXES[Surface.ROTATION_270] =
+                new int[] {SensorManager.AXIS_MINUS_Y, SensorManager.AXIS_X};
+    }
+
+    @Test
+    public void testAxisConstants() throws Exception {
+        assertThat(OrientationMath.AXIS_X, equalTo(SensorManager.AXIS_X));
+        assertThat(OrientationMath.AXIS_Y, equalTo(SensorManager.AXIS_Y));
+        assertThat(OrientationMath.AXIS_Z, equalTo(SensorManager.AXIS_Z));
+        assertThat(OrientationMath.AXIS_MINUS_X, equalTo(SensorManager.AXIS_MINUS_X));
+        assertThat(OrientationMath.AXIS_MINUS_Y, equalTo(SensorManager.AXIS_MINUS_Y));
+        assertThat(OrientationMath.AXIS_MINUS_Z, equalTo(SensorManager.AXIS_MINUS_Z));
+    }
+
+    @Test
+    public void testRandomReadings() throws Exception {
+        Random random = new Random(42);
+        float[] expectedR = new float[9], expectedI = new float[9];
+        float[] actualR = new float[9], actualI = new float[9];
+
+        for (int n = 0; n < ITERATIONS; n++) {
+            float[] gravity = randomVector(random, 2f, 20f);
+            float[] geomagnetic = randomVector(random, 20f, 70f);
+
+            boolean expected = SensorManager.getRotationMatrix(expectedR, expectedI,
+                    gravity, geomagnetic);
+            boolean actual = OrientationMath.getRotationMatrix(actualR, actualI,
+                    gravity, geomagnetic);
+            assertThat(actual, equalTo(expected));
+            if (!expected) {
+                continue;
+            }
+            assertMatrix(actualR, expectedR);
+            assertMatrix(actualI, expectedI);
+            assertThat((double) OrientationMath.getInclination(actualI),
+                    closeTo(SensorManager.getInclination(expectedI), TOLERANCE));
+
+            for (int rotation : new int[] {Surface.ROTATION_0, Surface.ROTATION_90,
+                    Surface.ROTATION_180, Surface.ROTATION_270}) {
+                assertRemapped(expectedR, REMAP_AXES[rotation][0], REMAP_AXES[rotation][1]);
+            }
+        }
+    }
+
+    @Test
+    public void testRandomRotationVectors() throws Exception {
+        Random random = new Random(7);
+        float[] expected = new float[9];
+        float[] actual = new float[9];
+
+        for (int n = 0; n < ITERATIONS; n++) {
+            float[] axis = randomVector(random, 0.1f, 1f);
+            double angle = (random.nextFloat() * 2 - 1) * Math.PI;
+            double norm = Math.sqrt(axis[0] * axis[0] + axis[1] * axis[1] + axis[2] * axis[2]);
+            double s = Math.sin(angle / 2) / norm;
+            // rotation vector without the scalar component, derived by both
+            float[] rotationVector = {(float) (axis[0] * s), (float) (axis[1] * s),
+                    (float) (axis[2] * s)};
+
+            SensorManager.getRotationMatrixFromVector(expected, rotationVector);
+            OrientationMath.getRotationMatrixFromVector(actual, rotationVector);
+            assertMatrix(actual, expected);
+        }
+    }
+
+    /**
+     * Remaps the matrix with both implementations and compares results and orientation angles.
+     */
+    private static void assertRemapped(float[] r, int x, int y) {
+        float[] expected = new float[9];
+        float[] actual = new float[9];
+        assertThat(OrientationMath.remapCoordinateSystem(r, x, y, actual),
+                equalTo(SensorManager.remapCoordinateSystem(r, x, y, expected)));
+        assertMatrix(actual, expected);
+
+        float[] expectedOrientation = SensorManager.getOrientation(expected, new float[3]);
+        float[] actualOrientation = OrientationMath.getOrientation(actual, new float[3]);
+        assertThat((double) actualOrientation[1], closeTo(expectedOrientation[1], TOLERANCE));
+        // azimuth and roll are undefined when the screen is vertical
+        if (Math.abs(expected[7]) < 0.999f) {
+            assertAngle(actualOrientation[0], expectedOrientation[0]);
+            assertAngle(actualOrientation[2], expectedOrientation[2]);
+        }
+    }
+
+    private static float[] randomVector(Random random, float minLength, float maxLength) {
+        float[] v = new float[3];
+        double length;
+        do {
+            v[0] = random.nextFloat() * 2 - 1;
+            v[1] = random.nextFloat() * 2 - 1;
+            v[2] = random.nextFloat() * 2 - 1;
+            length = Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        } while (length < 0.01 || length > 1);
+        double scale = (minLength + random.nextFloat() * (maxLength - minLength)) / length;
+        for (int i = 0; i < 3; i++) {
+            v[i] *= scale;
+        }
+        return v;
+    }
+
+    private static void assertAngle(float actual, float expected) {
+        // -PI and PI are the same angle
+        double difference = Math.IEEEremainder(actual - expected, 2 * Math.PI);
+        assertThat(difference, closeTo(0, TOLERANCE));
+    }
+
+    private static void assertMatrix(float[] actual, float[] expected) {
+        for (int i = 0; i < 9; i++) {
+            assertThat((double) actual[i], closeTo(expected[i], TOLERANCE));
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.maciekjanusz.compassproject;
+
+import com.maciekjanusz.compassproject.sensor.OrientationMath;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verifies {@link OrientationMath} against the conventions of the framework
+ * {@link android.hardware.SensorManager} functions, using synthetic sensor readings
+ * of known device orientations.
+ */
+public class OrientationMathTest {
+
+    private static final double TOLERANCE = 1e-4;
+    private static final float GRAVITY = 9.81f;
+    private static final float FIELD_STRENGTH = 48f;
+    private static final double DIP = Math.toRadians(66);
+
+    @Test
+    public void testFlatFacingNorth() throws Exception {
+        float[] identity = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        float[] r = solve(identity);
+        assertMatrix(r, identity);
+
+        float[] orientation = OrientationMath.getOrientation(r, new float[3]);
+        assertThat((double) orientation[0], closeTo(0, TOLERANCE));
+        assertThat((double) orientation[1], closeTo(0, TOLERANCE));
+        assertThat((double) orientation[2], closeTo(0, TOLERANCE));
+    }
+
+    @Test
+    public void testFlatFacingEast() throws Exception {
+        // device y axis points east, x axis points south
+        float[] facingEast = {0, 1, 0, -1, 0, 0, 0, 0, 1};
+        float[] orientation = OrientationMath.getOrientation(solve(facingEast), new float[3]);
+        assertThat((double) orientation[0], closeTo(Math.PI / 2, TOLERANCE));
+        assertThat((double) orientation[1], closeTo(0, TOLERANCE));
+        assertThat((double) orientation[2], closeTo(0, TOLERANCE));
+    }
+
+    @Test
+    public void testUprightFacingNorth() throws Exception {
+        // device y axis points up, screen faces south
+        float[] upright = {1, 0, 0, 0, 0, -1, 0, 1, 0};
+        float[] orientation = OrientationMath.getOrientation(solve(upright), new float[3]);
+        assertThat((double) orientation[0], closeTo(0, TOLERANCE));
+        assertThat((double) orientation[1], closeTo(-Math.PI / 2, TOLERANCE));
+        assertThat((double) orientation[2], closeTo(0, TOLERANCE));
+    }
+
+    @Test
+    public void testRandomOrientations() throws Exception {
+        Random random = new Random(42);
+        for (int n = 0; n < 1000; n++) {
+            float[] expected = new float[9];
+            float[] axis = {random.nextFloat() - 0.5f, random.nextFloat() - 0.5f,
+                    random.nextFloat() - 0.5f};
+            float angle = (float) ((random.nextFloat() * 2 - 1) * Math.PI);
+            quaternionToMatrix(axis, angle, expected);
+
+            float[] r = solve(expected);
+            assertMatrix(r, expected);
+        }
+    }
+
+    @Test
+    public void testInclination() throws Exception {
+        float[] identity = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        float[] gravity = new float[3];
+        float[] geomagnetic = new float[3];
+        toDevice(identity, gravity, geomagnetic);
+        float[] i = new float[9];
+
+        OrientationMath.getRotationMatrix(null, i, gravity, geomagnetic);
+        // field points below the horizon, gravity reading points up
+        assertThat((double) OrientationMath.getInclination(i), closeTo(-DIP, TOLERANCE));
+    }
+
+    @Test
+    public void testNoSolution() throws Exception {
+        float[] r = new float[9];
+        // free fall
+        assertThat(OrientationMath.getRotationMatrix(r, null,
+                new float[] {0, 0, 0.5f}, new float[] {0, 20, -40}), equalTo(false));
+        // field parallel to gravity
+        assertThat(OrientationMath.getRotationMatrix(r, null,
+                new float[] {0, 0, GRAVITY}, new float[] {0, 0, -FIELD_STRENGTH}), equalTo(false));
+    }
+
+    @Test
+    public void testRotationMatrixFromVector() throws Exception {
+        float angle = 0.8f;
+        float s = (float) Math.sin(angle / 2);
+        float c = (float) Math.cos(angle / 2);
+        float[] expected = {
+                (float) Math.cos(angle), (float) -Math.sin(angle), 0,
+                (float) Math.sin(angle), (float) Math.cos(angle), 0,
+                0, 0, 1
+        };
+        float[] r = new float[9];
+
+        // 4 values, 3 values (derived scalar) and 5 values (with accuracy estimate)
+        OrientationMath.getRotationMatrixFromVector(r, new float[] {0, 0, s, c});
+        assertMatrix(r, expected);
+        OrientationMath.getRotationMatrixFromVector(r, new float[] {0, 0, s});
+        assertMatrix(r, expected);
+        OrientationMath.getRotationMatrixFromVector(r, new float[] {0, 0, s, c, 0.1f});
+        assertMatrix(r, expected);
+    }
+
+    @Test
+    public void testRemapLandscape() throws Exception {
+        // device flat, top pointing north; in landscape the screen top is on the device side
+        float[] identity = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        float[] remapped = new float[9];
+        float[] orientation = new float[3];
+
+        // ROTATION_90: device x axis is screen up
+        OrientationMath.remapCoordinateSystem(identity, OrientationMath.AXIS_Y,
+                OrientationMath.AXIS_MINUS_X, remapped);
+        OrientationMath.getOrientation(remapped, orientation);
+        assertThat(Math.toDegrees(orientation[0]), closeTo(90, TOLERANCE));
+
+        // ROTATION_270: device -x axis is screen up
+        OrientationMath.remapCoordinateSystem(identity, OrientationMath.AXIS_MINUS_Y,
+                OrientationMath.AXIS_X, remapped);
+        OrientationMath.getOrientation(remapped, orientation);
+        assertThat(Math.toDegrees(orientation[0]), closeTo(-90, TOLERANCE));
+    }
+
+    @Test
+    public void testRemapTiltedLandscape() throws Exception {
+        // screen top pointing north-east, screen tilted 30 degrees about its vertical axis
+        float[] screenToWorld = new float[9];
+        float[] rotation = new float[9];
+        float[] tilt = new float[9];
+        quaternionToMatrix(new float[] {0, 0, 1}, (float) Math.toRadians(-45), rotation);
+        quaternionToMatrix(new float[] {0, 1, 0}, (float) Math.toRadians(30), tilt);
+        multiply(rotation, tilt, screenToWorld);
+
+        // device held in ROTATION_90: device x = screen y, device y = -screen x
+        float[] deviceToWorld = new float[9];
+        for (int row = 0; row < 3; row++) {
+            deviceToWorld[row * 3] = screenToWorld[row * 3 + 1];
+            deviceToWorld[row * 3 + 1] = -screenToWorld[row * 3];
+            deviceToWorld[row * 3 + 2] = screenToWorld[row * 3 + 2];
+        }
+
+        float[] remapped = new float[9];
+        assertThat(OrientationMath.remapCoordinateSystem(deviceToWorld, OrientationMath.AXIS_Y,
+                OrientationMath.AXIS_MINUS_X, remapped), equalTo(true));
+        assertMatrix(remapped, screenToWorld);
+
+        float[] orientation = OrientationMath.getOrientation(remapped, new float[3]);
+        assertThat(Math.toDegrees(orientation[0]), closeTo(45, TOLERANCE));
+    }
+
+    @Test
+    public void testRemapInvalidAxes() throws Exception {
+        float[] identity = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        float[] remapped = new float[9];
+        assertThat(OrientationMath.remapCoordinateSystem(identity, OrientationMath.AXIS_X,
+                OrientationMath.AXIS_MINUS_X, remapped), equalTo(false));
+        assertThat(OrientationMath.remapCoordinateSystem(identity, 0,
+                OrientationMath.AXIS_Y, remapped), equalTo(false));
+    }
+
+    /**
+     * Synthesizes sensor readings for the device orientation and solves it back.
+     */
+    private static float[] solve(float[] deviceToWorld) {
+        float[] gravity = new float[3];
+        float[] geomagnetic = new float[3];
+        toDevice(deviceToWorld, gravity, geomagnetic);
+        float[] r = new float[9];
+        assertThat(OrientationMath.getRotationMatrix(r, new float[9], gravity, geomagnetic),
+                equalTo(true));
+        return r;
+    }
+
+    /**
+     * Transforms world gravity reaction (up) and geomagnetic field (north, dipping down)
+     * vectors to device coordinates: v_device = R^T * v_world.
+     */
+    private static void toDevice(float[] r, float[] gravity, float[] geomagnetic) {
+        float north = (float) (FIELD_STRENGTH * Math.cos(DIP));
+        float up = (float) (-FIELD_STRENGTH * Math.sin(DIP));
+        for (int i = 0; i < 3; i++) {
+            gravity[i] = r[6 + i] * GRAVITY;
+            geomagnetic[i] = r[3 + i] * north + r[6 + i] * up;
+        }
+    }
+
+    private static void quaternionToMatrix(float[] axis, float angle, float[] out) {
+        double norm = Math.sqrt(axis[0] * axis[0] + axis[1] * axis[1] + axis[2] * axis[2]);
+        double s = Math.sin(angle / 2) / norm;
+        float[] rotationVector = {(float) (axis[0] * s), (float) (axis[1] * s),
+                (float) (axis[2] * s), (float) Math.cos(angle / 2)};
+        OrientationMath.getRotationMatrixFromVector(out, rotationVector);
+    }
+
+    private static void multiply(float[] a, float[] b, float[] out) {
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                out[row * 3 + column] = a[row * 3] * b[column]
+                        + a[row * 3 + 1] * b[3 + column]
+                        + a[row * 3 + 2] * b[6 + column];
+            }
+        }
+    }
+
+    private static void assertMatrix(float[] actual, float[] expected) {
+        for (int i = 0; i < 9; i++) {
+            assertThat((double) actual[i], closeTo(expected[i], TOLERANCE));
+        }
+    }
+}
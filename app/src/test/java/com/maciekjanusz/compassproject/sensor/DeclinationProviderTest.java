@@ -0,0 +1,90 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks the caching of {@link DeclinationProvider}: the model is evaluated once per tile and
+ * day, at the tile center. The model itself is replaced with a fake one recording its calls.
+ */
+public class DeclinationProviderTest {
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long TIME = 16000 * DAY_MILLIS + TimeUnit.HOURS.toMillis(10);
+
+    private FakeDeclinationProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        provider = new FakeDeclinationProvider();
+    }
+
+    @Test
+    public void testSameTileAndDay() throws Exception {
+        float declination = provider.getDeclination(52.2, 21.0, TIME);
+        assertThat(provider.evaluations, equalTo(1));
+        // evaluated at the tile center, at the start of the day
+        assertThat((double) provider.latitude, closeTo(52.5, 1e-6));
+        assertThat((double) provider.longitude, closeTo(21.5, 1e-6));
+        assertThat(provider.timeMillis, equalTo(16000 * DAY_MILLIS));
+
+        assertThat(provider.getDeclination(52.9, 21.99, TIME + TimeUnit.HOURS.toMillis(13)),
+                equalTo(declination));
+        assertThat(provider.evaluations, equalTo(1));
+    }
+
+    @Test
+    public void testNewTile() throws Exception {
+        provider.getDeclination(52.2, 21.0, TIME);
+        provider.getDeclination(53.0, 21.0, TIME);
+        assertThat(provider.evaluations, equalTo(2));
+        assertThat((double) provider.latitude, closeTo(53.5, 1e-6));
+
+        provider.getDeclination(53.0, 20.9, TIME);
+        assertThat(provider.evaluations, equalTo(3));
+        assertThat((double) provider.longitude, closeTo(20.5, 1e-6));
+
+        // negative coordinates are floored, not truncated towards zero
+        provider.getDeclination(-0.5, -0.5, TIME);
+        assertThat(provider.evaluations, equalTo(4));
+        assertThat((double) provider.latitude, closeTo(-0.5, 1e-6));
+        assertThat((double) provider.longitude, closeTo(-0.5, 1e-6));
+        provider.getDeclination(-0.1, -0.9, TIME);
+        assertThat(provider.evaluations, equalTo(4));
+
+        // and coming back to the first tile is a miss again
+        provider.getDeclination(52.2, 21.0, TIME);
+        assertThat(provider.evaluations, equalTo(5));
+    }
+
+    @Test
+    public void testNewDay() throws Exception {
+        provider.getDeclination(52.2, 21.0, TIME);
+        provider.getDeclination(52.2, 21.0, TIME + DAY_MILLIS);
+        assertThat(provider.evaluations, equalTo(2));
+        assertThat(provider.timeMillis, equalTo(16001 * DAY_MILLIS));
+    }
+
+    private static class FakeDeclinationProvider extends DeclinationProvider {
+
+        int evaluations;
+        float latitude;
+        float longitude;
+        long timeMillis;
+
+        @Override
+        float computeDeclination(float latitude, float longitude, long timeMillis) {
+            evaluations++;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.timeMillis = timeMillis;
+            return evaluations;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that {@link SamplePairing} pairs every fresh accelerometer sample with a fresh
+ * magnetometer sample once, within the staleness window, and counts the samples skipped.
+ */
+public class SamplePairingTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testFreshPair() throws Exception {
+        SamplePairing pairing = new SamplePairing();
+
+        assertThat(pairing.onAccelerometerSample(0), equalTo(false));
+        assertThat(pairing.onMagnetometerSample(5 * MS), equalTo(true));
+
+        // both samples consumed - a new sample of one sensor alone is not a pair
+        assertThat(pairing.onAccelerometerSample(20 * MS), equalTo(false));
+        assertThat(pairing.onAccelerometerSample(40 * MS), equalTo(false));
+        assertThat(pairing.onMagnetometerSample(45 * MS), equalTo(true));
+        assertThat(pairing.getSkippedSolves(), equalTo(3L));
+    }
+
+    @Test
+    public void testStaleSample() throws Exception {
+        SamplePairing pairing = new SamplePairing();
+        pairing.setStalenessWindow(50 * MS);
+
+        pairing.onAccelerometerSample(0);
+        // magnetometer sample too far from the accelerometer one
+        assertThat(pairing.onMagnetometerSample(100 * MS), equalTo(false));
+        // newer accelerometer sample replaces the stale one and pairs
+        assertThat(pairing.onAccelerometerSample(120 * MS), equalTo(true));
+        assertThat(pairing.getSkippedSolves(), equalTo(2L));
+    }
+
+    @Test
+    public void testStalenessWindowBoundary() throws Exception {
+        SamplePairing pairing = new SamplePairing();
+        pairing.setStalenessWindow(10 * MS);
+
+        pairing.onMagnetometerSample(0);
+        assertThat(pairing.onAccelerometerSample(10 * MS), equalTo(true));
+        pairing.onMagnetometerSample(20 * MS);
+        assertThat(pairing.onAccelerometerSample(30 * MS + 1), equalTo(false));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        SamplePairing pairing = new SamplePairing();
+
+        pairing.onAccelerometerSample(0);
+        pairing.reset();
+        // accelerometer sample from before the reset is not paired
+        assertThat(pairing.onMagnetometerSample(MS), equalTo(false));
+        // counters are kept
+        assertThat(pairing.getSkippedSolves(), equalTo(2L));
+    }
+}
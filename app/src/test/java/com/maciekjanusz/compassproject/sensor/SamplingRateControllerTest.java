@@ -0,0 +1,100 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import android.hardware.SensorManager;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks the state transitions of {@link SamplingRateController}: MOVING to STATIONARY after the
+ * heading deviation stays below 1&deg; for 2 s, back to MOVING above 3&deg;, and no transitions
+ * for a deviation in between.
+ */
+public class SamplingRateControllerTest {
+
+    private static final long PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private long timestamp;
+
+    /**
+     * Feed the controller with heading alternating around center, at 50 Hz.
+     * @return number of state changes reported
+     */
+    private int feed(SamplingRateController controller, float center, float amplitude,
+                     long durationNanos) {
+        int changes = 0;
+        long end = timestamp + durationNanos;
+        boolean up = false;
+        while (timestamp < end) {
+            timestamp += PERIOD_NANOS;
+            up = !up;
+            float heading = (center + (up ? amplitude : -amplitude) + 360f) % 360f;
+            if (controller.onHeading(heading, timestamp)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    @Test
+    public void testBecomesStationary() throws Exception {
+        SamplingRateController controller = new SamplingRateController();
+        assertThat(controller.getState(), equalTo(SamplingRateController.State.MOVING));
+
+        // still not long enough
+        feed(controller, 90f, 0.2f, SECOND_NANOS * 3 / 2);
+        assertThat(controller.getState(), equalTo(SamplingRateController.State.MOVING));
+
+        assertThat(feed(controller, 90f, 0.2f, SECOND_NANOS), equalTo(1));
+        assertThat(controller.getState(), equalTo(SamplingRateController.State.STATIONARY));
+        assertThat(controller.getSamplingPeriod(),
+                equalTo(SensorManager.SENSOR_DELAY_UI));
+    }
+
+    @Test
+    public void testStationaryAcrossNorth() throws Exception {
+        SamplingRateController controller = new SamplingRateController();
+        feed(controller, 0f, 0.2f, 3 * SECOND_NANOS);
+        assertThat(controller.getState(), equalTo(SamplingRateController.State.STATIONARY));
+    }
+
+    @Test
+    public void testBecomesMoving() throws Exception {
+        SamplingRateController controller = new SamplingRateController();
+        feed(controller, 90f, 0.2f, 3 * SECOND_NANOS);
+        assertThat(controller.getState(), equalTo(SamplingRateController.State.STATIONARY));
+
+        assertThat(feed(controller, 90f, 10f, SECOND_NANOS / 2), equalTo(1));
+        assertThat(controller.getState(), equalTo(SamplingRateController.State.MOVING));
+        assertThat(controller.getSamplingPeriod(),
+                equalTo(SensorManager.SENSOR_DELAY_FASTEST));
+        assertThat(controller.getTransitionCount(), equalTo(2));
+    }
+
+    @Test
+    public void testHysteresisBand() throws Exception {
+        // deviation of about 2 degrees - between both thresholds
+        SamplingRateController controller = new SamplingRateController();
+        assertThat(feed(controller, 90f, 2f, 5 * SECOND_NANOS), equalTo(0));
+        assertThat(controller.getState(), equalTo(SamplingRateController.State.MOVING));
+
+        controller.reset();
+        feed(controller, 90f, 0.2f, 3 * SECOND_NANOS);
+        assertThat(controller.getState(), equalTo(SamplingRateController.State.STATIONARY));
+        assertThat(feed(controller, 90f, 2f, 5 * SECOND_NANOS), equalTo(0));
+        assertThat(controller.getState(), equalTo(SamplingRateController.State.STATIONARY));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        SamplingRateController controller = new SamplingRateController();
+        feed(controller, 90f, 0.2f, 3 * SECOND_NANOS);
+        controller.reset();
+        assertThat(controller.getState(), equalTo(SamplingRateController.State.MOVING));
+    }
+}
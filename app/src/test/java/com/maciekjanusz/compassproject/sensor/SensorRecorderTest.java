@@ -0,0 +1,153 @@
+package com.maciekjanusz.compassproject.sensor;
+
+import android.hardware.Sensor;
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Records sensor events with {@link SensorRecorder} and checks that they come back unchanged,
+ * both from the file and through {@link SensorReplay}, and that events which don't fit the file
+ * are dropped.
+ */
+public class SensorRecorderTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("sensor", ".rec");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        SensorRecorder recorder = new SensorRecorder(file, 1024);
+        assertThat(recorder.record(Sensor.TYPE_ACCELEROMETER, 3, 1000L,
+                new float[] {0.5f, -1.25f, 9.81f}), equalTo(true));
+        assertThat(recorder.record(Sensor.TYPE_MAGNETIC_FIELD, 1, 2000L,
+                new float[] {20f, -30f, 40f}), equalTo(true));
+        assertThat(recorder.record(Sensor.TYPE_ROTATION_VECTOR, 2, Long.MAX_VALUE,
+                new float[] {0.1f, 0.2f, 0.3f, 0.9f, 0.05f}), equalTo(true));
+        recorder.close();
+        assertThat(recorder.getRecordCount(), equalTo(3));
+
+        // accuracy is not replayed, so it is checked in the file itself
+        ByteBuffer buffer = map(file);
+        buffer.position(SensorRecorder.HEADER_SIZE + 1);
+        assertThat((int) buffer.get(), equalTo(3));
+        buffer.position(SensorRecorder.HEADER_SIZE + SensorRecorder.RECORD_HEADER_SIZE + 12 + 1);
+        assertThat((int) buffer.get(), equalTo(1));
+
+        RecordingSource source = new RecordingSource();
+        assertThat(new SensorReplay(file).replay(source, false), equalTo(3));
+        assertThat(source.samples.size(), equalTo(3));
+        assertSample(source.samples.get(0), Sensor.TYPE_ACCELEROMETER, 1000L,
+                new float[] {0.5f, -1.25f, 9.81f});
+        assertSample(source.samples.get(1), Sensor.TYPE_MAGNETIC_FIELD, 2000L,
+                new float[] {20f, -30f, 40f});
+        assertSample(source.samples.get(2), Sensor.TYPE_ROTATION_VECTOR, Long.MAX_VALUE,
+                new float[] {0.1f, 0.2f, 0.3f, 0.9f, 0.05f});
+    }
+
+    @Test
+    public void testFileFull() throws Exception {
+        // room for the header and exactly two 3-value records
+        int recordSize = SensorRecorder.RECORD_HEADER_SIZE + 12;
+        SensorRecorder recorder = new SensorRecorder(file,
+                SensorRecorder.HEADER_SIZE + 2 * recordSize + recordSize - 1);
+        float[] values = {1, 2, 3};
+
+        assertThat(recorder.record(Sensor.TYPE_ACCELEROMETER, 3, 1, values), equalTo(true));
+        assertThat(recorder.record(Sensor.TYPE_ACCELEROMETER, 3, 2, values), equalTo(true));
+        assertThat(recorder.record(Sensor.TYPE_ACCELEROMETER, 3, 3, values), equalTo(false));
+        // smaller event still fits into the remaining space
+        assertThat(recorder.record(Sensor.TYPE_LIGHT, 3, 4, new float[] {5}), equalTo(true));
+        assertThat(recorder.record(Sensor.TYPE_LIGHT, 3, 5, new float[] {5}), equalTo(false));
+        assertThat(recorder.getRecordCount(), equalTo(3));
+        assertThat(recorder.getDroppedCount(), equalTo(2));
+
+        // not closed - the header is kept up to date after every record
+        RecordingSource source = new RecordingSource();
+        assertThat(new SensorReplay(file).replay(source, false), equalTo(3));
+        assertSample(source.samples.get(2), Sensor.TYPE_LIGHT, 4, new float[] {5});
+
+        recorder.close();
+        assertThat(recorder.record(Sensor.TYPE_LIGHT, 3, 6, new float[] {5}), equalTo(false));
+        assertThat(recorder.getDroppedCount(), equalTo(3));
+    }
+
+    private static ByteBuffer map(File file) throws Exception {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            buffer.order(SensorRecorder.BYTE_ORDER);
+            return buffer;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void assertSample(Sample sample, int sensorType, long timestamp,
+                                     float[] values) {
+        assertThat(sample.sensorType, equalTo(sensorType));
+        assertThat(sample.timestamp, equalTo(timestamp));
+        assertThat(sample.values, equalTo(values));
+    }
+
+    private static class Sample {
+        final int sensorType;
+        final float[] values;
+        final long timestamp;
+
+        Sample(int sensorType, float[] values, long timestamp) {
+            this.sensorType = sensorType;
+            this.values = Arrays.copyOf(values, values.length);
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Source collecting replayed samples, never registered with the sensor manager.
+     */
+    private static class RecordingSource extends OrientationSource {
+
+        final List<Sample> samples = new ArrayList<>();
+
+        RecordingSource() {
+            super(null);
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        void register(int samplingPeriod, int maxReportLatencyUs, Handler handler) {
+        }
+
+        @Override
+        protected void onSample(int sensorType, float[] values, long timestamp) {
+            samples.add(new Sample(sensorType, values, timestamp));
+        }
+    }
+}